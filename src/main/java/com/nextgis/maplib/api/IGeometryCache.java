@@ -23,6 +23,7 @@ package com.nextgis.maplib.api;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoPoint;
 
 import java.io.File;
 import java.util.List;
@@ -78,6 +79,16 @@ public interface IGeometryCache {
      */
     List<IGeometryCacheItem> search(GeoEnvelope extent);
 
+    /**
+     * Search items intersected provided envelope skipping the items smaller than minSize
+     * @param extent Envelope to search
+     * @param minSize Minimum envelope width or height of the returned items
+     * @param smallItems If not null, the centers of the skipped items are added to the list.
+     *                   A single center may stand for several skipped items.
+     * @return List of items intersected provided envelope and not smaller than minSize
+     */
+    List<IGeometryCacheItem> search(GeoEnvelope extent, double minSize, List<GeoPoint> smallItems);
+
     /**
      * Get all items
      * @return List of all items
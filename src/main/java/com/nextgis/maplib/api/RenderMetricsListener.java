@@ -0,0 +1,43 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.api;
+
+
+import com.nextgis.maplib.util.RenderMetrics;
+
+/**
+ * The object which need rendering metrics, should implement this interface.
+ */
+public interface RenderMetricsListener
+{
+    /**
+     * Executed then layer drawing finished
+     * @param id The layer identificator
+     * @param metrics The accumulated layer metrics. Use {@link RenderMetrics.LayerMetrics#toJSON()}
+     *                to export it.
+     */
+    void onLayerMetrics(
+            int id,
+            RenderMetrics.LayerMetrics metrics);
+}
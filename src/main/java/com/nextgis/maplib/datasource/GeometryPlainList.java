@@ -102,6 +102,28 @@ public class GeometryPlainList implements IGeometryCache {
         return ret;
     }
 
+    @Override
+    public List<IGeometryCacheItem> search(
+            final GeoEnvelope extent,
+            final double minSize,
+            final List<GeoPoint> smallItems) {
+
+        final List<IGeometryCacheItem> ret = new LinkedList<>();
+        for (VectorCacheItem cacheItem : mVectorCacheItems) {
+            GeoEnvelope envelope = cacheItem.getEnvelope();
+            if (!envelope.intersects(extent))
+                continue;
+
+            if (envelope.width() < minSize && envelope.height() < minSize) {
+                if (null != smallItems)
+                    smallItems.add(envelope.getCenter());
+            } else {
+                ret.add(cacheItem);
+            }
+        }
+        return ret;
+    }
+
     @Override
     public List<IGeometryCacheItem> getAll() {
         LinkedList<IGeometryCacheItem> result = new LinkedList<>();
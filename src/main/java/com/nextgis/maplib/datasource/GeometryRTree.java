@@ -258,6 +258,28 @@ public class GeometryRTree implements IGeometryCache {
         return results;
     }
 
+    /**
+     * Searches the RTree for objects overlapping with the given rectangle and not smaller than
+     * minSize. The subtrees which envelope is smaller than minSize are not traversed, each of
+     * them is reported as one point in its center.
+     *
+     * @param extent
+     *          the envelope to search
+     * @param minSize
+     *          the minimum envelope width or height of the returned objects
+     * @param smallItems
+     *          the list to add the centers of the skipped objects or subtrees, may be null
+     * @return a list of objects whose envelopes overlap with the given
+     *         envelope and are not smaller than minSize.
+     */
+    @Override
+    public List<IGeometryCacheItem> search(GeoEnvelope extent, double minSize,
+                                           List<GeoPoint> smallItems){
+        LinkedList<IGeometryCacheItem> results = new LinkedList<>();
+        search(extent, minSize, root, results, smallItems);
+        return results;
+    }
+
     @Override
     public List<IGeometryCacheItem> getAll() {
         LinkedList<IGeometryCacheItem> result = new LinkedList<>();
@@ -303,6 +325,27 @@ public class GeometryRTree implements IGeometryCache {
         }
     }
 
+    private void search(GeoEnvelope extent, double minSize, Node n,
+                        LinkedList<IGeometryCacheItem> results, List<GeoPoint> smallItems){
+        for (Node c : n.mChildren)
+        {
+            if (!c.mCoords.intersects(extent))
+                continue;
+
+            if (c.mCoords.width() < minSize && c.mCoords.height() < minSize) {
+                if (null != smallItems)
+                    smallItems.add(c.mCoords.getCenter());
+            }
+            else if (n.mLeaf) {
+                if (c instanceof Entry)
+                    results.add((Entry) c);
+            }
+            else {
+                search(extent, minSize, c, results, smallItems);
+            }
+        }
+    }
+
     /**
      * Deletes the entry associated with the given rectangle from the RTree
      *
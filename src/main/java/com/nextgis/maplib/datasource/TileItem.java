@@ -46,9 +46,16 @@ public class TileItem
         }
     };
 
+    // the packed key layout: 5 bits of zoom, 25 bits of x and 25 bits of y, the higher bits are
+    // free for the owner id, i.e. the cache id
+    public static final int KEY_COORD_BITS = 25;
+    public static final int KEY_BITS       = KEY_COORD_BITS * 2 + 5;
+    protected static final long KEY_COORD_MASK = (1L << KEY_COORD_BITS) - 1;
+
     protected int      mZoomLevel;
     protected int      mX;
     protected int      mY;
+    protected long     mKey;
     protected GeoEnvelope mEnvelope;
 
 
@@ -61,15 +68,25 @@ public class TileItem
         mZoomLevel = zoom;
         mX = x;
         mY = y;
+        mKey = getKey(x, y, zoom);
         mEnvelope = envelope;
     }
 
 
+    public TileItem(
+            long key,
+            GeoEnvelope envelope)
+    {
+        this(getX(key), getY(key), getZoomLevel(key), envelope);
+    }
+
+
     private TileItem(Parcel in)
     {
         mZoomLevel = in.readInt();
         mX = in.readInt();
         mY = in.readInt();
+        mKey = getKey(mX, mY, mZoomLevel);
         double minX = in.readDouble();
         double minY = in.readDouble();
         double maxX = in.readDouble();
@@ -99,18 +116,48 @@ public class TileItem
         parcel.writeDouble(mEnvelope.getMaxY());
     }
 
+    /**
+     * Fill the {z}, {x} and {y} placeholders of the pattern, i.e. of the tile url
+     */
     public final String toString(final String pattern)
     {
-        String out = pattern;
-        out = out.replace("{z}", Integer.toString(getZoomLevel()));
-        out = out.replace("{x}", Integer.toString(getX()));
-        out = out.replace("{y}", Integer.toString(getY()));
-        return out;
-
+        int length = pattern.length();
+        StringBuilder out = new StringBuilder(length + 16);
+        int start = 0;
+        int open = pattern.indexOf('{');
+        while (open >= 0 && open + 2 < length) {
+            if (pattern.charAt(open + 2) == '}') {
+                char name = pattern.charAt(open + 1);
+                int value;
+                if (name == 'z') {
+                    value = mZoomLevel;
+                } else if (name == 'x') {
+                    value = mX;
+                } else if (name == 'y') {
+                    value = mY;
+                } else {
+                    open = pattern.indexOf('{', open + 1);
+                    continue;
+                }
+                out.append(pattern, start, open).append(value);
+                start = open + 3;
+                open = pattern.indexOf('{', start);
+            } else {
+                open = pattern.indexOf('{', open + 1);
+            }
+        }
+        out.append(pattern, start, length);
+        return out.toString();
     }
 
     public final String toString(){
-        return "" + getZoomLevel() + FileUtil.getPathSeparator() + getX() + FileUtil.getPathSeparator() + getY();
+        String separator = FileUtil.getPathSeparator();
+        return new StringBuilder(24).append(mZoomLevel)
+                .append(separator)
+                .append(mX)
+                .append(separator)
+                .append(mY)
+                .toString();
     }
 
     public final GeoPoint getPoint(){
@@ -143,4 +190,45 @@ public class TileItem
     {
         return "z" + mZoomLevel + "." + mX + "." + mY;
     }
+
+
+    /**
+     * @return the packed tile key, the same for the equal tiles
+     */
+    public final long getKey()
+    {
+        return mKey;
+    }
+
+
+    /**
+     * Pack the tile coordinates to the key. The zoom level should not exceed {@link
+     * #KEY_COORD_BITS}.
+     */
+    public static long getKey(
+            int x,
+            int y,
+            int zoom)
+    {
+        return ((long) zoom << (KEY_COORD_BITS * 2)) | ((x & KEY_COORD_MASK) << KEY_COORD_BITS) |
+                (y & KEY_COORD_MASK);
+    }
+
+
+    public static int getX(long key)
+    {
+        return (int) ((key >>> KEY_COORD_BITS) & KEY_COORD_MASK);
+    }
+
+
+    public static int getY(long key)
+    {
+        return (int) (key & KEY_COORD_MASK);
+    }
+
+
+    public static int getZoomLevel(long key)
+    {
+        return (int) ((key >>> (KEY_COORD_BITS * 2)) & 0x1F);
+    }
 }
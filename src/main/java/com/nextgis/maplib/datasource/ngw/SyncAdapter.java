@@ -47,10 +47,26 @@ import com.nextgis.maplib.map.LayerGroup;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapContentProviderHelper;
 import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.HttpClient;
 import com.nextgis.maplib.util.NGWUtil;
 import com.nextgis.maplib.util.SettingsConstants;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.nextgis.maplib.util.Constants.TAG;
 
@@ -79,6 +95,19 @@ public class SyncAdapter
     public static final String EXCEPTION = "exception";
     protected String mError;
 
+    // the default count of the layers synced at the same time, in total and for one account
+    public static final int SYNC_LAYERS_MAX         = 4;
+    public static final int SYNC_ACCOUNT_LAYERS_MAX = 2;
+
+    // the time to wait for the interrupted layers on the sync cancel
+    public static final long SYNC_CANCEL_TIMEOUT    = 5000; // ms
+
+    // the paths of the layers in sync, the interrupted layer may still run after the sync end
+    protected static final Set<String> mSyncingLayers = new HashSet<>();
+
+    protected int mMaxLayers        = SYNC_LAYERS_MAX;
+    protected int mMaxAccountLayers = SYNC_ACCOUNT_LAYERS_MAX;
+
     private HashMap<String, Pair<Integer, Integer>> mVersions;
 
     public SyncAdapter(
@@ -101,8 +130,8 @@ public class SyncAdapter
 
     /**
      * Warning! When you stop the sync service by ContentResolver.cancelSync() then onPerformSync
-     * stops after end of syncing of current NGWVectorLayer. The data structure of the current
-     * NGWVectorLayer will be saved.
+     * stops after end of syncing of the current NGWVectorLayers or after {@link
+     * #SYNC_CANCEL_TIMEOUT}. The data structure of the current NGWVectorLayers will be saved.
      * <p/>
      * <b>Description copied from class:</b> AbstractThreadedSyncAdapter Perform a sync for this
      * account. SyncAdapter-specific parameters may be specified in extras, which is guaranteed to
@@ -121,6 +150,10 @@ public class SyncAdapter
         MapContentProviderHelper mapContentProviderHelper =(MapContentProviderHelper) MapBase.getInstance();
         getContext().sendBroadcast(new Intent(SYNC_START));
 
+        SharedPreferences settings = getContext().getSharedPreferences(Constants.PREFERENCES, Constants.MODE_MULTI_PROCESS);
+        mMaxLayers = Math.max(1, settings.getInt(SettingsConstants.KEY_PREF_SYNC_LAYERS_MAX, SYNC_LAYERS_MAX));
+        mMaxAccountLayers = Math.max(1, settings.getInt(SettingsConstants.KEY_PREF_SYNC_ACCOUNT_LAYERS_MAX, SYNC_ACCOUNT_LAYERS_MAX));
+
         mVersions = new HashMap<>();
         if (null != mapContentProviderHelper) {
             // FIXME Temporary fix till 3.0
@@ -135,7 +168,6 @@ public class SyncAdapter
         }
 
         final String accountNameHash = "_" + account.name.hashCode();
-        SharedPreferences settings = getContext().getSharedPreferences(Constants.PREFERENCES, Constants.MODE_MULTI_PROCESS);
         SharedPreferences.Editor editor = settings.edit();
         editor.putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP + accountNameHash, System.currentTimeMillis());
         editor.putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP, System.currentTimeMillis());
@@ -160,6 +192,12 @@ public class SyncAdapter
             mError += getContext().getString(R.string.sync_error_conflict);
         }
 
+        if (Constants.DEBUG_MODE) {
+            HttpClient client = HttpClient.getInstance();
+            Log.d(TAG, "sync features " + client.getMetrics(HttpClient.REQUEST_FEATURE));
+            Log.d(TAG, "sync attachments " + client.getMetrics(HttpClient.REQUEST_ATTACH));
+        }
+
         Intent finish = new Intent(SYNC_FINISH);
         if (!TextUtils.isEmpty(mError))
             finish.putExtra(EXCEPTION, mError);
@@ -167,30 +205,180 @@ public class SyncAdapter
     }
 
 
+    /**
+     * Syncs the NGW layers of the group and its subgroups, up to {@link #mMaxLayers} layers at the
+     * same time and up to {@link #mMaxAccountLayers} layers of one account. The layer is started
+     * only if its account has the free slot, so the threads do not wait for the busy account. The
+     * statistics of the layers are summed to the syncResult. If the sync is canceled the layers
+     * which are not started are skipped and the started ones are interrupted and waited for up to
+     * {@link #SYNC_CANCEL_TIMEOUT}. The layer still in sync from the previous canceled sync is
+     * skipped.
+     */
     protected void sync(
             LayerGroup layerGroup,
             String authority,
             SyncResult syncResult)
     {
-        for (int i = 0; i < layerGroup.getLayerCount(); i++) {
-            if (isCanceled()) {
-                return;
+        List<INGWLayer> layers = new ArrayList<>();
+        getLayers(layerGroup, layers);
+        if (layers.isEmpty() || isCanceled()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mMaxLayers, layers.size()));
+        CompletionService<SyncResult> completion = new ExecutorCompletionService<>(executor);
+        LinkedList<INGWLayer> pending = new LinkedList<>(layers);
+        Map<Future<SyncResult>, String> running = new HashMap<>();
+        Map<String, Integer> accountRunning = new HashMap<>();
+
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                Iterator<INGWLayer> iterator = pending.iterator();
+                while (running.size() < mMaxLayers && iterator.hasNext() && !isCanceled()) {
+                    INGWLayer ngwLayer = iterator.next();
+                    String accountName = ngwLayer.getAccountName();
+                    Integer count = accountRunning.get(accountName);
+                    if (null != count && count >= mMaxAccountLayers) {
+                        continue;
+                    }
+                    iterator.remove();
+
+                    if (!mVersions.containsKey(accountName))
+                        mVersions.put(accountName, NGWUtil.getNgwVersion(getContext(), accountName));
+                    accountRunning.put(accountName, null == count ? 1 : count + 1);
+                    running.put(completion.submit(new LayerSyncTask(ngwLayer, authority,
+                            mVersions.get(accountName))), accountName);
+                }
+
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                // throws if the sync is canceled
+                Future<SyncResult> result = completion.take();
+                String accountName = running.remove(result);
+                accountRunning.put(accountName, accountRunning.get(accountName) - 1);
+                try {
+                    addStats(syncResult, result.get());
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    syncResult.stats.numIoExceptions++;
+                }
+            }
+            executor.shutdown();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            // the started layers save their data structure before the sync is reported as
+            // canceled, the layer blocked by the network read is not waited for longer
+            long deadline = System.currentTimeMillis() + SYNC_CANCEL_TIMEOUT;
+            boolean terminated = false;
+            while (!terminated && System.currentTimeMillis() < deadline) {
+                try {
+                    terminated = executor.awaitTermination(
+                            deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ignored) {
+                }
             }
+            if (!terminated) {
+                Log.d(TAG, "Sync is canceled, the interrupted layers are finished in background");
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    protected void getLayers(
+            LayerGroup layerGroup,
+            List<INGWLayer> layers)
+    {
+        for (int i = 0; i < layerGroup.getLayerCount(); i++) {
             ILayer layer = layerGroup.getLayer(i);
             if (layer instanceof LayerGroup) {
-                sync((LayerGroup) layer, authority, syncResult);
-            } else if (layer instanceof INGWLayer) {
-                INGWLayer ngwLayer = (INGWLayer) layer;
-                String accountName = ngwLayer.getAccountName();
-                if (!mVersions.containsKey(accountName))
-                    mVersions.put(accountName, NGWUtil.getNgwVersion(getContext(), accountName));
-
-                Pair<Integer, Integer> ver = mVersions.get(accountName);
-                ngwLayer.sync(authority, ver, syncResult);
+                getLayers((LayerGroup) layer, layers);
+            } else if (layer instanceof INGWLayer && !isSyncing(layer)) {
+                layers.add((INGWLayer) layer);
             }
         }
     }
 
+
+    protected static boolean isSyncing(ILayer layer)
+    {
+        synchronized (mSyncingLayers) {
+            return mSyncingLayers.contains(layer.getPath().getAbsolutePath());
+        }
+    }
+
+
+    protected static void addStats(
+            SyncResult syncResult,
+            SyncResult layerResult)
+    {
+        syncResult.stats.numAuthExceptions += layerResult.stats.numAuthExceptions;
+        syncResult.stats.numIoExceptions += layerResult.stats.numIoExceptions;
+        syncResult.stats.numParseExceptions += layerResult.stats.numParseExceptions;
+        syncResult.stats.numConflictDetectedExceptions += layerResult.stats.numConflictDetectedExceptions;
+        syncResult.stats.numInserts += layerResult.stats.numInserts;
+        syncResult.stats.numUpdates += layerResult.stats.numUpdates;
+        syncResult.stats.numDeletes += layerResult.stats.numDeletes;
+        syncResult.stats.numEntries += layerResult.stats.numEntries;
+        syncResult.stats.numSkippedEntries += layerResult.stats.numSkippedEntries;
+        syncResult.tooManyDeletions |= layerResult.tooManyDeletions;
+        syncResult.tooManyRetries |= layerResult.tooManyRetries;
+        syncResult.databaseError |= layerResult.databaseError;
+        syncResult.fullSyncRequested |= layerResult.fullSyncRequested;
+        syncResult.partialSyncUnavailable |= layerResult.partialSyncUnavailable;
+        syncResult.moreRecordsToGet |= layerResult.moreRecordsToGet;
+        syncResult.delayUntil = Math.max(syncResult.delayUntil, layerResult.delayUntil);
+    }
+
+
+    protected static class LayerSyncTask
+            implements Callable<SyncResult>
+    {
+        protected INGWLayer              mLayer;
+        protected String                 mAuthority;
+        protected Pair<Integer, Integer> mVersion;
+
+
+        public LayerSyncTask(
+                INGWLayer layer,
+                String authority,
+                Pair<Integer, Integer> version)
+        {
+            mLayer = layer;
+            mAuthority = authority;
+            mVersion = version;
+        }
+
+
+        @Override
+        public SyncResult call()
+                throws Exception
+        {
+            // the layer clears the result, so every layer has its own one
+            SyncResult layerResult = new SyncResult();
+            String path = ((ILayer) mLayer).getPath().getAbsolutePath();
+            synchronized (mSyncingLayers) {
+                if (!mSyncingLayers.add(path)) {
+                    // the layer is synced by the interrupted task yet
+                    layerResult.stats.numSkippedEntries++;
+                    return layerResult;
+                }
+            }
+
+            try {
+                mLayer.sync(mAuthority, mVersion, layerResult);
+            } finally {
+                synchronized (mSyncingLayers) {
+                    mSyncingLayers.remove(path);
+                }
+            }
+            return layerResult;
+        }
+    }
+
+
     public static void setSyncPeriod(
             IGISApplication application,
             Bundle extras,
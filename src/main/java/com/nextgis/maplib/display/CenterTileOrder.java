@@ -0,0 +1,115 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import com.nextgis.maplib.api.ITileOrder;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+
+
+/**
+ * Order the tiles by the distance from the view center, the tiles of the same distance go
+ * clockwise, so the tiles are drawn by the spiral from the center where the user looks.
+ */
+public class CenterTileOrder
+        implements ITileOrder
+{
+    @Override
+    public void order(
+            List<TileItem> tiles,
+            GeoEnvelope bounds)
+    {
+        double x = bounds.getMinX() + bounds.width() / 2;
+        double y = bounds.getMinY() + bounds.height() / 2;
+        order(tiles, x, y);
+    }
+
+
+    /**
+     * Sort the tiles around the point
+     */
+    protected void order(
+            List<TileItem> tiles,
+            double x,
+            double y)
+    {
+        int size = tiles.size();
+        if (size < 2) {
+            return;
+        }
+
+        // the sort keys are computed once per tile
+        TileDistance[] distances = new TileDistance[size];
+        int index = 0;
+        for (TileItem tile : tiles) {
+            GeoEnvelope envelope = tile.getEnvelope();
+            double dx = envelope.getMinX() + envelope.width() / 2 - x;
+            double dy = envelope.getMinY() + envelope.height() / 2 - y;
+            // the tile size steps to group the tiles to the rings
+            long ring = Math.round(Math.max(Math.abs(dx), Math.abs(dy)) / envelope.width());
+            distances[index++] = new TileDistance(tile, ring, -Math.atan2(dy, dx));
+        }
+
+        Arrays.sort(distances);
+        ListIterator<TileItem> iterator = tiles.listIterator();
+        for (TileDistance distance : distances) {
+            iterator.next();
+            iterator.set(distance.mTile);
+        }
+    }
+
+
+    protected static class TileDistance
+            implements Comparable<TileDistance>
+    {
+        protected final TileItem mTile;
+        protected final long     mRing;
+        protected final double   mAngle;
+
+
+        public TileDistance(
+                TileItem tile,
+                long ring,
+                double angle)
+        {
+            mTile = tile;
+            mRing = ring;
+            mAngle = angle;
+        }
+
+
+        @Override
+        public int compareTo(TileDistance another)
+        {
+            if (mRing != another.mRing) {
+                return mRing < another.mRing ? -1 : 1;
+            }
+            return Double.compare(mAngle, another.mAngle);
+        }
+    }
+}
@@ -30,6 +30,8 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathMeasure;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
 import android.util.Log;
 import com.nextgis.maplib.datasource.GeoEnvelope;
@@ -69,6 +71,9 @@ public class GISDisplay
     protected       GeoEnvelope mOffScreenBounds;
     protected       int         mLimitType;
     protected       int         mWidth, mHeight;
+    // progressive drawing buffers, exist only while a layer draws progressively
+    protected       Bitmap      mSnapshotBitmap;
+    protected       Bitmap      mLayerBitmap;
 
 
     public GISDisplay(Bitmap backgroundTile)
@@ -99,6 +104,30 @@ public class GISDisplay
     }
 
 
+    /**
+     * For the offscreen displays which set up their own canvas, see TileDisplay
+     */
+    protected GISDisplay()
+    {
+        mMinZoomLevel = 0;
+        mMaxZoomLevel = DEFAULT_MAX_ZOOM;
+        mLimitType = MAP_LIMITS_NO;
+
+        mFullBounds = new GeoEnvelope(-MERCATOR_MAX, MERCATOR_MAX, -MERCATOR_MAX, MERCATOR_MAX);
+        mGeoLimits = mFullBounds;
+        mCenter = mGeoLimits.getCenter();
+
+        mTransformMatrix = new Matrix();
+        mInvertTransformMatrix = new Matrix();
+        mMapTileSize = new GeoPoint();
+
+        mRasterPaint = new Paint();
+        mRasterPaint.setAntiAlias(true);
+        mRasterPaint.setFilterBitmap(true);
+        mRasterPaint.setDither(true);
+    }
+
+
     public void setSize(
             int w,
             int h)
@@ -110,6 +139,8 @@ public class GISDisplay
         mMainCanvas = null;
         mDoubleBufferBitmap = null;
         mDoubleBufferCanvas = null;
+        mSnapshotBitmap = null;
+        mLayerBitmap = null;
 
         mWidth = w;
         mHeight = h;
@@ -491,6 +522,20 @@ public class GISDisplay
     }
 
 
+    public void drawPoints(
+            float[] pts,
+            int offset,
+            int count,
+            Paint paint)
+    {
+        if (null == mMainCanvas || count < 2) {
+            return;
+        }
+        checkStrokeWidth(paint);
+        mMainCanvas.drawPoints(pts, offset, count, paint);
+    }
+
+
     public void drawLine(
             float x0,
             float y0,
@@ -518,6 +563,20 @@ public class GISDisplay
     }
 
 
+    public void drawLines(
+            float[] pts,
+            int offset,
+            int count,
+            Paint paint)
+    {
+        if (null == mMainCanvas || count < 4) {
+            return;
+        }
+        checkStrokeWidth(paint);
+        mMainCanvas.drawLines(pts, offset, count, paint);
+    }
+
+
     public void drawCircle(
             float x,
             float y,
@@ -758,7 +817,7 @@ public class GISDisplay
     }
 
 
-    public void buffer(
+    public synchronized void buffer(
             float x,
             float y,
             float scale)
@@ -782,6 +841,73 @@ public class GISDisplay
     }
 
 
+    /**
+     * Save the current map bitmap to put a layer drawn offscreen over it later. A layer drawn
+     * progressively draws a coarse preview to the map and the full detail to the layer display.
+     * The buffers are held until releaseSnapshot() is called.
+     */
+    public synchronized void saveSnapshot()
+    {
+        if (null == mMainBitmap) {
+            return;
+        }
+
+        if (null == mSnapshotBitmap) {
+            mSnapshotBitmap = Bitmap.createBitmap(
+                    mMainBitmap.getWidth(), mMainBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        }
+        if (null == mLayerBitmap) {
+            mLayerBitmap = Bitmap.createBitmap(
+                    mMainBitmap.getWidth(), mMainBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        }
+
+        mSnapshotBitmap.eraseColor(Color.TRANSPARENT);
+        new Canvas(mSnapshotBitmap).drawBitmap(mMainBitmap, 0, 0, null);
+        mLayerBitmap.eraseColor(Color.TRANSPARENT);
+    }
+
+
+    /**
+     * @return the offscreen display with the same bounds and scale as the map, see saveSnapshot()
+     */
+    public GISDisplay getLayerDisplay()
+    {
+        if (null == mLayerBitmap) {
+            return null;
+        }
+        return new TileDisplay(mLayerBitmap, mCurrentBounds, mCurrentBounds, mZoomLevel, mScale);
+    }
+
+
+    /**
+     * Replace the map bitmap with the saved snapshot and the layer display drawing over it
+     */
+    public synchronized void restoreSnapshot()
+    {
+        if (null == mMainBitmap || null == mSnapshotBitmap || null == mLayerBitmap) {
+            return;
+        }
+
+        Paint paint = new Paint();
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+
+        Canvas canvas = new Canvas(mMainBitmap);
+        canvas.drawBitmap(mSnapshotBitmap, 0, 0, paint);
+        canvas.drawBitmap(mLayerBitmap, 0, 0, null);
+    }
+
+
+    /**
+     * Free the buffers created by saveSnapshot(). The layer display keeps its bitmap alive until
+     * the draw tasks still using it finish.
+     */
+    public synchronized void releaseSnapshot()
+    {
+        mSnapshotBitmap = null;
+        mLayerBitmap = null;
+    }
+
+
     public void setBackground(Bitmap bkBitmap) {
         mBkBitmap = bkBitmap;
     }
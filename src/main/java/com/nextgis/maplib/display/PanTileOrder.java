@@ -0,0 +1,68 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+
+import java.util.List;
+
+
+/**
+ * Order the tiles from the point ahead of the view center in the pan direction, so the tiles
+ * coming into the view are drawn first. The order is the same as {@link CenterTileOrder} while
+ * the view is not panned.
+ */
+public class PanTileOrder
+        extends CenterTileOrder
+{
+    // the max shift of the order center as the part of the view size
+    protected static final double MAX_SHIFT = 0.5;
+
+    protected GeoEnvelope mLastBounds;
+
+
+    @Override
+    public synchronized void order(
+            List<TileItem> tiles,
+            GeoEnvelope bounds)
+    {
+        double x = bounds.getMinX() + bounds.width() / 2;
+        double y = bounds.getMinY() + bounds.height() / 2;
+
+        // the zoom change is not a pan
+        if (null != mLastBounds && Math.abs(mLastBounds.width() - bounds.width()) <
+                bounds.width() * 0.01) {
+            double dx = bounds.getMinX() - mLastBounds.getMinX();
+            double dy = bounds.getMinY() - mLastBounds.getMinY();
+            double maxX = bounds.width() * MAX_SHIFT;
+            double maxY = bounds.height() * MAX_SHIFT;
+            x += Math.max(-maxX, Math.min(maxX, dx));
+            y += Math.max(-maxY, Math.min(maxY, dy));
+        }
+        mLastBounds = new GeoEnvelope(bounds);
+
+        order(tiles, x, y);
+    }
+}
@@ -65,6 +65,14 @@ public class RuleFeatureRenderer
     }
 
 
+    @Override
+    protected boolean isSubPixelDrawn()
+    {
+        // the rule styles can not be applied to the dots of several features
+        return null == mStyleRule && super.isSubPixelDrawn();
+    }
+
+
     @Override
     protected Style getStyle(long featureId)
     {
@@ -24,18 +24,26 @@
 package com.nextgis.maplib.display;
 
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.Paint;
 import android.os.Build;
 import android.util.Log;
 
 import com.nextgis.maplib.api.ITextStyle;
+import com.nextgis.maplib.api.ITileOrder;
 import com.nextgis.maplib.datasource.Feature;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.Layer;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapContentProviderHelper;
 import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.map.VectorTileCache;
 import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.RenderMetrics;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -50,6 +58,8 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.nextgis.maplib.util.Constants.*;
+import static com.nextgis.maplib.util.GeoConstants.GTMultiPoint;
+import static com.nextgis.maplib.util.GeoConstants.GTPoint;
 
 
 public class SimpleFeatureRenderer
@@ -59,15 +69,34 @@ public class SimpleFeatureRenderer
     protected Style              mStyle;
     protected ThreadPoolExecutor mDrawThreadPool;
     //protected final Object lock = new Object();
+    protected float              mLodThreshold;
+    protected boolean            mDrawSubPixelFeatures;
+    protected long               mProgressiveBudget;
+    protected ITileOrder         mTileOrder;
 
     public static final String JSON_STYLE_KEY = "style";
+    public static final String JSON_LOD_THRESHOLD_KEY = "lod_threshold";
+    public static final String JSON_LOD_DRAW_KEY = "lod_draw";
+    public static final String JSON_PROGRESSIVE_BUDGET_KEY = "progressive_budget";
     protected static final int GEOMETRY_PER_TASK = 15;
+    // features which envelope is smaller than this in pixels are not fetched from the database
+    public static final float DEFAULT_LOD_THRESHOLD = 1;
+    // time in ms to draw the coarse preview of the large layers, 0 to disable
+    public static final long DEFAULT_PROGRESSIVE_BUDGET = 150;
+    // the layers with less features are drawn at once
+    protected static final int PROGRESSIVE_MIN_FEATURES = 5000;
+    // the coarse preview geometry zoom offset
+    protected static final int PROGRESSIVE_ZOOM_DELTA = 4;
 
 
     public SimpleFeatureRenderer(Layer layer)
     {
         super(layer);
         mStyle = null;
+        mLodThreshold = DEFAULT_LOD_THRESHOLD;
+        mDrawSubPixelFeatures = true;
+        mProgressiveBudget = DEFAULT_PROGRESSIVE_BUDGET;
+        mTileOrder = new CenterTileOrder();
     }
 
 
@@ -77,6 +106,10 @@ public class SimpleFeatureRenderer
     {
         super(layer);
         mStyle = style;
+        mLodThreshold = DEFAULT_LOD_THRESHOLD;
+        mDrawSubPixelFeatures = true;
+        mProgressiveBudget = DEFAULT_PROGRESSIVE_BUDGET;
+        mTileOrder = new CenterTileOrder();
     }
 
     @Override
@@ -97,6 +130,11 @@ public class SimpleFeatureRenderer
 
         final VectorLayer vectorLayer = (VectorLayer) getLayer();
 
+        if (vectorLayer.isTileCacheEnabled() && !vectorLayer.hasHiddenFeatures()) {
+            runTiledDraw(display, vectorLayer);
+            return;
+        }
+
         //GeoEnvelope layerEnv = vectorLayer.getExtents();
         //if (null == layerEnv || !env.intersects(layerEnv)) {
         //    return;
@@ -106,33 +144,27 @@ public class SimpleFeatureRenderer
         if(decimalZoom % 2 != 0)
             decimalZoom++;
 
-        List<Long> featureIds = vectorLayer.query(env);
+        long queryTime = RenderMetrics.start();
+        List<Long> featureIds;
+        List<GeoPoint> subPixelFeatures = null;
+        if (isLodEnabled(vectorLayer)) {
+            if (isSubPixelDrawn())
+                subPixelFeatures = new ArrayList<>();
+            featureIds = vectorLayer.query(
+                    env, mLodThreshold / display.getScale(), subPixelFeatures);
+            if (null != subPixelFeatures)
+                RenderMetrics.add(vectorLayer.getId(), RenderMetrics.COUNT_FEATURES_CULLED,
+                        subPixelFeatures.size());
+        } else {
+            featureIds = vectorLayer.query(env);
+        }
+        RenderMetrics.record(vectorLayer.getId(), RenderMetrics.TIME_QUERY, queryTime);
 
+        long prepareTime = RenderMetrics.start();
         cancelDraw();
 
-        int threadCount = DRAWING_SEPARATE_THREADS;
-        int coreCount = Runtime.getRuntime().availableProcessors();
-
-        // FIXME more than 1 pool size causing strange behaviour on 6.0
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-            coreCount = 1;
-
-        mDrawThreadPool = new ThreadPoolExecutor(
-                coreCount, threadCount, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
-                new LinkedBlockingQueue<Runnable>(), new RejectedExecutionHandler()
-        {
-            @Override
-            public void rejectedExecution(
-                    Runnable r,
-                    ThreadPoolExecutor executor)
-            {
-                try {
-                    executor.getQueue().put(r);
-                } catch (InterruptedException e) {
-                    //e.printStackTrace();
-                }
-            }
-        });
+        mDrawThreadPool = createDrawThreadPool();
+        RenderMetrics.record(vectorLayer.getId(), RenderMetrics.TIME_PREPARE, prepareTime);
 
         if(Constants.DEBUG_MODE) {
             long stopTime = System.currentTimeMillis();
@@ -141,6 +173,22 @@ public class SimpleFeatureRenderer
             Log.d(TAG, "Vector layer " + vectorLayer.getName() + " prepare time: " + elapsedTime);
         }
 
+        long drawTime = RenderMetrics.start();
+
+        // draw the coarse preview to the map and the full detail offscreen
+        GISDisplay drawDisplay = display;
+        if (isProgressive(featureIds.size(), decimalZoom)) {
+            display.saveSnapshot();
+            GISDisplay layerDisplay = display.getLayerDisplay();
+            if (null != layerDisplay) {
+                runCoarseDraw(featureIds, subPixelFeatures, decimalZoom, vectorLayer, display);
+                drawDisplay = layerDisplay;
+            }
+        }
+
+        if (null != subPixelFeatures)
+            drawSubPixelFeatures(subPixelFeatures, drawDisplay);
+
         // http://developer.android.com/reference/java/util/concurrent/ExecutorCompletionService.html
         int tilesSize = featureIds.size() / GEOMETRY_PER_TASK + 1;
         List<Future> futures = new ArrayList<>(tilesSize);
@@ -149,7 +197,7 @@ public class SimpleFeatureRenderer
         int counter = 0;
         for (int i = 0; i < featureIds.size(); i += GEOMETRY_PER_TASK) {
 
-            DrawTask task = new DrawTask(finalDecimalZoom, vectorLayer, display);
+            DrawTask task = new DrawTask(finalDecimalZoom, vectorLayer, drawDisplay);
 
             for(int j = 0; j < GEOMETRY_PER_TASK; j++) {
                 if (Thread.currentThread().isInterrupted()) {
@@ -168,6 +216,123 @@ public class SimpleFeatureRenderer
             vectorLayer.onDrawFinished(vectorLayer.getId(), 0.01f);
         }
 
+        waitForDraw(futures, vectorLayer);
+
+        if (drawDisplay != display) {
+            // keep the coarse preview if the drawing is cancelled
+            if (!Thread.currentThread().isInterrupted())
+                display.restoreSnapshot();
+            display.releaseSnapshot();
+        }
+
+        RenderMetrics.record(vectorLayer.getId(), RenderMetrics.TIME_DRAW, drawTime);
+
+        vectorLayer.onDrawFinished(vectorLayer.getId(), 1.0f);
+
+        if(Constants.DEBUG_MODE) {
+            long stopTime = System.currentTimeMillis();
+            long elapsedTime = stopTime - startTime;
+
+            Log.d(TAG, "Vector layer " + vectorLayer.getName() + " exec time: " + elapsedTime);
+        }
+    }
+
+
+    /**
+     * Draw the layer by the cached tiles, the missed tiles are rendered to the cache
+     */
+    protected void runTiledDraw(
+            final GISDisplay display,
+            final VectorLayer vectorLayer)
+    {
+        long startTime;
+        if(Constants.DEBUG_MODE) {
+            startTime = System.currentTimeMillis();
+        }
+
+        final VectorTileCache tileCache = vectorLayer.getTileCache();
+        final float zoom = display.getZoomLevel();
+        final double scale = display.getScale();
+        List<TileItem> tiles = VectorTileCache.getTileItems(display.getBounds(), zoom);
+        if (null != mTileOrder) {
+            mTileOrder.order(tiles, display.getBounds());
+        }
+
+        long prepareTime = RenderMetrics.start();
+        cancelDraw();
+        mDrawThreadPool = createDrawThreadPool();
+        RenderMetrics.record(vectorLayer.getId(), RenderMetrics.TIME_PREPARE, prepareTime);
+
+        long drawTime = RenderMetrics.start();
+        int decimalZoom = (int) zoom;
+        if(decimalZoom % 2 != 0)
+            decimalZoom++;
+
+        List<Future> futures = new ArrayList<>(tiles.size());
+        int hits = 0;
+        for (TileItem tile : tiles) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            Bitmap bitmap = tileCache.getBitmap(tile, zoom);
+            if (null != bitmap) {
+                display.drawTile(bitmap, tile.getPoint(), null);
+                hits++;
+                continue;
+            }
+
+            futures.add(mDrawThreadPool.submit(
+                    new TileDrawTask(decimalZoom, zoom, scale, tile, vectorLayer, display)));
+        }
+
+        waitForDraw(futures, vectorLayer);
+        RenderMetrics.add(vectorLayer.getId(), RenderMetrics.COUNT_TILE_HITS, hits);
+        RenderMetrics.record(vectorLayer.getId(), RenderMetrics.TIME_DRAW, drawTime);
+        vectorLayer.onDrawFinished(vectorLayer.getId(), 1.0f);
+
+        if(Constants.DEBUG_MODE) {
+            long stopTime = System.currentTimeMillis();
+            long elapsedTime = stopTime - startTime;
+
+            Log.d(TAG, "Vector layer " + vectorLayer.getName() + " tiles: " + tiles.size() +
+                    ", cached: " + hits + ", exec time: " + elapsedTime);
+        }
+    }
+
+
+    protected ThreadPoolExecutor createDrawThreadPool()
+    {
+        int threadCount = DRAWING_SEPARATE_THREADS;
+        int coreCount = Runtime.getRuntime().availableProcessors();
+
+        // FIXME more than 1 pool size causing strange behaviour on 6.0
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            coreCount = 1;
+
+        return new ThreadPoolExecutor(
+                coreCount, threadCount, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingQueue<Runnable>(), new RejectedExecutionHandler()
+        {
+            @Override
+            public void rejectedExecution(
+                    Runnable r,
+                    ThreadPoolExecutor executor)
+            {
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    //e.printStackTrace();
+                }
+            }
+        });
+    }
+
+
+    protected void waitForDraw(
+            List<Future> futures,
+            VectorLayer vectorLayer)
+    {
         // wait for draw ending
         int nStep = futures.size() / Constants.DRAW_NOTIFY_STEP_PERCENT;
         if(nStep == 0)
@@ -194,15 +359,182 @@ public class SimpleFeatureRenderer
                 e.printStackTrace();
             }
         }
+    }
 
-        vectorLayer.onDrawFinished(vectorLayer.getId(), 1.0f);
 
-        if(Constants.DEBUG_MODE) {
-            long stopTime = System.currentTimeMillis();
-            long elapsedTime = stopTime - startTime;
+    protected boolean isProgressive(
+            int featureCount,
+            int zoom)
+    {
+        return mProgressiveBudget > 0 && featureCount > PROGRESSIVE_MIN_FEATURES &&
+                getCoarseZoom(zoom) < Math.min(zoom, GeoConstants.DEFAULT_CACHE_MAX_ZOOM);
+    }
 
-            Log.d(TAG, "Vector layer " + vectorLayer.getName() + " exec time: " + elapsedTime);
+
+    protected int getCoarseZoom(int zoom)
+    {
+        return Math.max(
+                2, Math.min(zoom, GeoConstants.DEFAULT_CACHE_MAX_ZOOM) - PROGRESSIVE_ZOOM_DELTA);
+    }
+
+
+    /**
+     * Draw the features with the generalized geometry of the lower zoom until the time budget
+     * is over and publish the preview
+     */
+    protected void runCoarseDraw(
+            List<Long> featureIds,
+            List<GeoPoint> subPixelFeatures,
+            int zoom,
+            VectorLayer vectorLayer,
+            GISDisplay display)
+    {
+        long deadline = System.currentTimeMillis() + mProgressiveBudget;
+        int coarseZoom = getCoarseZoom(zoom);
+
+        if (null != subPixelFeatures)
+            drawSubPixelFeatures(subPixelFeatures, display);
+
+        List<Future> futures = new ArrayList<>(featureIds.size() / GEOMETRY_PER_TASK + 1);
+        for (int i = 0; i < featureIds.size(); i += GEOMETRY_PER_TASK) {
+            DrawTask task = new DrawTask(coarseZoom, vectorLayer, display, deadline);
+            int end = Math.min(i + GEOMETRY_PER_TASK, featureIds.size());
+            for (int j = i; j < end; j++) {
+                task.addTaskData(featureIds.get(j));
+            }
+            futures.add(mDrawThreadPool.submit(task));
         }
+
+        for (Future future : futures) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            try {
+                future.get(); // the tasks are skipped after the deadline
+            } catch (CancellationException | InterruptedException e) {
+                //e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        vectorLayer.onDrawFinished(vectorLayer.getId(), 0.1f);
+    }
+
+
+    public long getProgressiveBudget()
+    {
+        return mProgressiveBudget;
+    }
+
+
+    /**
+     * @param progressiveBudget
+     *         the time in ms to draw the coarse preview of a large layer before the full detail
+     *         drawing, 0 to disable
+     */
+    public void setProgressiveBudget(long progressiveBudget)
+    {
+        mProgressiveBudget = progressiveBudget;
+    }
+
+
+    public ITileOrder getTileOrder()
+    {
+        return mTileOrder;
+    }
+
+
+    /**
+     * @param tileOrder
+     *         the cache tiles drawing order, null to draw the tiles column by column
+     */
+    public void setTileOrder(ITileOrder tileOrder)
+    {
+        mTileOrder = tileOrder;
+    }
+
+
+    protected boolean isLodEnabled(VectorLayer layer)
+    {
+        int geometryType = layer.getGeometryType();
+        return mLodThreshold > 0 && geometryType != GTPoint && geometryType != GTMultiPoint;
+    }
+
+
+    /**
+     * Draw the features which are smaller than LOD threshold as dots in one batch
+     *
+     * @param points
+     *         the centers of the feature envelopes
+     */
+    protected void drawSubPixelFeatures(
+            List<GeoPoint> points,
+            GISDisplay display)
+    {
+        if (points.isEmpty() || null == mStyle) {
+            return;
+        }
+
+        float[] pts = new float[points.size() * 2];
+        int count = 0;
+        for (GeoPoint point : points) {
+            pts[count++] = (float) point.getX();
+            pts[count++] = (float) point.getY();
+        }
+
+        Paint paint = new Paint();
+        paint.setColor(mStyle.getColor());
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeCap(Paint.Cap.SQUARE);
+        paint.setStrokeWidth((float) (mLodThreshold / display.getScale()));
+
+        display.drawPoints(pts, 0, count, paint);
+    }
+
+
+    public float getLodThreshold()
+    {
+        return mLodThreshold;
+    }
+
+
+    /**
+     * @param lodThreshold
+     *         the features which envelope is smaller than the threshold in pixels are not fetched
+     *         from the database, 0 to disable
+     */
+    public void setLodThreshold(float lodThreshold)
+    {
+        mLodThreshold = lodThreshold;
+    }
+
+
+    public boolean isDrawSubPixelFeatures()
+    {
+        return mDrawSubPixelFeatures;
+    }
+
+
+    /**
+     * @param drawSubPixelFeatures
+     *         draw the features smaller than LOD threshold as dots or skip them
+     */
+    public void setDrawSubPixelFeatures(boolean drawSubPixelFeatures)
+    {
+        mDrawSubPixelFeatures = drawSubPixelFeatures;
+    }
+
+
+    /**
+     * The sub-pixel features are drawn as dots of the renderer style color, a dot may stand for
+     * several features, so the dots are not drawn if the features have their own styles. The
+     * subclass which getStyle(long featureId) changes the color should override the method.
+     */
+    protected boolean isSubPixelDrawn()
+    {
+        return mDrawSubPixelFeatures;
     }
 
 
@@ -287,6 +619,10 @@ public class SimpleFeatureRenderer
             rootJsonObject.put(JSON_STYLE_KEY, mStyle.toJSON());
         }
 
+        rootJsonObject.put(JSON_LOD_THRESHOLD_KEY, mLodThreshold);
+        rootJsonObject.put(JSON_LOD_DRAW_KEY, mDrawSubPixelFeatures);
+        rootJsonObject.put(JSON_PROGRESSIVE_BUDGET_KEY, mProgressiveBudget);
+
         return rootJsonObject;
     }
 
@@ -298,6 +634,11 @@ public class SimpleFeatureRenderer
         AtomicReference<Style> reference = new AtomicReference<>();
         fromJSON(jsonObject, reference);
         mStyle = reference.get();
+        mLodThreshold =
+                (float) jsonObject.optDouble(JSON_LOD_THRESHOLD_KEY, DEFAULT_LOD_THRESHOLD);
+        mDrawSubPixelFeatures = jsonObject.optBoolean(JSON_LOD_DRAW_KEY, true);
+        mProgressiveBudget =
+                jsonObject.optLong(JSON_PROGRESSIVE_BUDGET_KEY, DEFAULT_PROGRESSIVE_BUDGET);
     }
 
     public static void fromJSON(JSONObject jsonObject, AtomicReference<Style> style) throws JSONException {
@@ -327,11 +668,21 @@ public class SimpleFeatureRenderer
         protected final int mZoom;
         protected final VectorLayer mLayer;
         protected final List<Long> mFeatureIds = new ArrayList<>(GEOMETRY_PER_TASK);
+        protected final long mDeadline;
 
         public DrawTask(final int zoom, final VectorLayer layer, final GISDisplay display) {
+            this(zoom, layer, display, 0);
+        }
+
+        /**
+         * @param deadline the time to stop drawing at, 0 to draw all features
+         */
+        public DrawTask(final int zoom, final VectorLayer layer, final GISDisplay display,
+                        final long deadline) {
             mDisplay = display;
             mZoom = zoom;
             mLayer = layer;
+            mDeadline = deadline;
         }
 
         public void addTaskData(final Long featureId){
@@ -346,15 +697,142 @@ public class SimpleFeatureRenderer
             MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
             SQLiteDatabase db = map.getDatabase(true);
 
+            int drawn = 0, culled = 0;
+            long decodeTime = 0;
             for(Long id : mFeatureIds) {
-                if(mLayer.isFeatureHidden(id))
+                if(mDeadline > 0 && System.currentTimeMillis() > mDeadline)
+                    break;
+                if(mLayer.isFeatureHidden(id)) {
+                    culled++;
                     continue;
+                }
+                long startTime = RenderMetrics.start();
                 final GeoGeometry geometry = mLayer.getGeometryForId(id, mZoom, db);
+                if (startTime != 0)
+                    decodeTime += System.nanoTime() - startTime;
                 if (geometry != null) {
                     final Style style = getStyle(id);
                     style.onDraw(geometry, mDisplay);
+                    drawn++;
                 }
             }
+
+            int layerId = mLayer.getId();
+            RenderMetrics.add(layerId, RenderMetrics.COUNT_FEATURES_DRAWN, drawn);
+            RenderMetrics.add(layerId, RenderMetrics.COUNT_FEATURES_CULLED, culled);
+            if (decodeTime > 0)
+                RenderMetrics.recordElapsed(layerId, RenderMetrics.TIME_DECODE, decodeTime);
+        }
+    }
+
+
+    protected class TileDrawTask implements Runnable {
+        protected final GISDisplay  mDisplay;
+        protected final int         mZoom;
+        protected final float       mDisplayZoom;
+        protected final double      mScale;
+        protected final TileItem    mTile;
+        protected final VectorLayer mLayer;
+
+        public TileDrawTask(
+                final int zoom,
+                final float displayZoom,
+                final double scale,
+                final TileItem tile,
+                final VectorLayer layer,
+                final GISDisplay display) {
+            mZoom = zoom;
+            mDisplayZoom = displayZoom;
+            mScale = scale;
+            mTile = tile;
+            mLayer = layer;
+            mDisplay = display;
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(
+                    Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+
+            VectorTileCache tileCache = mLayer.getTileCache();
+            if (null == tileCache)
+                return;
+
+            long decodeTime = RenderMetrics.start();
+            Bitmap bitmap = tileCache.getBitmapFromDisk(mTile, mDisplayZoom);
+            if (null != bitmap) {
+                RenderMetrics.record(mLayer.getId(), RenderMetrics.TIME_DECODE, decodeTime);
+                RenderMetrics.add(mLayer.getId(), RenderMetrics.COUNT_TILE_HITS, 1);
+                RenderMetrics.add(mLayer.getId(), RenderMetrics.COUNT_BYTES_DECODED,
+                        bitmap.getRowBytes() * bitmap.getHeight());
+            } else {
+                RenderMetrics.add(mLayer.getId(), RenderMetrics.COUNT_TILE_MISSES, 1);
+                long generation = tileCache.getGeneration();
+                bitmap = renderTile();
+                if (null == bitmap)
+                    return;
+                tileCache.putBitmap(mTile, mDisplayZoom, bitmap, generation);
+            }
+
+            mDisplay.drawTile(bitmap, mTile.getPoint(), null);
+        }
+
+        /**
+         * @return the rendered tile or null if the drawing was interrupted
+         */
+        protected Bitmap renderTile() {
+            GeoEnvelope tileEnvelope = mTile.getEnvelope();
+            int size = (int) Math.ceil(tileEnvelope.width() * mScale);
+            Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+
+            double margin = VectorTileCache.TILE_MARGIN / mScale;
+            GeoEnvelope bounds = new GeoEnvelope(
+                    tileEnvelope.getMinX() - margin, tileEnvelope.getMaxX() + margin,
+                    tileEnvelope.getMinY() - margin, tileEnvelope.getMaxY() + margin);
+            TileDisplay tileDisplay =
+                    new TileDisplay(bitmap, tileEnvelope, bounds, mDisplayZoom, mScale);
+
+            long queryTime = RenderMetrics.start();
+            List<Long> featureIds;
+            List<GeoPoint> subPixelFeatures = null;
+            if (isLodEnabled(mLayer)) {
+                if (isSubPixelDrawn())
+                    subPixelFeatures = new ArrayList<>();
+                featureIds = mLayer.query(bounds, mLodThreshold / mScale, subPixelFeatures);
+            } else {
+                featureIds = mLayer.query(bounds);
+            }
+            RenderMetrics.record(mLayer.getId(), RenderMetrics.TIME_QUERY, queryTime);
+
+            if (null != subPixelFeatures) {
+                drawSubPixelFeatures(subPixelFeatures, tileDisplay);
+                RenderMetrics.add(mLayer.getId(), RenderMetrics.COUNT_FEATURES_CULLED,
+                        subPixelFeatures.size());
+            }
+
+            MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+            SQLiteDatabase db = map.getDatabase(true);
+
+            int drawn = 0, culled = 0;
+            for (Long id : featureIds) {
+                if (Thread.currentThread().isInterrupted())
+                    return null;
+                if (mLayer.isFeatureHidden(id)) {
+                    culled++;
+                    continue;
+                }
+
+                final GeoGeometry geometry = mLayer.getGeometryForId(id, mZoom, db);
+                if (geometry != null) {
+                    final Style style = getStyle(id);
+                    style.onDraw(geometry, tileDisplay);
+                    drawn++;
+                }
+            }
+
+            RenderMetrics.add(mLayer.getId(), RenderMetrics.COUNT_FEATURES_DRAWN, drawn);
+            RenderMetrics.add(mLayer.getId(), RenderMetrics.COUNT_FEATURES_CULLED, culled);
+            return bitmap;
         }
     }
 }
@@ -31,12 +31,9 @@ import com.nextgis.maplib.api.ITextStyle;
 import com.nextgis.maplib.datasource.GeoGeometry;
 import com.nextgis.maplib.datasource.GeoLineString;
 import com.nextgis.maplib.datasource.GeoMultiLineString;
-import com.nextgis.maplib.datasource.GeoPoint;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.List;
-
 import static com.nextgis.maplib.util.Constants.*;
 import static com.nextgis.maplib.util.GeoConstants.GTLineString;
 import static com.nextgis.maplib.util.GeoConstants.GTMultiLineString;
@@ -212,17 +209,22 @@ public class SimpleLineStyle
         paint.setStrokeCap(mStrokeCap);
         paint.setStrokeWidth(scaledWidth);
 
-        List<GeoPoint> points = lineString.getPoints();
-
-        Path path = new Path();
-        path.incReserve(points.size());
-
-        path.moveTo((float) points.get(0).getX(), (float) points.get(0).getY());
+        int count = packCoordinates(lineString.getPoints(), (float) (1 / display.getScale()));
+        float[] coordinates = getCoordinates();
+        if (count < 4) {
+            return null;
+        }
 
-        for (int i = 1; i < points.size(); ++i) {
-            path.lineTo((float) points.get(i).getX(), (float) points.get(i).getY());
+        // joins are invisible on hairlines, so draw the segments in one batch
+        if (mWidth <= 1 && TextUtils.isEmpty(mText)) {
+            int segmentsCount = packSegments(coordinates, count);
+            display.drawLines(getSegments(), 0, segmentsCount, paint);
+            return null;
         }
 
+        Path path = getMainPath();
+        appendPath(path, coordinates, count, false);
+
         display.drawPath(path, paint);
 
         return path;
@@ -241,20 +243,18 @@ public class SimpleLineStyle
         paint.setStrokeCap(Paint.Cap.BUTT);
         paint.setStrokeWidth(scaledWidth);
 
-        List<GeoPoint> points = lineString.getPoints();
+        int count = packCoordinates(lineString.getPoints(), (float) (1 / display.getScale()));
+        float[] points = getCoordinates();
+        if (count < 4) {
+            return null;
+        }
 
         // workaround for "DashPathEffect/drawLine not working properly when hardwareAccelerated="true""
         // https://code.google.com/p/android/issues/detail?id=29944
 
         // get all points to the main path
-        Path mainPath = new Path();
-        mainPath.incReserve(points.size());
-
-        mainPath.moveTo((float) points.get(0).getX(), (float) points.get(0).getY());
-
-        for (int i = 1; i < points.size(); ++i) {
-            mainPath.lineTo((float) points.get(i).getX(), (float) points.get(i).getY());
-        }
+        Path mainPath = getMainPath();
+        appendPath(mainPath, points, count, false);
 
         // draw along the main path
         PathMeasure pm = new PathMeasure(mainPath, false);
@@ -265,20 +265,31 @@ public class SimpleLineStyle
         float distance = dash;
         boolean isDash = true;
 
-        Path dashPath = new Path();
-        dashPath.incReserve((int) (2 * length / (dash + gap)));
+        // the dashes are separate segments with butt caps, so draw them in one batch
+        float[] segments = getSegments();
+        int size = 4 * ((int) (length / (dash + gap)) + 2);
+        if (segments.length < size) {
+            segments = new float[size];
+            mSegments.set(segments);
+        }
 
-        dashPath.moveTo((float) points.get(0).getX(), (float) points.get(0).getY());
+        int pos = 0;
+        float startX = points[0];
+        float startY = points[1];
 
         while (distance < length) {
             // get a point from the main path
             pm.getPosTan(distance, coordinates, null);
 
             if (isDash) {
-                dashPath.lineTo(coordinates[0], coordinates[1]);
+                segments[pos++] = startX;
+                segments[pos++] = startY;
+                segments[pos++] = coordinates[0];
+                segments[pos++] = coordinates[1];
                 distance += gap;
             } else {
-                dashPath.moveTo(coordinates[0], coordinates[1]);
+                startX = coordinates[0];
+                startY = coordinates[1];
                 distance += dash;
             }
 
@@ -293,11 +304,14 @@ public class SimpleLineStyle
             if (rest > (float) (1 / display.getScale())) {
                 distance = length - 1;
                 pm.getPosTan(distance, coordinates, null);
-                dashPath.lineTo(coordinates[0], coordinates[1]);
+                segments[pos++] = startX;
+                segments[pos++] = startY;
+                segments[pos++] = coordinates[0];
+                segments[pos++] = coordinates[1];
             }
         }
 
-        display.drawPath(dashPath, paint);
+        display.drawLines(segments, 0, pos, paint);
 
         return mainPath;
     }
@@ -319,17 +333,14 @@ public class SimpleLineStyle
         edgingPaint.setStrokeCap(Paint.Cap.BUTT);
         edgingPaint.setStrokeWidth(scaledWidth * 3);
 
-        List<GeoPoint> points = lineString.getPoints();
-
-        Path path = new Path();
-        path.incReserve(points.size());
-
-        path.moveTo((float) points.get(0).getX(), (float) points.get(0).getY());
-
-        for (int i = 1; i < points.size(); ++i) {
-            path.lineTo((float) points.get(i).getX(), (float) points.get(i).getY());
+        int count = packCoordinates(lineString.getPoints(), (float) (1 / display.getScale()));
+        if (count < 4) {
+            return null;
         }
 
+        Path path = getMainPath();
+        appendPath(path, getCoordinates(), count, false);
+
         display.drawPath(path, edgingPaint);
         display.drawPath(path, mainPaint);
 
@@ -186,7 +186,9 @@ public class SimplePolygonStyle
         lnPaint.setStrokeCap(Paint.Cap.ROUND);
         lnPaint.setAntiAlias(true);
 
-        Path polygonPath = getPath(polygon);
+        // the per thread path, the polygon is drawn before the next use
+        Path polygonPath = getMainPath();
+        appendPolygon(polygonPath, polygon, (float) (1 / display.getScale()));
 
         lnPaint.setStyle(Paint.Style.STROKE);
         lnPaint.setAlpha(128);
@@ -284,18 +286,28 @@ public class SimplePolygonStyle
 
     protected Path getPath(GeoPolygon polygon)
     {
-        List<GeoPoint> points = polygon.getOuterRing().getPoints();
         Path polygonPath = new Path();
-        appendPath(polygonPath, points);
+        appendPolygon(polygonPath, polygon, 0);
+        return polygonPath;
+    }
+
+
+    /**
+     * @param tolerance
+     *         the vertices closer than tolerance to the previous one are skipped
+     */
+    private void appendPolygon(
+            Path polygonPath,
+            GeoPolygon polygon,
+            float tolerance)
+    {
+        appendPath(polygonPath, polygon.getOuterRing().getPoints(), tolerance);
 
         for (int i = 0; i < polygon.getInnerRingCount(); i++) {
-            points = polygon.getInnerRing(i).getPoints();
-            appendPath(polygonPath, points);
+            appendPath(polygonPath, polygon.getInnerRing(i).getPoints(), tolerance);
         }
 
         polygonPath.setFillType(Path.FillType.EVEN_ODD);
-
-        return polygonPath;
     }
 
 
@@ -303,21 +315,16 @@ public class SimplePolygonStyle
             Path polygonPath,
             List<GeoPoint> points)
     {
-        float x0, y0;
-
-        if (points.size() > 0) {
-            x0 = (float) points.get(0).getX();
-            y0 = (float) points.get(0).getY();
-            polygonPath.moveTo(x0, y0);
-
-            for (int i = 1; i < points.size(); i++) {
-                x0 = (float) points.get(i).getX();
-                y0 = (float) points.get(i).getY();
+        appendPath(polygonPath, points, 0);
+    }
 
-                polygonPath.lineTo(x0, y0);
-            }
 
-            polygonPath.close();
-        }
+    protected void appendPath(
+            Path polygonPath,
+            List<GeoPoint> points,
+            float tolerance)
+    {
+        int count = packCoordinates(points, tolerance);
+        appendPath(polygonPath, getCoordinates(), count, true);
     }
 }
@@ -23,11 +23,16 @@
 
 package com.nextgis.maplib.display;
 
+import android.graphics.Path;
+
 import com.nextgis.maplib.api.IJSONStore;
 import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoPoint;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.List;
+
 import static com.nextgis.maplib.util.Constants.JSON_COLOR_KEY;
 
 
@@ -36,6 +41,32 @@ public abstract class Style
 {
     protected int mColor;
 
+    // per draw thread buffers, styles are shared between the draw threads
+    protected static final ThreadLocal<float[]> mCoordinates = new ThreadLocal<float[]>()
+    {
+        @Override
+        protected float[] initialValue()
+        {
+            return new float[256];
+        }
+    };
+    protected static final ThreadLocal<float[]> mSegments = new ThreadLocal<float[]>()
+    {
+        @Override
+        protected float[] initialValue()
+        {
+            return new float[512];
+        }
+    };
+    protected static final ThreadLocal<Path> mMainPath = new ThreadLocal<Path>()
+    {
+        @Override
+        protected Path initialValue()
+        {
+            return new Path();
+        }
+    };
+
 
     public Style()
     {
@@ -91,4 +122,125 @@ public abstract class Style
     {
         mColor = jsonObject.getInt(JSON_COLOR_KEY);
     }
+
+
+    /**
+     * Pack the points coordinates to the per thread float buffer. The vertices which fall to the
+     * same pixel as the previous one are skipped, the first and the last vertices are always kept.
+     *
+     * @param points
+     *         the points to pack
+     * @param tolerance
+     *         the pixel size in map units (1 / scale)
+     *
+     * @return the count of floats written to the buffer returned by getCoordinates()
+     */
+    protected static int packCoordinates(
+            List<GeoPoint> points,
+            float tolerance)
+    {
+        int size = points.size();
+        float[] coordinates = mCoordinates.get();
+        if (coordinates.length < size * 2) {
+            coordinates = new float[size * 2];
+            mCoordinates.set(coordinates);
+        }
+
+        int count = 0;
+        int index = 0;
+        float lastX = 0, lastY = 0;
+        for (GeoPoint point : points) { // points may be a linked list, do not use get(i)
+            float x = (float) point.getX();
+            float y = (float) point.getY();
+            index++;
+
+            if (count > 0 && Math.abs(x - lastX) < tolerance && Math.abs(y - lastY) < tolerance) {
+                if (index == size && count > 2) { // move the previous vertex to the last one
+                    coordinates[count - 2] = x;
+                    coordinates[count - 1] = y;
+                }
+                continue;
+            }
+
+            coordinates[count++] = x;
+            coordinates[count++] = y;
+            lastX = x;
+            lastY = y;
+        }
+
+        return count;
+    }
+
+
+    protected static float[] getCoordinates()
+    {
+        return mCoordinates.get();
+    }
+
+
+    /**
+     * Convert the packed coordinates to the line segments suitable for Canvas.drawLines()
+     *
+     * @return the count of floats written to the buffer returned by getSegments()
+     */
+    protected static int packSegments(
+            float[] coordinates,
+            int count)
+    {
+        int size = count < 4 ? 0 : (count - 2) * 2;
+        float[] segments = mSegments.get();
+        if (segments.length < size) {
+            segments = new float[size];
+            mSegments.set(segments);
+        }
+
+        int pos = 0;
+        for (int i = 0; i < count - 2; i += 2) {
+            segments[pos++] = coordinates[i];
+            segments[pos++] = coordinates[i + 1];
+            segments[pos++] = coordinates[i + 2];
+            segments[pos++] = coordinates[i + 3];
+        }
+
+        return pos;
+    }
+
+
+    protected static float[] getSegments()
+    {
+        return mSegments.get();
+    }
+
+
+    /**
+     * @return the reset path of the current thread, valid until the next call from this thread
+     */
+    protected static Path getMainPath()
+    {
+        Path path = mMainPath.get();
+        path.reset();
+        return path;
+    }
+
+
+    protected static void appendPath(
+            Path path,
+            float[] coordinates,
+            int count,
+            boolean close)
+    {
+        if (count < 2) {
+            return;
+        }
+
+        path.incReserve(count / 2);
+        path.moveTo(coordinates[0], coordinates[1]);
+        for (int i = 2; i < count; i += 2) {
+            path.lineTo(coordinates[i], coordinates[i + 1]);
+        }
+
+        if (close) {
+            path.close();
+        }
+    }
 }
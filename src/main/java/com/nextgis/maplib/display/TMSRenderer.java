@@ -31,11 +31,14 @@ import android.graphics.Paint;
 import android.os.Build;
 import android.util.Log;
 import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.ITileOrder;
 import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplib.map.TMSLayer;
+import com.nextgis.maplib.map.TilePrefetcher;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplib.util.RenderMetrics;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -62,6 +65,7 @@ public class TMSRenderer
     protected static final String JSON_TMSRENDERER_BRIGHTNESS = "brightness";
     protected static final String JSON_TMSRENDERER_GRAYSCALE  = "greyscale";
     protected static final String JSON_TMSRENDERER_ALPHA      = "alpha";
+    protected static final String JSON_TMSRENDERER_PREFETCH   = "prefetch";
     protected ThreadPoolExecutor mDrawThreadPool;
     protected Paint              mRasterPaint;
     protected boolean            mAntiAlias;
@@ -71,6 +75,9 @@ public class TMSRenderer
     protected float              mBrightness;
     protected boolean            mForceToGrayScale;
     protected int                mAlpha;
+    protected boolean            mPrefetch;
+    protected TilePrefetcher     mPrefetcher;
+    protected ITileOrder         mTileOrder;
     //protected final Object lock = new Object();
 
 
@@ -86,6 +93,8 @@ public class TMSRenderer
         mBrightness = 0;
         mForceToGrayScale = false;
         mAlpha = 255;
+        mPrefetch = true;
+        mTileOrder = new CenterTileOrder();
 
         mRasterPaint.setAntiAlias(mAntiAlias);
         mRasterPaint.setFilterBitmap(mFilterBitmap);
@@ -107,6 +116,7 @@ public class TMSRenderer
         renderer.put(JSON_TMSRENDERER_BRIGHTNESS, mBrightness);
         renderer.put(JSON_TMSRENDERER_GRAYSCALE, mForceToGrayScale);
         renderer.put(JSON_TMSRENDERER_ALPHA, mAlpha);
+        renderer.put(JSON_TMSRENDERER_PREFETCH, mPrefetch);
         return renderer;
     }
 
@@ -126,6 +136,7 @@ public class TMSRenderer
             mAlpha = jsonObject.getInt(JSON_TMSRENDERER_ALPHA);
         else
             mAlpha = 255;
+        mPrefetch = jsonObject.optBoolean(JSON_TMSRENDERER_PREFETCH, true);
         mRasterPaint.setAntiAlias(mAntiAlias);
         mRasterPaint.setFilterBitmap(mFilterBitmap);
         mRasterPaint.setDither(mDither);
@@ -220,16 +231,18 @@ public class TMSRenderer
         //get tiled for zoom and bounds
         final TMSLayer tmsLayer = (TMSLayer) getLayer();
 
-        if (tmsLayer instanceof RemoteTMSLayer) {
-            RemoteTMSLayer remoteTMSLayer = (RemoteTMSLayer) tmsLayer;
-            remoteTMSLayer.onPrepare();
-        }
-
+        long queryTime = RenderMetrics.start();
         final List<TileItem> tiles = MapUtil.getTileItems(display.getBounds(), zoom, tmsLayer.getTMSType());
+        // the tiles are drawn and downloaded in this order
+        if (null != mTileOrder) {
+            mTileOrder.order(tiles, display.getBounds());
+        }
+        RenderMetrics.record(tmsLayer.getId(), RenderMetrics.TIME_QUERY, queryTime);
         if (tiles.size() == 0) {
             return;
         }
 
+        long prepareTime = RenderMetrics.start();
         cancelDraw();
 
         int threadCount = DRAWING_SEPARATE_THREADS;
@@ -258,6 +271,9 @@ public class TMSRenderer
                 }
             });
         //}
+        RenderMetrics.record(tmsLayer.getId(), RenderMetrics.TIME_PREPARE, prepareTime);
+
+        long drawTime = RenderMetrics.start();
 
         // http://developer.android.com/reference/java/util/concurrent/ExecutorCompletionService.html
         int tilesSize = tiles.size();
@@ -280,7 +296,24 @@ public class TMSRenderer
                                     android.os.Process.setThreadPriority(
                                             Constants.DEFAULT_DRAW_THREAD_PRIORITY);
 
-                                    final Bitmap bmp = tmsLayer.getBitmap(tile);
+                                    long decodeTime = RenderMetrics.start();
+                                    Bitmap bmp = tmsLayer.getCachedBitmap(tile);
+                                    RenderMetrics.record(
+                                            tmsLayer.getId(), RenderMetrics.TIME_DECODE, decodeTime);
+
+                                    if (bmp == null) {
+                                        // draw the scaled cached tiles until the tile is loaded
+                                        Bitmap fallback = tmsLayer.getFallbackBitmap(tile);
+                                        if (fallback != null) {
+                                            display.drawTile(fallback, tile.getPoint(), mRasterPaint);
+                                        }
+
+                                        // the caches are already checked above
+                                        if (tmsLayer instanceof RemoteTMSLayer) {
+                                            bmp = ((RemoteTMSLayer) tmsLayer).getRemoteBitmap(tile);
+                                        }
+                                    }
+
                                     if (bmp != null) {
                                         display.drawTile(bmp, tile.getPoint(), mRasterPaint);
                                     }
@@ -315,8 +348,14 @@ public class TMSRenderer
             }
         }
 
+        RenderMetrics.record(tmsLayer.getId(), RenderMetrics.TIME_DRAW, drawTime);
         tmsLayer.onDrawFinished(tmsLayer.getId(), 1.0f);
 
+        // load the tiles around while the view is not changed
+        if (mPrefetch && !Thread.currentThread().isInterrupted()) {
+            getPrefetcher().prefetch(display.getBounds(), zoom, tiles);
+        }
+
         if(Constants.DEBUG_MODE) {
             long stopTime = System.currentTimeMillis();
             long elapsedTime = stopTime - startTime;
@@ -326,9 +365,22 @@ public class TMSRenderer
     }
 
 
+    protected synchronized TilePrefetcher getPrefetcher()
+    {
+        if (null == mPrefetcher) {
+            mPrefetcher = new TilePrefetcher((TMSLayer) getLayer());
+        }
+        return mPrefetcher;
+    }
+
+
     @Override
     public void cancelDraw()
     {
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
+
         if (mDrawThreadPool != null) {
             //synchronized (lock) {
                 mDrawThreadPool.shutdownNow();
@@ -371,6 +423,33 @@ public class TMSRenderer
         }
     }
 
+    public boolean isPrefetch() {
+        return mPrefetch;
+    }
+
+    /**
+     * @param prefetch load the tiles around the visible area and of the next and previous zoom
+     *                 levels after drawing
+     */
+    public void setPrefetch(boolean prefetch) {
+        mPrefetch = prefetch;
+        if (!mPrefetch && mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
+    }
+
+    public ITileOrder getTileOrder() {
+        return mTileOrder;
+    }
+
+    /**
+     * @param tileOrder the tiles drawing order, i.e. {@link PanTileOrder}, null to draw the tiles
+     *                  column by column
+     */
+    public void setTileOrder(ITileOrder tileOrder) {
+        mTileOrder = tileOrder;
+    }
+
     public boolean isAntiAlias() {
         return mAntiAlias;
     }
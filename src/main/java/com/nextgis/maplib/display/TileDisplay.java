@@ -0,0 +1,86 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+
+
+/**
+ * The offscreen display to render a vector layer to the single tile bitmap. The styles draw to
+ * this display the same way as to the map display.
+ */
+public class TileDisplay
+        extends GISDisplay
+{
+    /**
+     * @param bitmap
+     *         the bitmap to draw to, its size is the tile size at the scale
+     * @param tileEnvelope
+     *         the tile envelope in map units
+     * @param bounds
+     *         the envelope to query the features, may be wider than the tile to catch the strokes
+     *         and labels of the neighbour features
+     * @param zoom
+     *         the map zoom level
+     * @param scale
+     *         the map scale (pixels per map unit)
+     */
+    public TileDisplay(
+            Bitmap bitmap,
+            GeoEnvelope tileEnvelope,
+            GeoEnvelope bounds,
+            float zoom,
+            double scale)
+    {
+        super();
+
+        mZoomLevel = zoom;
+        mScale = scale;
+        mInvertScale = 1 / scale;
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
+        mCenter = tileEnvelope.getCenter();
+        mCurrentBounds = new GeoEnvelope(bounds);
+        mScreenBounds = new GeoEnvelope(0, mWidth, 0, mHeight);
+        mOffScreenBounds = mScreenBounds;
+
+        mTransformMatrix.postTranslate(
+                (float) -tileEnvelope.getMinX(), (float) -tileEnvelope.getMaxY());
+        mTransformMatrix.postScale((float) mScale, (float) -mScale);
+        mTransformMatrix.invert(mInvertTransformMatrix);
+
+        mMainBitmap = bitmap;
+        mMainCanvas = new Canvas(bitmap);
+        mMainCanvas.setMatrix(mTransformMatrix);
+    }
+
+
+    public Bitmap getBitmap()
+    {
+        return mMainBitmap;
+    }
+}
@@ -35,6 +35,7 @@ import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.datasource.GeoLineString;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.TrackLayer;
+import com.nextgis.maplib.util.RenderMetrics;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -85,15 +86,19 @@ public class TrackRenderer
     public void runDraw(GISDisplay display)
     {
         final TrackLayer layer = (TrackLayer) getLayer();
+        long queryTime = RenderMetrics.start();
 
         mPaint.setStrokeWidth((float) Math.ceil(4 / display.getScale()));
 
         Map<Integer, GeoLineString> trackLines = layer.getTracks();
+        RenderMetrics.record(layer.getId(), RenderMetrics.TIME_QUERY, queryTime);
         int trackLinesSize = trackLines.size();
         if (trackLinesSize < 1) {
             return;
         }
 
+        long drawTime = RenderMetrics.start();
+
         int i = 0;
         int nStep = trackLinesSize / 10;
         if(nStep == 0)
@@ -140,6 +145,9 @@ public class TrackRenderer
             if(i % nStep == 0) //0..10..20..30..40..50..60..70..80..90..100
                 layer.onDrawFinished(layer.getId(), percent);
         }
+
+        RenderMetrics.add(layer.getId(), RenderMetrics.COUNT_FEATURES_DRAWN, i);
+        RenderMetrics.record(layer.getId(), RenderMetrics.TIME_DRAW, drawTime);
     }
 
 
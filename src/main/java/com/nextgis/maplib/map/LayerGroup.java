@@ -34,6 +34,7 @@ import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.display.GISDisplay;
 import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.RenderMetrics;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -281,7 +282,10 @@ public class LayerGroup
                             // Log.d(Constants.TAG, "Layer Draw Index: " + mLayerDrawIndex);
 
                             IRenderer renderer = (IRenderer) layer;
+                            long startTime = RenderMetrics.start();
                             renderer.runDraw(mDisplay);
+                            RenderMetrics.record(layer.getId(), RenderMetrics.TIME_TOTAL, startTime);
+                            RenderMetrics.onLayerDrawn(layer.getId());
 
                         }
                     }
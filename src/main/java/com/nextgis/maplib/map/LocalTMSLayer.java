@@ -25,7 +25,6 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 
@@ -42,7 +41,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -80,7 +82,7 @@ public class LocalTMSLayer
     @Override
     public Bitmap getBitmap(TileItem tile)
     {
-        Bitmap ret = getBitmapFromCache(tile.getHash());
+        Bitmap ret = getBitmapFromCache(tile.getKey());
         if (null != ret) {
             if(Constants.DEBUG_MODE) {
                 Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap from cache for: " + tile.toString());
@@ -90,12 +92,18 @@ public class LocalTMSLayer
 
         TileCacheLevelDescItem item = mLimits.get(tile.getZoomLevel());
         boolean isInside = item != null && item.isInside(tile.getX(), tile.getY());
+        if (isInside && null != getStorage()) {
+            ret = getBitmapFromStorage(tile);
+            putBitmapToCache(tile.getKey(), ret);
+            return ret;
+        }
+
         if (isInside) {
             File tilePath = new File(mPath, tile.toString() + TILE_EXT);
             boolean isExist = tilePath.exists();
             if (isExist) {
-                ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-                putBitmapToCache(tile.getHash(), ret);
+                ret = mTileCache.getBitmapFromDisk(tilePath);
+                putBitmapToCache(tile.getKey(), ret);
                 if(Constants.DEBUG_MODE) {
                     Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap for: " + tile.toString() + ", path " + tilePath.getAbsolutePath() + " is valid - " + (ret != null));
                 }
@@ -182,10 +190,95 @@ public class LocalTMSLayer
     }
 
 
+    /**
+     * Copy the MBTiles file to the layer folder, the limits are read from it
+     */
+    public void fillFromMBTiles(Uri uri, IProgressor progressor) throws IOException, NGException, RuntimeException {
+        InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new NGException(mContext.getString(R.string.error_download_data));
+        }
+
+        int streamSize = inputStream.available();
+        if(null != progressor){
+            progressor.setMax(streamSize);
+        }
+
+        File storagePath = new File(mPath, MBTilesStorage.MBTILES_FILE);
+        OutputStream outputStream = new FileOutputStream(storagePath);
+        byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+        int increment = 0;
+        int len;
+        try {
+            while ((len = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, len);
+                increment += len;
+                if (null != progressor) {
+                    if (progressor.isCanceled())
+                        return;
+                    progressor.setValue(increment);
+                }
+            }
+        } finally {
+            outputStream.close();
+            inputStream.close();
+        }
+
+        fillLimitsFromStorage(progressor);
+        save();
+    }
+
+
+    protected void fillLimitsFromStorage(IProgressor progressor) throws NGException {
+        if(null != progressor){
+            progressor.setMessage(mContext.getString(R.string.message_opening));
+        }
+
+        resetStorage();
+        MBTilesStorage storage = getStorage();
+        if (null == storage)
+            throw new NGException("Invalid content or zip structure");
+
+        Map<Integer, int[]> limits = storage.getLimits(mTMSType);
+        for (Map.Entry<Integer, int[]> entry : limits.entrySet()) {
+            int[] limit = entry.getValue();
+            addLimits(entry.getKey(), limit[1], limit[3], limit[0], limit[2]);
+        }
+    }
+
+
+    /**
+     * @return true if the MBTiles file was found in the layer folder and moved to the storage
+     * path
+     */
+    protected boolean findStorage() {
+        File storagePath = new File(mPath, MBTilesStorage.MBTILES_FILE);
+        if (storagePath.exists())
+            return true;
+
+        File[] files = mPath.listFiles();
+        if (null == files)
+            return false;
+
+        for (File file : files) {
+            if (file.isFile() && MBTilesStorage.isMBTiles(file))
+                return file.renameTo(storagePath);
+        }
+        return false;
+    }
+
+
     @Override
     public void fillFromZip(Uri uri, IProgressor progressor) throws IOException, NGException, RuntimeException {
         fillFromZipInt(uri, progressor);
 
+        // the package with the single MBTiles file
+        if (findStorage()) {
+            fillLimitsFromStorage(progressor);
+            save();
+            return;
+        }
+
         int nMaxLevel = 0;
         int nMinLevel = 512;
         final File[] zoomLevels = mPath.listFiles();
@@ -370,6 +463,19 @@ public class LocalTMSLayer
         return env;
     }
 
+    @Override
+    public int getSourceMaxZoom() {
+        if (null == mLimits || mLimits.isEmpty())
+            return super.getSourceMaxZoom();
+
+        int maxZoom = 0;
+        for (Integer key : mLimits.keySet()) {
+            if (key > maxZoom)
+                maxZoom = key;
+        }
+        return maxZoom;
+    }
+
     @Override
     public boolean isValid() {
         return null != mLimits;
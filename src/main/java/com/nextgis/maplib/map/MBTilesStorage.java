@@ -0,0 +1,319 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.util.Log;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The tiles storage in the single MBTiles (https://github.com/mapbox/mbtiles-spec) SQLite file.
+ * The tile rows are stored in TMS scheme and flipped for the OSM tiles.
+ */
+public class MBTilesStorage
+{
+    public static final String MBTILES_FILE = "tiles.mbtiles";
+    public static final String MBTILES_EXT  = ".mbtiles";
+
+    protected static final String TABLE_METADATA = "metadata";
+    protected static final String TABLE_TILES    = "tiles";
+    protected static final String FIELD_NAME     = "name";
+    protected static final String FIELD_VALUE    = "value";
+    protected static final String FIELD_ZOOM     = "zoom_level";
+    protected static final String FIELD_COLUMN   = "tile_column";
+    protected static final String FIELD_ROW      = "tile_row";
+    protected static final String FIELD_DATA     = "tile_data";
+    protected static final String META_BOUNDS    = "bounds";
+    protected static final String META_MINZOOM   = "minzoom";
+    protected static final String META_MAXZOOM   = "maxzoom";
+
+    protected static final String TILE_WHERE =
+            FIELD_ZOOM + " = ? AND " + FIELD_COLUMN + " = ? AND " + FIELD_ROW + " = ?";
+
+    protected final File           mPath;
+    protected final SQLiteDatabase mDatabase;
+
+
+    /**
+     * Open or create the storage
+     *
+     * @throws SQLiteException
+     *         if the file is not a database
+     */
+    public MBTilesStorage(File path)
+            throws SQLiteException
+    {
+        mPath = path;
+        mDatabase = SQLiteDatabase.openDatabase(
+                path.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+
+        mDatabase.execSQL(
+                "CREATE TABLE IF NOT EXISTS " + TABLE_METADATA + " (" + FIELD_NAME + " TEXT, " +
+                        FIELD_VALUE + " TEXT)");
+        mDatabase.execSQL(
+                "CREATE TABLE IF NOT EXISTS " + TABLE_TILES + " (" + FIELD_ZOOM + " INTEGER, " +
+                        FIELD_COLUMN + " INTEGER, " + FIELD_ROW + " INTEGER, " + FIELD_DATA +
+                        " BLOB)");
+        mDatabase.execSQL(
+                "CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON " + TABLE_TILES + " (" +
+                        FIELD_ZOOM + ", " + FIELD_COLUMN + ", " + FIELD_ROW + ")");
+    }
+
+
+    public File getPath()
+    {
+        return mPath;
+    }
+
+
+    public byte[] getTile(
+            int zoom,
+            int x,
+            int y,
+            int tmsType)
+    {
+        String[] args = new String[] {
+                Integer.toString(zoom),
+                Integer.toString(x),
+                Integer.toString(getRow(zoom, y, tmsType))};
+
+        Cursor cursor;
+        try {
+            cursor = mDatabase.query(
+                    TABLE_TILES, new String[] {FIELD_DATA}, TILE_WHERE, args, null, null, null);
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        byte[] data = null;
+        if (null != cursor) {
+            if (cursor.moveToFirst()) {
+                data = cursor.getBlob(0);
+            }
+            cursor.close();
+        }
+        return data;
+    }
+
+
+    public Bitmap getBitmap(
+            int zoom,
+            int x,
+            int y,
+            int tmsType)
+    {
+        byte[] data = getTile(zoom, x, y, tmsType);
+        if (null == data) {
+            return null;
+        }
+        return TileDecoder.decodeByteArray(data, 0, data.length);
+    }
+
+
+    public boolean putTile(
+            int zoom,
+            int x,
+            int y,
+            int tmsType,
+            byte[] data)
+    {
+        ContentValues values = new ContentValues();
+        values.put(FIELD_ZOOM, zoom);
+        values.put(FIELD_COLUMN, x);
+        values.put(FIELD_ROW, getRow(zoom, y, tmsType));
+        values.put(FIELD_DATA, data);
+        return mDatabase.insertWithOnConflict(
+                TABLE_TILES, null, values, SQLiteDatabase.CONFLICT_REPLACE) != Constants.NOT_FOUND;
+    }
+
+
+    public String getMetadata(String name)
+    {
+        Cursor cursor = mDatabase.query(
+                TABLE_METADATA, new String[] {FIELD_VALUE}, FIELD_NAME + " = ?",
+                new String[] {name}, null, null, null);
+
+        String value = null;
+        if (null != cursor) {
+            if (cursor.moveToFirst()) {
+                value = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        return value;
+    }
+
+
+    public void setMetadata(
+            String name,
+            String value)
+    {
+        mDatabase.delete(TABLE_METADATA, FIELD_NAME + " = ?", new String[] {name});
+        ContentValues values = new ContentValues();
+        values.put(FIELD_NAME, name);
+        values.put(FIELD_VALUE, value);
+        mDatabase.insert(TABLE_METADATA, null, values);
+    }
+
+
+    /**
+     * Get the tile limits of each zoom level. The limits are calculated from the metadata bounds
+     * and zoom range if present, otherwise the tiles table index is scanned.
+     *
+     * @return the map of zoom level to {minX, maxX, minY, maxY} in the tmsType scheme
+     */
+    public Map<Integer, int[]> getLimits(int tmsType)
+    {
+        Map<Integer, int[]> limits = getLimitsFromMetadata(tmsType);
+        if (null != limits) {
+            return limits;
+        }
+
+        limits = new HashMap<>();
+        Cursor cursor = mDatabase.rawQuery(
+                "SELECT " + FIELD_ZOOM + ", MIN(" + FIELD_COLUMN + "), MAX(" + FIELD_COLUMN +
+                        "), MIN(" + FIELD_ROW + "), MAX(" + FIELD_ROW + ") FROM " + TABLE_TILES +
+                        " GROUP BY " + FIELD_ZOOM, null);
+        if (null != cursor) {
+            if (cursor.moveToFirst()) {
+                do {
+                    int zoom = cursor.getInt(0);
+                    int minY = getRow(zoom, cursor.getInt(3), tmsType);
+                    int maxY = getRow(zoom, cursor.getInt(4), tmsType);
+                    limits.put(zoom, new int[] {
+                            cursor.getInt(1),
+                            cursor.getInt(2),
+                            Math.min(minY, maxY),
+                            Math.max(minY, maxY)});
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+        }
+        return limits;
+    }
+
+
+    protected Map<Integer, int[]> getLimitsFromMetadata(int tmsType)
+    {
+        String bounds = getMetadata(META_BOUNDS);
+        String minZoom = getMetadata(META_MINZOOM);
+        String maxZoom = getMetadata(META_MAXZOOM);
+        if (null == bounds || null == minZoom || null == maxZoom) {
+            return null;
+        }
+
+        try {
+            String[] values = bounds.split(",");
+            if (values.length != 4) {
+                return null;
+            }
+            double minLon = Double.parseDouble(values[0].trim());
+            double minLat = Double.parseDouble(values[1].trim());
+            double maxLon = Double.parseDouble(values[2].trim());
+            double maxLat = Double.parseDouble(values[3].trim());
+
+            Map<Integer, int[]> limits = new HashMap<>();
+            int max = Integer.parseInt(maxZoom.trim());
+            for (int zoom = Integer.parseInt(minZoom.trim()); zoom <= max; zoom++) {
+                int minX = getColumn(zoom, minLon);
+                int maxX = getColumn(zoom, maxLon);
+                // the rows grow to the south in OSM scheme and to the north in TMS scheme
+                int minY = getOSMRow(zoom, maxLat);
+                int maxY = getOSMRow(zoom, minLat);
+                if (tmsType != GeoConstants.TMSTYPE_OSM) {
+                    int count = 1 << zoom;
+                    minY = count - 1 - minY;
+                    maxY = count - 1 - maxY;
+                }
+                limits.put(zoom, new int[] {minX, maxX, Math.min(minY, maxY), Math.max(minY, maxY)});
+            }
+            return limits;
+        } catch (NumberFormatException e) {
+            Log.d(Constants.TAG, "Invalid MBTiles metadata " + bounds + " " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+
+    protected static int getColumn(
+            int zoom,
+            double lon)
+    {
+        int count = 1 << zoom;
+        int x = (int) Math.floor((lon + 180) / 360 * count);
+        return Math.max(0, Math.min(count - 1, x));
+    }
+
+
+    protected static int getOSMRow(
+            int zoom,
+            double lat)
+    {
+        int count = 1 << zoom;
+        double latRad = Math.toRadians(Math.max(-85.0511, Math.min(85.0511, lat)));
+        int y = (int) Math.floor(
+                (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * count);
+        return Math.max(0, Math.min(count - 1, y));
+    }
+
+
+    /**
+     * Convert the tile row between the tmsType scheme and the TMS scheme of MBTiles. The
+     * conversion is symmetric.
+     */
+    protected static int getRow(
+            int zoom,
+            int y,
+            int tmsType)
+    {
+        if (tmsType == GeoConstants.TMSTYPE_OSM) {
+            return (1 << zoom) - 1 - y;
+        }
+        return y;
+    }
+
+
+    public void close()
+    {
+        mDatabase.close();
+    }
+
+
+    public static boolean isMBTiles(File path)
+    {
+        return path.getName().toLowerCase().endsWith(MBTILES_EXT);
+    }
+}
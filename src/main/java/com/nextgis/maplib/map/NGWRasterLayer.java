@@ -172,7 +172,7 @@ public class NGWRasterLayer extends RemoteTMSLayer implements INGWLayer {
     }
 
     @Override
-    public Bitmap getBitmap(TileItem tile) {
+    public Bitmap getRemoteBitmap(TileItem tile) {
         if (!mExtentReceived) {
             try {
                 AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, getAccountName());
@@ -190,7 +190,7 @@ public class NGWRasterLayer extends RemoteTMSLayer implements INGWLayer {
 
         if (mExtents.isInit())
             if (mExtents.intersects(tile.getEnvelope()))
-                return super.getBitmap(tile);
+                return super.getRemoteBitmap(tile);
 
         return null;
     }
@@ -50,11 +50,13 @@ import com.nextgis.maplib.datasource.GeoGeometryFactory;
 import com.nextgis.maplib.datasource.ngw.Connection;
 import com.nextgis.maplib.datasource.ngw.SyncAdapter;
 import com.nextgis.maplib.util.AccountUtil;
+import com.nextgis.maplib.util.AttachTransfer;
 import com.nextgis.maplib.util.AttachItem;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.DatabaseContext;
 import com.nextgis.maplib.util.FeatureChanges;
 import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.HttpClient;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplib.util.NGException;
 import com.nextgis.maplib.util.NGWUtil;
@@ -71,23 +73,36 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.ProtocolException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.nextgis.maplib.util.Constants.CHANGE_OPERATION_ATTACH;
 import static com.nextgis.maplib.util.Constants.CHANGE_OPERATION_TEMP;
 import static com.nextgis.maplib.util.Constants.FIELD_ATTACH_ID;
 import static com.nextgis.maplib.util.Constants.FIELD_ATTACH_OPERATION;
 import static com.nextgis.maplib.util.Constants.FIELD_FEATURE_ID;
+import static com.nextgis.maplib.util.Constants.FIELD_GEOM;
+import static com.nextgis.maplib.util.Constants.FIELD_HASH;
 import static com.nextgis.maplib.util.Constants.FIELD_ID;
 import static com.nextgis.maplib.util.Constants.FIELD_OPERATION;
 import static com.nextgis.maplib.util.Constants.MIN_LOCAL_FEATURE_ID;
@@ -108,6 +123,8 @@ public class NGWVectorLayer
     protected static final String JSON_SERVERWHERE_KEY       = "server_where";
     protected static final String JSON_TRACKED_KEY           = "tracked";
     protected static final String JSON_SYNC_DIRECTION_KEY    = "sync_direction";
+    protected static final String JSON_DOWNLOAD_OFFSET_KEY   = "download_offset";
+    protected static final String JSON_SYNC_OFFSET_KEY       = "sync_offset";
 
     protected static final int TYPE_CHANGES_TABLE     = 125;
     protected static final int TYPE_CHANGES_FEATURE   = 126;
@@ -118,6 +135,30 @@ public class NGWVectorLayer
     protected static final int DIRECTION_FROM = 2;
     protected static final int DIRECTION_BOTH = 3;
 
+    // the local rows are read by this count of the server features while syncing
+    protected static final int SYNC_BATCH_SIZE = 500;
+    // the features are downloaded by pages, the next pages are downloaded while the current one
+    // is written
+    protected static final int FEATURES_PAGE_SIZE     = 1000;
+    protected static final int FEATURES_PAGE_PREFETCH = 2;
+    // the features missed by the multi-page sync are requested one by one before the deletion,
+    // the rest are checked by the next syncs
+    protected static final int SYNC_DELETE_CHECKS     = 100;
+    protected static final long STREAM_POLL_INTERVAL  = 100; // ms
+    // the local changes are sent by batches to the server which supports it, the parallel
+    // requests are used otherwise
+    protected static final int UPLOAD_BATCH_SIZE = 100;
+    protected static final int UPLOAD_THREADS    = 4;
+
+    // the patchFeaturesOnServer() results
+    protected static final int PATCH_SENT        = 0;
+    protected static final int PATCH_FAILED      = 1;
+    protected static final int PATCH_REJECTED    = 2;
+    protected static final int PATCH_UNSUPPORTED = 3;
+
+    protected static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    protected static final long FNV_PRIME        = 0x100000001b3L;
+
     protected static boolean mIsAddedToUriMatcher = false;
 
     protected NetworkUtil mNet;
@@ -133,6 +174,16 @@ public class NGWVectorLayer
     protected String mServerWhere;
     protected boolean mTracked;
     protected int mSyncDirection = DIRECTION_BOTH; //1 - to server only, 2 - from server only, 3 - both directions
+    // the count of the server features read by the interrupted download or sync, 0 if completed
+    protected long mDownloadOffset;
+    protected long mSyncOffset;
+    // false if the server refused the batch upload, checked once per layer instance
+    protected boolean mBatchUpload = true;
+    // false if the server refused the resumable upload, the files are uploaded by the threads
+    protected volatile boolean mResumableUpload = true;
+    // the layers created before the content hash have no hash column, null if not checked yet
+    protected Boolean mHasHashColumn;
+    protected String[] mHashFields;
     //check where to sync on GSM/WI-FI for data/attachments
 
 
@@ -243,6 +294,8 @@ public class NGWVectorLayer
         rootConfig.put(JSON_TRACKED_KEY, mTracked);
         rootConfig.put(GeoConstants.GEOJSON_CRS, mCRS);
         rootConfig.put(JSON_SYNC_DIRECTION_KEY, mSyncDirection);
+        rootConfig.put(JSON_DOWNLOAD_OFFSET_KEY, mDownloadOffset);
+        rootConfig.put(JSON_SYNC_OFFSET_KEY, mSyncOffset);
 
         return rootConfig;
     }
@@ -270,6 +323,8 @@ public class NGWVectorLayer
         mNGWLayerType = jsonObject.optInt(JSON_NGWLAYER_TYPE_KEY, Constants.LAYERTYPE_NGW_VECTOR);
         mServerWhere = jsonObject.optString(JSON_SERVERWHERE_KEY);
         mSyncDirection = jsonObject.optInt(JSON_SYNC_DIRECTION_KEY, DIRECTION_BOTH);
+        mDownloadOffset = jsonObject.optLong(JSON_DOWNLOAD_OFFSET_KEY);
+        mSyncOffset = jsonObject.optLong(JSON_SYNC_OFFSET_KEY);
     }
 
 
@@ -327,7 +382,8 @@ public class NGWVectorLayer
 
 
     /**
-     * download and create new NGW layer from GeoJSON data
+     * download and create new NGW layer from GeoJSON data, the interrupted download continues
+     * from the last saved page
      */
     public void createFromNGW(IProgressor progressor)
             throws NGException, IOException, JSONException, SQLiteException
@@ -398,7 +454,11 @@ public class NGWVectorLayer
             throw new NGException(getContext().getString(R.string.error_crs_unsupported));
         }
 
-        create(geomType, fields);
+        // the table is kept with the features of the downloaded pages
+        if (mDownloadOffset == 0 || !isPaged()) {
+            mDownloadOffset = 0;
+            create(geomType, fields);
+        }
 
         String sURL = getFeaturesUrl(accountData);
         if (Constants.DEBUG_MODE) {
@@ -446,72 +506,327 @@ public class NGWVectorLayer
             notifyLayerChanged();
         } else {
             // get features and fill them
-            HttpURLConnection urlConnection = NetworkUtil.getHttpConnection("GET", sURL, accountData.login, accountData.password);
-            if (null == urlConnection) {
-                if (Constants.DEBUG_MODE)
-                    Log.d(TAG, "Error get connection object: " + sURL);
+            SQLiteDatabase db = DatabaseContext.getDbForLayer(this);
+
+            if (null != progressor) {
+                progressor.setIndeterminate(true);
+                progressor.setMessage(getContext().getString(R.string.start_fill_layer) + " " + getName());
+            }
+
+            FeaturePager pager = new FeaturePager(sURL, accountData.login, accountData.password, fields, mDownloadOffset);
+            int featureCount = 0;
+            try {
+                FeaturePage page;
+                while (null != (page = pager.next())) {
+                    db.beginTransaction();
+                    try {
+                        for (Feature feature : page.mFeatures) {
+                            createFeatureBatch(feature, db);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    featureCount += page.mFeatures.size();
+
+                    // the checkpoint to continue the interrupted download
+                    if (isPaged()) {
+                        mDownloadOffset = page.mOffset + page.mCount;
+                        save();
+                    }
 
+                    if (null != progressor) {
+                        if (progressor.isCanceled()) {
+                            save();
+                            return;
+                        }
+                        progressor.setMessage(getContext().getString(R.string.process_features) + ": " + featureCount);
+                    }
+                }
+            } catch (OutOfMemoryError | IllegalStateException | IOException | NumberFormatException | InterruptedException e) {
+                e.printStackTrace();
                 if (null != progressor)
-                    progressor.setMessage(getContext().getString(R.string.error_connect_failed));
+                    throw new NGException(getContext().getString(R.string.error_download_data));
 
+                save();
                 return;
+            } finally {
+                pager.close();
             }
 
-            InputStream in = new ProgressBufferedInputStream(urlConnection.getInputStream(), urlConnection.getContentLength());
-            JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
-            reader.beginArray();
+            mDownloadOffset = 0;
+            mTracked = vectorLayerJSONObject.optBoolean(JSON_TRACKED_KEY);
 
-            SQLiteDatabase db = DatabaseContext.getDbForLayer(this);
+            save();
 
-            int streamSize = in.available();
-            if (null != progressor) {
-                progressor.setIndeterminate(false);
-                if (streamSize > 0)
-                    progressor.setMax(streamSize);
-                progressor.setMessage(getContext().getString(R.string.start_fill_layer) + " " + getName());
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "feature count: " + featureCount);
             }
+        }
+    }
 
-            int featureCount = 0;
-            while (reader.hasNext()) {
-                try {
-                    final Feature feature = NGWUtil.readNGWFeature(reader, fields, mCRS);
+
+    /**
+     * @return true if the server features are downloaded by pages
+     */
+    protected boolean isPaged()
+    {
+        return mNgwVersionMajor >= Constants.NGW_v3;
+    }
+
+
+    /**
+     * The features page, the count includes the skipped features without geometry
+     */
+    protected static class FeaturePage
+    {
+        protected final long          mOffset;
+        protected final List<Feature> mFeatures;
+        protected final int           mCount;
+        protected final boolean       mIsLast;
+
+
+        public FeaturePage(
+                long offset,
+                List<Feature> features,
+                int count,
+                boolean isLast)
+        {
+            mOffset = offset;
+            mFeatures = features;
+            mCount = count;
+            mIsLast = isLast;
+        }
+    }
+
+
+    /**
+     * Download and parse the feature pages in background. The pages next to the current one are
+     * downloaded while it is written. The layer without paging support is read from the single
+     * response by the pages of the same size, the next pages are read while the current one is
+     * written.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    protected class FeaturePager
+    {
+        protected final String      mUrl;
+        protected final String      mLogin;
+        protected final String      mPassword;
+        protected final List<Field> mFields;
+        protected final int         mPageSize;
+        protected final ExecutorService                mExecutor;
+        protected final LinkedList<Future<FeaturePage>> mPages;
+        protected final BlockingQueue<FeaturePage>      mStreamPages;
+        protected       Future<Void>                    mStream;
+        protected long    mNextOffset;
+        protected boolean mIsFinished;
+
+
+        public FeaturePager(
+                String url,
+                String login,
+                String password,
+                List<Field> fields,
+                long offset)
+        {
+            mUrl = url;
+            mLogin = login;
+            mPassword = password;
+            mFields = fields;
+            mPageSize = isPaged() ? FEATURES_PAGE_SIZE : 0;
+            mNextOffset = offset;
+            mExecutor = Executors.newSingleThreadExecutor();
+            mPages = new LinkedList<>();
+            mStreamPages = new ArrayBlockingQueue<>(FEATURES_PAGE_PREFETCH);
+
+            if (mPageSize > 0) {
+                for (int i = 0; i < FEATURES_PAGE_PREFETCH; i++) {
+                    submitNext();
+                }
+            } else {
+                mStream = mExecutor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                            throws Exception
+                    {
+                        streamPages();
+                        return null;
+                    }
+                });
+            }
+        }
+
+
+        protected void submitNext()
+        {
+            final long offset = mNextOffset;
+            mNextOffset += mPageSize;
+            mPages.add(mExecutor.submit(new Callable<FeaturePage>()
+            {
+                @Override
+                public FeaturePage call()
+                        throws Exception
+                {
+                    return readPage(offset);
+                }
+            }));
+        }
+
+
+        protected FeaturePage readPage(long offset)
+                throws IOException
+        {
+            String url = NGWUtil.getFeaturesPageUrl(mUrl, mPageSize, offset);
+            if (Constants.DEBUG_MODE) {
+                Log.d(TAG, "url: " + url);
+            }
+
+            HttpClient.Response response = HttpClient.getInstance().execute("GET", url, mLogin,
+                    mPassword, HttpClient.REQUEST_FEATURE, null);
+            if (null == response) {
+                throw new IOException("Error get connection object: " + url);
+            }
+
+            List<Feature> features = new ArrayList<>(mPageSize);
+            int count = 0;
+            try {
+                HttpURLConnection urlConnection = response.getConnection();
+                InputStream in = NetworkUtil.getInputStream(urlConnection, new ProgressBufferedInputStream(response.getRawInputStream(), urlConnection.getContentLength()));
+                JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    final Feature feature = NGWUtil.readNGWFeature(reader, mFields, mCRS);
+                    count++;
                     if (feature.getGeometry() == null || !feature.getGeometry().isValid())
                         continue;
+                    features.add(feature);
+                }
+                reader.endArray();
+                reader.close();
+            } finally {
+                response.close();
+            }
 
-                    createFeatureBatch(feature, db);
-                } catch (OutOfMemoryError | IllegalStateException | IOException | NumberFormatException e) {
-                    e.printStackTrace();
-                    if (null != progressor)
-                        throw new NGException(getContext().getString(R.string.error_download_data));
+            // the server which ignores the limit returns all features at once
+            return new FeaturePage(offset, features, count, count != mPageSize);
+        }
 
-                    save();
-                    return;
-                }
 
-                if (null != progressor) {
-                    if (progressor.isCanceled()) {
-                        save();
-                        return;
+        /**
+         * Read the whole features response by the pages, the reading waits while the prefetched
+         * pages are not taken
+         */
+        protected void streamPages()
+                throws IOException, InterruptedException
+        {
+            if (Constants.DEBUG_MODE) {
+                Log.d(TAG, "url: " + mUrl);
+            }
+
+            HttpClient.Response response = HttpClient.getInstance().execute("GET", mUrl, mLogin,
+                    mPassword, HttpClient.REQUEST_FEATURE, null);
+            if (null == response) {
+                throw new IOException("Error get connection object: " + mUrl);
+            }
+
+            try {
+                HttpURLConnection urlConnection = response.getConnection();
+                InputStream in = NetworkUtil.getInputStream(urlConnection, new ProgressBufferedInputStream(response.getRawInputStream(), urlConnection.getContentLength()));
+                JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+                reader.beginArray();
+                long offset = 0;
+                boolean hasNext = true;
+                while (hasNext) {
+                    List<Feature> features = new ArrayList<>(FEATURES_PAGE_SIZE);
+                    int count = 0;
+                    while (count < FEATURES_PAGE_SIZE && (hasNext = reader.hasNext())) {
+                        final Feature feature = NGWUtil.readNGWFeature(reader, mFields, mCRS);
+                        count++;
+                        if (feature.getGeometry() == null || !feature.getGeometry().isValid())
+                            continue;
+                        features.add(feature);
+                    }
+
+                    if (!hasNext) {
+                        reader.endArray();
+                        reader.close();
                     }
-                    progressor.setValue(streamSize - in.available());
-                    progressor.setMessage(getContext().getString(R.string.process_features) + ": " + featureCount);
+                    mStreamPages.put(new FeaturePage(offset, features, count, !hasNext));
+                    offset += count;
                 }
+            } finally {
+                response.close();
+            }
+        }
+
 
-                ++featureCount;
+        /**
+         * @return the next page or null if all features are read
+         */
+        public FeaturePage next()
+                throws IOException, InterruptedException
+        {
+            if (mIsFinished) {
+                return null;
             }
-            reader.endArray();
-            reader.close();
-            //db.close();
 
-            urlConnection.disconnect();
-            mTracked = vectorLayerJSONObject.optBoolean(JSON_TRACKED_KEY);
+            FeaturePage page = mPageSize > 0 ? getResult(mPages.removeFirst()) : takeStreamed();
+            if (page.mIsLast) {
+                mIsFinished = true;
+                close();
+            } else if (mPageSize > 0) {
+                submitNext();
+            }
+            return page;
+        }
 
-            save();
 
-            if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "feature count: " + featureCount);
+        protected FeaturePage takeStreamed()
+                throws IOException, InterruptedException
+        {
+            while (true) {
+                FeaturePage page = mStreamPages.poll(STREAM_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (null != page) {
+                    return page;
+                }
+
+                if (mStream.isDone()) {
+                    page = mStreamPages.poll();
+                    if (null != page) {
+                        return page;
+                    }
+                    // throws the reading error
+                    getResult(mStream);
+                    throw new IOException("The features response is ended unexpectedly");
+                }
+            }
+        }
+
+
+        protected <T> T getResult(Future<T> future)
+                throws IOException, InterruptedException
+        {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
             }
         }
+
+
+        public void close()
+        {
+            mExecutor.shutdownNow();
+        }
     }
 
 
@@ -528,10 +843,136 @@ public class NGWVectorLayer
         }
 
         super.create(geometryType, fields);
+        mHashFields = null;
+        addHashColumn();
         FeatureChanges.initialize(getChangeTableName());
     }
 
 
+    /**
+     * The content hash of the server feature is stored with the row, the unchanged server features
+     * are skipped while syncing without reading the local rows. The local writes reset the hash.
+     */
+    protected boolean hasHashColumn()
+    {
+        if (null == mHasHashColumn) {
+            MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+            SQLiteDatabase db = map.getDatabase(true);
+            Cursor cursor = db.query(mPath.getName(), null, null, null, null, null, null, "0");
+            try {
+                mHasHashColumn = cursor.getColumnIndex(FIELD_HASH) >= 0;
+            } finally {
+                cursor.close();
+            }
+        }
+        return mHasHashColumn;
+    }
+
+
+    protected void addHashColumn()
+            throws SQLiteException
+    {
+        if (hasHashColumn()) {
+            return;
+        }
+
+        MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+        SQLiteDatabase db = map.getDatabase(false);
+        db.execSQL("ALTER TABLE " + mPath.getName() + " ADD COLUMN " + FIELD_HASH + " INTEGER");
+        mHasHashColumn = true;
+    }
+
+
+    /**
+     * FNV-1a hash of the feature values as they are written to the row, the attachments of the
+     * server feature are included to find their changes too.
+     */
+    protected long getContentHash(
+            ContentValues values,
+            Feature feature)
+    {
+        if (null == mHashFields) {
+            mHashFields = mFields.keySet().toArray(new String[mFields.size()]);
+            Arrays.sort(mHashFields);
+        }
+
+        long hash = FNV_OFFSET_BASIS;
+        byte[] geometry = values.getAsByteArray(FIELD_GEOM);
+        if (null != geometry) {
+            for (byte b : geometry) {
+                hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            }
+        }
+
+        for (String name : mHashFields) {
+            hash = (hash ^ 0xff) * FNV_PRIME;
+            Object value = values.get(name);
+            if (null != value) {
+                hash = getContentHash(hash, value.toString());
+            }
+        }
+
+        Map<String, AttachItem> attaches = feature.getAttachments();
+        if (null != attaches && !attaches.isEmpty()) {
+            String[] attachIds = attaches.keySet().toArray(new String[attaches.size()]);
+            Arrays.sort(attachIds);
+            for (String attachId : attachIds) {
+                AttachItem item = attaches.get(attachId);
+                hash = (hash ^ 0xfe) * FNV_PRIME;
+                hash = getContentHash(hash, attachId);
+                hash = getContentHash(hash, item.getDisplayName());
+                hash = getContentHash(hash, item.getDescription());
+                hash = getContentHash(hash, item.getMimetype());
+            }
+        }
+
+        return hash;
+    }
+
+
+    protected static long getContentHash(
+            long hash,
+            String value)
+    {
+        hash = (hash ^ 0xfd) * FNV_PRIME;
+        if (null != value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+
+    @Override
+    protected ContentValues getFeatureContentValues(Feature feature)
+    {
+        ContentValues values = super.getFeatureContentValues(feature);
+        if (hasHashColumn()) {
+            values.put(FIELD_HASH, getContentHash(values, feature));
+        }
+        return values;
+    }
+
+
+    @Override
+    protected int update(
+            long rowId,
+            ContentValues values,
+            String selection,
+            String[] selectionArgs)
+    {
+        // the row may differ from the server feature now
+        if (null != values && values.size() > 0 && !values.containsKey(FIELD_HASH)
+                && hasHashColumn()) {
+            values.putNull(FIELD_HASH);
+        }
+        return super.update(rowId, values, selection, selectionArgs);
+    }
+
+
     @Override
     public void addChange(
             long featureId,
@@ -664,12 +1105,36 @@ public class NGWVectorLayer
         }
 
         // 3. send current changes
-        if (isRemoteSendAllowed())
+        if (isRemoteSendAllowed()) {
             if (!sendLocalChanges(syncResult)) {
                 if (Constants.DEBUG_MODE) {
                     Log.d(Constants.TAG, "Set local changes failed");
                 }
             }
+        } else {
+            // the changes are kept until the sending is allowed, keep the change log short
+            compactChanges();
+        }
+    }
+
+
+    /**
+     * Folds the change log records of every feature and attachment into their net effect. Runs
+     * before the changes are sent and can be run by the application at any time.
+     *
+     * @return the count of the removed change records
+     */
+    public int compactChanges()
+    {
+        if (0 == (mSyncType & (Constants.SYNC_DATA | Constants.SYNC_ATTACH))) {
+            return 0;
+        }
+
+        int count = FeatureChanges.compact(getChangeTableName());
+        if (Constants.DEBUG_MODE && count > 0) {
+            Log.d(Constants.TAG, "compactChanges: " + count + " records removed");
+        }
+        return count;
     }
 
     private boolean isRemoteGetAllowed() {
@@ -691,6 +1156,7 @@ public class NGWVectorLayer
     public boolean sendLocalChanges(SyncResult syncResult)
     {
         String changeTableName = getChangeTableName();
+        compactChanges();
         long changesCount = FeatureChanges.getChangeCount(changeTableName);
         if (Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "sendLocalChanges: " + changesCount);
@@ -701,127 +1167,47 @@ public class NGWVectorLayer
         }
 
         boolean isError = false;
+        ExecutorService executor = null;
 
         try {
-            // get column's IDs, there is at least one entry
-            Cursor changeCursor = FeatureChanges.getFirstChangeFromRecordId(changeTableName, 0);
-            changeCursor.moveToFirst();
-
-            int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
-            int featureIdColumn = changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
-            int operationColumn = changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
-            int attachIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ATTACH_ID);
-            int attachOperationColumn =
-                    changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
-
-            long nextChangeRecordId = changeCursor.getLong(recordIdColumn);
-
-            changeCursor.close();
-
-            while (true) {
-
-                changeCursor = FeatureChanges.getFirstChangeFromRecordId(changeTableName,
-                        nextChangeRecordId);
+            List<ChangeRecord> records = readChangeRecords(changeTableName);
+            if (records.isEmpty()) {
+                return true;
+            }
 
-                if (null == changeCursor) {
-                    break;
-                }
+            // the changes made while sending are sent by the next sync
+            long lastChangeRecordId = records.get(records.size() - 1).mRecordId;
+            executor = Executors.newFixedThreadPool(UPLOAD_THREADS);
+
+            List<ChangeRecord> featureRecords = new ArrayList<>();
+            List<ChangeRecord> attachRecords = new ArrayList<>();
+            for (ChangeRecord record : records) {
+                if (0 == (record.mOperation & Constants.CHANGE_OPERATION_ATTACH)) {
+                    if (!sendAttachChanges(attachRecords, lastChangeRecordId, executor,
+                            syncResult)) {
+                        isError = true;
+                    }
+                    attachRecords.clear();
 
-                if (!changeCursor.moveToFirst()) {
-                    // no more change records
-                    changeCursor.close();
-                    break;
+                    featureRecords.add(record);
+                    continue;
                 }
 
-                long changeRecordId = changeCursor.getLong(recordIdColumn);
-                nextChangeRecordId = changeRecordId + 1;
-
-                long changeFeatureId = changeCursor.getLong(featureIdColumn);
-                int changeOperation = changeCursor.getInt(operationColumn);
-                long changeAttachId = changeCursor.getLong(attachIdColumn);
-                int changeAttachOperation = changeCursor.getInt(attachOperationColumn);
-
-                changeCursor.close();
-
-                long lastChangeRecordId = FeatureChanges.getLastChangeRecordId(changeTableName);
-
-                if (0 == (changeOperation & Constants.CHANGE_OPERATION_ATTACH)) {
-
-                    if (0 != (changeOperation & Constants.CHANGE_OPERATION_DELETE)) {
-                        if (deleteFeatureOnServer(changeFeatureId, syncResult)) {
-                            FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
-                        } else {
-                            isError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(Constants.TAG, "proceed deleteFeatureOnServer() failed");
-                            }
-                        }
-
-                    } else if (0 != (changeOperation & Constants.CHANGE_OPERATION_NEW)) {
-                        if (addFeatureOnServer(changeFeatureId, syncResult)) {
-                            FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
-                            FeatureChanges.removeChangesToLast(changeTableName, changeFeatureId,
-                                    Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
-                        } else {
-                            isError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(Constants.TAG, "proceed addFeatureOnServer() failed");
-                            }
-                        }
-
-                    } else if (0 != (changeOperation & Constants.CHANGE_OPERATION_CHANGED)) {
-                        if (changeFeatureOnServer(changeFeatureId, syncResult)) {
-                            FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
-                            FeatureChanges.removeChangesToLast(changeTableName, changeFeatureId,
-                                    Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
-                        } else {
-                            isError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(Constants.TAG, "proceed changeFeatureOnServer() failed");
-                            }
-                        }
-                    }
+                // the feature should be on the server before its attachments
+                if (!sendFeatureChanges(featureRecords, lastChangeRecordId, executor,
+                        syncResult)) {
+                    isError = true;
                 }
+                featureRecords.clear();
 
-                //process attachments
-                else { // 0 != (changeOperation & CHANGE_OPERATION_ATTACH)
-
-                    if (changeAttachOperation == Constants.CHANGE_OPERATION_DELETE) {
-                        if (deleteAttachOnServer(changeFeatureId, changeAttachId, syncResult)) {
-                            FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
-                        } else {
-                            isError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(Constants.TAG, "proceed deleteAttachOnServer() failed");
-                            }
-                        }
-
-                    } else if (changeAttachOperation == Constants.CHANGE_OPERATION_NEW) {
-                        if (sendAttachOnServer(changeFeatureId, changeAttachId, syncResult)) {
-                            FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
-                            FeatureChanges.removeAttachChangesToLast(changeTableName,
-                                    changeFeatureId, changeAttachId,
-                                    Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
-                        } else {
-                            isError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(Constants.TAG, "proceed sendAttachOnServer() failed");
-                            }
-                        }
+                attachRecords.add(record);
+            }
 
-                    } else if (changeAttachOperation == Constants.CHANGE_OPERATION_CHANGED) {
-                        if (changeAttachOnServer(changeFeatureId, changeAttachId, syncResult)) {
-                            FeatureChanges.removeAttachChangesToLast(changeTableName,
-                                    changeFeatureId, changeAttachId,
-                                    Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
-                        } else {
-                            isError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(Constants.TAG, "proceed changeAttachOnServer() failed");
-                            }
-                        }
-                    }
-                }
+            if (!sendFeatureChanges(featureRecords, lastChangeRecordId, executor, syncResult)) {
+                isError = true;
+            }
+            if (!sendAttachChanges(attachRecords, lastChangeRecordId, executor, syncResult)) {
+                isError = true;
             }
 
             // check records count changing
@@ -838,37 +1224,407 @@ public class NGWVectorLayer
                 Log.d(Constants.TAG, "proceed sendLocalChanges() failed");
             }
             e.printStackTrace();
+        } finally {
+            if (null != executor) {
+                executor.shutdownNow();
+            }
         }
 
         return !isError;
     }
 
 
-    private boolean changeAttachOnServer(
-            long featureId,
-            long attachId,
-            SyncResult syncResult)
+    protected static class ChangeRecord
     {
-        if (!mNet.isNetworkAvailable()) {
-            syncResult.stats.numIoExceptions++;
-            return false;
-        }
+        protected long mRecordId;
+        protected long mFeatureId;
+        protected int  mOperation;
+        protected long mAttachId;
+        protected int  mAttachOperation;
+    }
 
-        AttachItem attach = getAttach("" + featureId, "" + attachId);
-        if (null == attach) {   // just remove buggy item
-            return true;
+
+    protected List<ChangeRecord> readChangeRecords(String changeTableName)
+    {
+        List<ChangeRecord> records = new ArrayList<>();
+        Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
+        if (null == changeCursor) {
+            return records;
         }
 
         try {
-            AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
-            JSONObject putData = new JSONObject();
-            //putData.put(JSON_ID_KEY, attach.getAttachId());
-            putData.put(Constants.JSON_NAME_KEY, attach.getDisplayName());
-            //putData.put("mime_type", attach.getMimetype());
+            if (changeCursor.moveToFirst()) {
+                int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
+                int featureIdColumn = changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
+                int operationColumn = changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
+                int attachIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ATTACH_ID);
+                int attachOperationColumn =
+                        changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
+
+                do {
+                    ChangeRecord record = new ChangeRecord();
+                    record.mRecordId = changeCursor.getLong(recordIdColumn);
+                    record.mFeatureId = changeCursor.getLong(featureIdColumn);
+                    record.mOperation = changeCursor.getInt(operationColumn);
+                    record.mAttachId = changeCursor.getLong(attachIdColumn);
+                    record.mAttachOperation = changeCursor.getInt(attachOperationColumn);
+                    records.add(record);
+                } while (changeCursor.moveToNext());
+            }
+        } finally {
+            changeCursor.close();
+        }
+
+        return records;
+    }
+
+
+    protected boolean sendFeatureChanges(
+            List<ChangeRecord> records,
+            long lastChangeRecordId,
+            ExecutorService executor,
+            SyncResult syncResult)
+            throws SQLiteException
+    {
+        if (records.isEmpty()) {
+            return true;
+        }
+
+        // the first new or change record sends the feature state,
+        // the later change records of the feature are removed with it
+        List<ChangeRecord> upserts = new ArrayList<>();
+        List<ChangeRecord> deletes = new ArrayList<>();
+        List<Long> sentIds = new ArrayList<>();
+        for (ChangeRecord record : records) {
+            if (0 != (record.mOperation & Constants.CHANGE_OPERATION_DELETE)) {
+                deletes.add(record);
+            } else if (0 != (record.mOperation & (Constants.CHANGE_OPERATION_NEW
+                    | Constants.CHANGE_OPERATION_CHANGED))
+                    && !sentIds.contains(record.mFeatureId)) {
+                sentIds.add(record.mFeatureId);
+                upserts.add(record);
+            }
+        }
+
+        boolean isError = false;
+        List<ChangeRecord> singles = new ArrayList<>();
+        int sent = 0;
+        while (sent < upserts.size() && mBatchUpload && mNgwVersionMajor >= Constants.NGW_v3) {
+            int end = Math.min(sent + UPLOAD_BATCH_SIZE, upserts.size());
+            List<ChangeRecord> batch = upserts.subList(sent, end);
+            int result = patchFeaturesOnServer(batch, syncResult);
+            if (PATCH_UNSUPPORTED == result) {
+                break;
+            }
+
+            if (PATCH_SENT == result) {
+                for (ChangeRecord record : batch) {
+                    removeSentChanges(record, lastChangeRecordId);
+                }
+            } else if (PATCH_REJECTED == result) {
+                // the bad feature should not block the rest of the batch
+                singles.addAll(batch);
+            } else {
+                isError = true;
+            }
+            sent = end;
+        }
+
+        // the batch is refused, send the rest by the single feature requests
+        singles.addAll(upserts.subList(sent, upserts.size()));
+        // the feature may be created on the server and deleted locally in the same run
+        singles.addAll(deletes);
+        if (!sendFeatureChangesParallel(singles, lastChangeRecordId, executor, syncResult)) {
+            isError = true;
+        }
+
+        return !isError;
+    }
+
+
+    protected boolean sendFeatureChangesParallel(
+            List<ChangeRecord> records,
+            long lastChangeRecordId,
+            ExecutorService executor,
+            final SyncResult syncResult)
+            throws SQLiteException
+    {
+        // the deletion after the creation of the same feature should wait for it
+        List<Future<Long>> results = new ArrayList<>(records.size());
+        List<ChangeRecord> pending = new ArrayList<>();
+        boolean isError = false;
+
+        for (final ChangeRecord record : records) {
+            if (0 != (record.mOperation & Constants.CHANGE_OPERATION_DELETE)
+                    && !pending.isEmpty() && isPending(pending, record.mFeatureId)) {
+                if (!waitFeatureChanges(pending, results, lastChangeRecordId, syncResult)) {
+                    isError = true;
+                }
+                pending.clear();
+                results.clear();
+            }
+
+            pending.add(record);
+            results.add(executor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call()
+                        throws Exception
+                {
+                    // the stats counters are only checked for non zero after the sync,
+                    // the feature id is changed by the sync thread
+                    boolean isSent;
+                    if (0 != (record.mOperation & Constants.CHANGE_OPERATION_DELETE)) {
+                        isSent = deleteFeatureOnServer(record.mFeatureId, syncResult);
+                    } else if (0 != (record.mOperation & Constants.CHANGE_OPERATION_NEW)) {
+                        return addFeatureOnServer(record.mFeatureId, syncResult);
+                    } else {
+                        isSent = changeFeatureOnServer(record.mFeatureId, syncResult);
+                    }
+                    return isSent ? record.mFeatureId : Constants.NOT_FOUND;
+                }
+            }));
+        }
+
+        if (!waitFeatureChanges(pending, results, lastChangeRecordId, syncResult)) {
+            isError = true;
+        }
+
+        return !isError;
+    }
+
+
+    protected static boolean isPending(
+            List<ChangeRecord> pending,
+            long featureId)
+    {
+        for (ChangeRecord record : pending) {
+            if (record.mFeatureId == featureId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Wait for the sent changes and remove them from the change log. The new features get the
+     * server ids here, so the features table and the attachments are changed by one thread.
+     *
+     * @param results
+     *         the feature ids on the server or {@link Constants#NOT_FOUND} if not sent
+     */
+    protected boolean waitFeatureChanges(
+            List<ChangeRecord> records,
+            List<Future<Long>> results,
+            long lastChangeRecordId,
+            SyncResult syncResult)
+            throws SQLiteException
+    {
+        boolean isError = false;
+        for (int i = 0; i < records.size(); i++) {
+            ChangeRecord record = records.get(i);
+            boolean isSent;
+            try {
+                long serverId = results.get(i).get();
+                isSent = serverId != Constants.NOT_FOUND;
+                if (isSent && 0 != (record.mOperation & Constants.CHANGE_OPERATION_NEW)) {
+                    changeFeatureId(record.mFeatureId, serverId);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                log(e, "waitFeatureChanges Exception");
+                isSent = false;
+            } catch (SQLiteConstraintException e) {
+                log(e, "waitFeatureChanges SQLiteConstraintException");
+                syncResult.stats.numConflictDetectedExceptions++;
+                isSent = false;
+            }
+
+            if (isSent) {
+                removeSentChanges(record, lastChangeRecordId);
+            } else {
+                isError = true;
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "proceed feature change " + record.mFeatureId
+                            + " with operation " + record.mOperation + " failed");
+                }
+            }
+        }
+        return !isError;
+    }
+
+
+    protected void removeSentChanges(
+            ChangeRecord record,
+            long lastChangeRecordId)
+    {
+        String changeTableName = getChangeTableName();
+        FeatureChanges.removeChangeRecord(changeTableName, record.mRecordId);
+        if (0 == (record.mOperation & Constants.CHANGE_OPERATION_DELETE)) {
+            FeatureChanges.removeChangesToLast(changeTableName, record.mFeatureId,
+                    Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
+        }
+    }
+
+
+    // the feature id of the attachment record is changed if its feature is created on the server
+    protected long getChangeFeatureId(ChangeRecord record)
+    {
+        Cursor cursor = FeatureChanges.query(getChangeTableName(),
+                new String[] {Constants.FIELD_FEATURE_ID},
+                Constants.FIELD_ID + " = " + record.mRecordId, null, null, null);
+        if (null == cursor) {
+            return record.mFeatureId;
+        }
+
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : record.mFeatureId;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * The new attachment files are uploaded in parallel, the attachments are added to the
+     * features and the change records are removed in order by the calling thread.
+     */
+    protected boolean sendAttachChanges(
+            List<ChangeRecord> records,
+            long lastChangeRecordId,
+            ExecutorService executor,
+            SyncResult syncResult)
+    {
+        if (records.isEmpty()) {
+            return true;
+        }
+
+        Map<Long, Future<String>> uploads = new HashMap<>();
+        if (mNet.isNetworkAvailable()) {
+            for (ChangeRecord record : records) {
+                if (record.mAttachOperation != Constants.CHANGE_OPERATION_NEW) {
+                    continue;
+                }
+
+                final long featureId = getChangeFeatureId(record);
+                final AttachItem attach = getAttach("" + featureId, "" + record.mAttachId);
+                if (null == attach) {
+                    continue;
+                }
+
+                uploads.put(record.mRecordId, executor.submit(new Callable<String>()
+                {
+                    @Override
+                    public String call()
+                            throws Exception
+                    {
+                        return uploadAttachFile(featureId, attach);
+                    }
+                }));
+            }
+        }
+
+        boolean isError = false;
+        for (ChangeRecord record : records) {
+            if (!sendAttachChange(record, lastChangeRecordId, uploads.get(record.mRecordId),
+                    syncResult)) {
+                isError = true;
+            }
+        }
+        return !isError;
+    }
+
+
+    protected boolean sendAttachChange(
+            ChangeRecord record,
+            long lastChangeRecordId,
+            SyncResult syncResult)
+    {
+        return sendAttachChange(record, lastChangeRecordId, null, syncResult);
+    }
+
+
+    /**
+     * @param upload
+     *         the upload of the new attachment file started by {@link #sendAttachChanges}, may be
+     *         null
+     */
+    protected boolean sendAttachChange(
+            ChangeRecord record,
+            long lastChangeRecordId,
+            Future<String> upload,
+            SyncResult syncResult)
+    {
+        String changeTableName = getChangeTableName();
+        long changeFeatureId = getChangeFeatureId(record);
+        long changeAttachId = record.mAttachId;
+        int changeAttachOperation = record.mAttachOperation;
+
+        if (changeAttachOperation == Constants.CHANGE_OPERATION_DELETE) {
+            if (deleteAttachOnServer(changeFeatureId, changeAttachId, syncResult)) {
+                FeatureChanges.removeChangeRecord(changeTableName, record.mRecordId);
+            } else {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "proceed deleteAttachOnServer() failed");
+                }
+                return false;
+            }
+
+        } else if (changeAttachOperation == Constants.CHANGE_OPERATION_NEW) {
+            if (sendAttachOnServer(changeFeatureId, changeAttachId, upload, syncResult)) {
+                FeatureChanges.removeChangeRecord(changeTableName, record.mRecordId);
+                FeatureChanges.removeAttachChangesToLast(changeTableName,
+                        changeFeatureId, changeAttachId,
+                        Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
+            } else {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "proceed sendAttachOnServer() failed");
+                }
+                return false;
+            }
+
+        } else if (changeAttachOperation == Constants.CHANGE_OPERATION_CHANGED) {
+            if (changeAttachOnServer(changeFeatureId, changeAttachId, syncResult)) {
+                FeatureChanges.removeAttachChangesToLast(changeTableName,
+                        changeFeatureId, changeAttachId,
+                        Constants.CHANGE_OPERATION_CHANGED, lastChangeRecordId);
+            } else {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "proceed changeAttachOnServer() failed");
+                }
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private boolean changeAttachOnServer(
+            long featureId,
+            long attachId,
+            SyncResult syncResult)
+    {
+        if (!mNet.isNetworkAvailable()) {
+            syncResult.stats.numIoExceptions++;
+            return false;
+        }
+
+        AttachItem attach = getAttach("" + featureId, "" + attachId);
+        if (null == attach) {   // just remove buggy item
+            return true;
+        }
+
+        try {
+            AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
+            JSONObject putData = new JSONObject();
+            //putData.put(JSON_ID_KEY, attach.getAttachId());
+            putData.put(Constants.JSON_NAME_KEY, attach.getDisplayName());
+            //putData.put("mime_type", attach.getMimetype());
             putData.put("description", attach.getDescription());
 
             String url = NGWUtil.getFeatureAttachmentUrl(accountData.url, mRemoteId, featureId) + attachId;
-            String data = NetworkUtil.put(url, putData.toString(), accountData.login, accountData.password);
+            String data = NetworkUtil.put(url, putData.toString(), accountData.login, accountData.password, HttpClient.REQUEST_ATTACH);
 
             if (MapUtil.isParsable(data)) {
                 log(syncResult, data);
@@ -907,7 +1663,7 @@ public class NGWVectorLayer
 
             if (!NetworkUtil.delete(
                     NGWUtil.getFeatureAttachmentUrl(accountData.url, mRemoteId, featureId)
-                            + attachId, accountData.login, accountData.password)) {
+                            + attachId, accountData.login, accountData.password, HttpClient.REQUEST_ATTACH)) {
 
                 syncResult.stats.numIoExceptions++;
                 return false;
@@ -930,6 +1686,16 @@ public class NGWVectorLayer
             long featureId,
             long attachId,
             SyncResult syncResult)
+    {
+        return sendAttachOnServer(featureId, attachId, null, syncResult);
+    }
+
+
+    protected boolean sendAttachOnServer(
+            long featureId,
+            long attachId,
+            Future<String> upload,
+            SyncResult syncResult)
     {
         if (!mNet.isNetworkAvailable()) {
             syncResult.stats.numIoExceptions++;
@@ -941,45 +1707,20 @@ public class NGWVectorLayer
             return true;
         }
 
-        // fill attach info
-        String fileName = attach.getDisplayName();
-        File filePath = new File(mPath, featureId + File.separator + attach.getAttachId());
-        String fileMime = attach.getMimetype();
-
         try {
             // get account data
             AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
 
             // upload file
-            String url = NGWUtil.getFileUploadUrl(accountData.url);
-            String data = NetworkUtil.postFile(url, fileName, filePath, fileMime, accountData.login, accountData.password);
+            String data = null == upload ? uploadAttachFile(featureId, attach) : getUpload(upload);
             if (MapUtil.isParsable(data)) {
                 log(syncResult, data);
                 return false;
             }
 
-            // get attach info
-            JSONObject result = new JSONObject(data);
-            if (!result.has("upload_meta")) {
-                if (Constants.DEBUG_MODE) {
-                    Log.d(Constants.TAG, "Problem sendAttachOnServer(), result has not upload_meta, result: " + result.toString());
-                }
-                syncResult.stats.numParseExceptions++;
-                return false;
-            }
-
-            JSONArray uploadMetaArray = result.getJSONArray("upload_meta");
-            if (uploadMetaArray.length() == 0) {
-                if (Constants.DEBUG_MODE) {
-                    Log.d(Constants.TAG, "Problem sendAttachOnServer(), result upload_meta length() == 0");
-                }
-                syncResult.stats.numParseExceptions++;
-                return false;
-            }
-
             // add attachment to row
             JSONObject postJsonData = new JSONObject();
-            postJsonData.put("file_upload", uploadMetaArray.get(0));
+            postJsonData.put("file_upload", new JSONObject(data));
             postJsonData.put("description", attach.getDescription());
             String postload = postJsonData.toString();
             if (Constants.DEBUG_MODE) {
@@ -987,15 +1728,15 @@ public class NGWVectorLayer
             }
 
             // update record in NGW
-            url = NGWUtil.getFeatureAttachmentUrl(accountData.url, mRemoteId, featureId);
-            data = NetworkUtil.post(url, postload, accountData.login, accountData.password);
+            String url = NGWUtil.getFeatureAttachmentUrl(accountData.url, mRemoteId, featureId);
+            data = NetworkUtil.post(url, postload, accountData.login, accountData.password, HttpClient.REQUEST_ATTACH);
             if (MapUtil.isParsable(data)) {
                 log(syncResult, data);
                 return false;
             }
 
             // set new local id for attach
-            result = new JSONObject(data);
+            JSONObject result = new JSONObject(data);
             if (!result.has(Constants.JSON_ID_KEY)) {
                 if (Constants.DEBUG_MODE) {
                     Log.d(Constants.TAG, "Problem sendAttachOnServer(), result has not ID key, result: " + result.toString());
@@ -1024,6 +1765,120 @@ public class NGWVectorLayer
     }
 
 
+    protected String getUpload(Future<String> upload)
+            throws IOException, JSONException
+    {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the attachment upload");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            }
+            if (cause instanceof IllegalStateException) {
+                throw (IllegalStateException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+
+    /**
+     * Uploads the attachment file by the chunks if the server supports the resumable upload, the
+     * interrupted upload is continued by the next sync. The file is posted entirely otherwise.
+     *
+     * @return the upload meta or the HTTP response code if it is not success
+     */
+    protected String uploadAttachFile(
+            long featureId,
+            AttachItem attach)
+            throws IOException, JSONException
+    {
+        // fill attach info
+        String fileName = attach.getDisplayName();
+        File filePath = new File(mPath, featureId + File.separator + attach.getAttachId());
+        String fileMime = attach.getMimetype();
+
+        // get account data
+        AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
+
+        if (mResumableUpload && mNgwVersionMajor >= Constants.NGW_v3) {
+            JSONObject uploadMeta = AttachTransfer.upload(
+                    NGWUtil.getFileUploadTusUrl(accountData.url), filePath, fileName, fileMime,
+                    accountData.login, accountData.password, getPreferences(),
+                    getUploadKey(featureId, attach.getAttachId()));
+            if (null != uploadMeta) {
+                return uploadMeta.toString();
+            }
+            mResumableUpload = false;
+        }
+
+        String url = NGWUtil.getFileUploadUrl(accountData.url);
+        String data = NetworkUtil.postFile(url, fileName, filePath, fileMime, accountData.login, accountData.password);
+        if (MapUtil.isParsable(data)) {
+            return data;
+        }
+
+        // get attach info
+        JSONObject result = new JSONObject(data);
+        if (!result.has("upload_meta")) {
+            throw new JSONException("Result has not upload_meta, result: " + result.toString());
+        }
+
+        JSONArray uploadMetaArray = result.getJSONArray("upload_meta");
+        if (uploadMetaArray.length() == 0) {
+            throw new JSONException("Result upload_meta length() == 0");
+        }
+
+        return uploadMetaArray.getJSONObject(0).toString();
+    }
+
+
+    protected static String getUploadKey(
+            long featureId,
+            String attachId)
+    {
+        return "attach_upload_" + featureId + "_" + attachId;
+    }
+
+
+    /**
+     * Downloads the attachment file from the server, the interrupted download is continued by the
+     * next call if the server file is not changed
+     *
+     * @return true if the file is downloaded
+     */
+    public boolean downloadAttach(
+            long featureId,
+            long attachId)
+    {
+        if (!mNet.isNetworkAvailable()) {
+            return false;
+        }
+
+        try {
+            AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
+            String url = NGWUtil.getFeatureAttachmentDownloadUrl(accountData.url, mRemoteId,
+                    featureId, attachId);
+            File filePath = new File(mPath, featureId + File.separator + attachId);
+            return AttachTransfer.download(url, filePath, accountData.login,
+                    accountData.password);
+        } catch (IOException e) {
+            log(e, "downloadAttach IOException");
+            return false;
+        } catch (IllegalStateException e) {
+            log(e, "downloadAttach IllegalStateException");
+            return false;
+        }
+    }
+
+
     protected void log(SyncResult syncResult, String code) {
         int responseCode = Integer.parseInt(code);
         switch (responseCode) {
@@ -1110,238 +1965,577 @@ public class NGWVectorLayer
     }
 
 
-    public boolean getChangesFromServer(
-            String authority,
-            SyncResult syncResult)
-    {
-        if (!mNet.isNetworkAvailable()) {
-            return false;
-        }
+    public boolean getChangesFromServer(
+            String authority,
+            SyncResult syncResult)
+    {
+        if (!mNet.isNetworkAvailable()) {
+            return false;
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "The network is available. Get changes from server");
+        }
+
+        try {
+            addHashColumn();
+        } catch (SQLiteException e) {
+            // the features are compared without the hash
+            log(e, "getChangesFromServer(): add hash column failed");
+        }
+
+        if (!mTracked && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return getChangesFromServerStreamed(authority, syncResult);
+        }
+
+        List<Feature> features, added = null, deleted = null, changed = null;
+        List<Long> deleteItems = new ArrayList<>();
+        SyncDiff diff = null;
+        HashMap<Integer, List<Feature>> tracked = getFeatures(syncResult, mTracked);
+
+        if (tracked == null)
+            return false;
+
+        if (mTracked) {
+            added = tracked.get(0);
+            changed = tracked.get(1);
+            deleted = tracked.get(2);
+            features = new ArrayList<>();
+            features.addAll(added);
+            features.addAll(changed);
+            features.addAll(deleted);
+
+            if (Constants.DEBUG_MODE) {
+                Log.d(TAG, "Layer " + mName + " is tracked for history");
+                Log.d(Constants.TAG, "added: " + added.size() + " | changed: " + changed.size() + " | deleted: " + deleted.size());
+            }
+        } else
+            features = tracked.get(0);
+
+        if (features == null)
+            return false;
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "Got " + features.size() + " feature(s) from server");
+        }
+
+        try {
+            if (!mCacheLoaded) {
+                reloadCache();
+            }
+
+            String changeTableName = getChangeTableName();
+            if (mTracked) {
+                if (added != null)
+                    for (Feature remoteFeature : added) {
+                        Cursor cursor = query(null, Constants.FIELD_ID + " = " + remoteFeature.getId(), null, null, null);
+                        boolean hasFeature = false;
+                        if (cursor != null) {
+                            if (cursor.moveToFirst()){
+                                compareFeature(cursor, authority, remoteFeature, changeTableName);
+                                hasFeature = true;
+                            }
+
+                            cursor.close();
+                        }
+
+                        if (!hasFeature)
+                            createNewFeature(remoteFeature, authority);
+                    }
+
+                if (changed != null)
+                    for (Feature remoteFeature : changed) {
+                        Cursor cursor = query(null, Constants.FIELD_ID + " = " + remoteFeature.getId(), null, null, null);
+                        compareFeature(cursor, authority, remoteFeature, changeTableName);
+                        cursor.close();
+                    }
+
+                if (deleted != null) {
+                    for (Feature remoteFeature : deleted)
+                        deleteItems.add(remoteFeature.getId());
+
+                    deleteFeatures(deleteItems);
+                }
+            } else {
+                // analyse feature
+                diff = new SyncDiff();
+                diff.loadChanges(changeTableName);
+                Feature[] remoteFeatures = SyncDiff.sortById(features);
+                diff.addRemote(remoteFeatures);
+                applyServerFeatures(remoteFeatures, diff, authority, changeTableName);
+
+                deleteLocalFeatures(diff);
+            }
+
+            if (null != diff) {
+                removeAppliedChanges(diff, changeTableName);
+            }
+        } catch (SQLiteException | ConcurrentModificationException e) {
+            syncResult.stats.numConflictDetectedExceptions++;
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "proceed getChangesFromServer() failed");
+            }
+            e.printStackTrace();
+            return false;
+        }
+
+        getPreferences().edit().putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP, System.currentTimeMillis()).commit();
+        return true;
+    }
+
+
+    /**
+     * Apply the server features while they are read. The features are downloaded by pages in
+     * background and each page is applied in the transaction, so the memory does not depend on the
+     * layer size. Only the feature ids are kept to find the features deleted on server. The
+     * interrupted sync continues from the last applied page, the deleted features are found by the
+     * next full sync then.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    protected boolean getChangesFromServerStreamed(
+            String authority,
+            SyncResult syncResult)
+    {
+        AccountUtil.AccountData accountData;
+        try {
+            accountData = AccountUtil.getAccountData(mContext, mAccountName);
+        } catch (IllegalStateException e) {
+            log(e, "getChangesFromServerStreamed(): account is null");
+            syncResult.stats.numAuthExceptions++;
+            return false;
+        }
+
+        String changeTableName = getChangeTableName();
+        SyncDiff diff = new SyncDiff();
+        int pageCount = 0;
+        boolean isFullSync = mSyncOffset == 0 || !isPaged();
+        if (isFullSync) {
+            mSyncOffset = 0;
+        }
+
+        FeaturePager pager = null;
+        try {
+            if (!mCacheLoaded) {
+                reloadCache();
+            }
+            diff.loadChanges(changeTableName);
+
+            MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+            SQLiteDatabase db = map.getDatabase(false);
+            pager = new FeaturePager(getFeaturesUrl(accountData), accountData.login,
+                    accountData.password, getFields(), mSyncOffset);
+
+            FeaturePage page;
+            while (null != (page = pager.next())) {
+                pageCount++;
+                Feature[] remoteFeatures = SyncDiff.sortById(page.mFeatures);
+                diff.addRemote(remoteFeatures);
+                db.beginTransactionNonExclusive();
+                try {
+                    applyServerFeatures(remoteFeatures, diff, authority, changeTableName);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                // the checkpoint to continue the interrupted sync
+                if (isPaged() && !page.mIsLast) {
+                    mSyncOffset = page.mOffset + page.mCount;
+                    save();
+                }
+            }
+        } catch (MalformedURLException e) {
+            log(e, "getChangesFromServerStreamed(): MalformedURLException");
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (FileNotFoundException e) {
+            log(e, "getChangesFromServerStreamed(): FileNotFoundException");
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (IOException e) {
+            log(e, "getChangesFromServerStreamed(): IOException");
+            syncResult.stats.numParseExceptions++;
+            return false;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (IllegalStateException | NumberFormatException e) {
+            log(e, "getChangesFromServerStreamed(): IllegalStateException | NumberFormatException");
+            syncResult.stats.numParseExceptions++;
+            return false;
+        } catch (InterruptedException e) {
+            log(e, "getChangesFromServerStreamed(): InterruptedException");
+            return false;
+        } catch (SQLiteException e) {
+            syncResult.stats.numConflictDetectedExceptions++;
+            log(e, "getChangesFromServerStreamed(): apply failed");
+            return false;
+        } finally {
+            if (null != pager) {
+                pager.close();
+            }
+        }
+
+        mSyncOffset = 0;
+        save();
+
+        // the features are deleted only if all server features are read
+        if (isFullSync) {
+            try {
+                List<Long> deleteItems = getLocalDeletes(diff);
+                // the offset pages shift if the server features are deleted while syncing, so the
+                // feature may be missed by the sync but exist on server
+                if (isPaged() && pageCount > 1) {
+                    checkDeletedOnServer(deleteItems, diff, accountData);
+                }
+                deleteFeatures(deleteItems);
+                removeAppliedChanges(diff, changeTableName);
+            } catch (SQLiteException | ConcurrentModificationException e) {
+                syncResult.stats.numConflictDetectedExceptions++;
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "proceed getChangesFromServerStreamed() failed");
+                }
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        getPreferences().edit().putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP, System.currentTimeMillis()).commit();
+        return true;
+    }
+
+
+    /**
+     * Remove the changes already applied on server: delete already deleted id or add already
+     * added
+     */
+    protected void removeAppliedChanges(SyncDiff diff, String changeTableName) {
+        Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
+        // remove changes already applied on server (delete already deleted id or add already added)
+        if (null != changeCursor) {
+            try {
+                if (changeCursor.moveToFirst()) {
+                    int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
+                    int featureIdColumn =
+                            changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
+                    int operationColumn =
+                            changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
+                    int attachOperationColumn =
+                            changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
+
+                    do {
+                        long changeRecordId = changeCursor.getLong(recordIdColumn);
+                        long changeFeatureId = changeCursor.getLong(featureIdColumn);
+                        int changeOperation = changeCursor.getInt(operationColumn);
+                        int attachChangeOperation = changeCursor.getInt(attachOperationColumn);
+
+                        boolean bDeleteChange = true; // if feature not exist on server
+                        if (diff.isRemote(changeFeatureId)) {
+                            if (0 != (changeOperation & Constants.CHANGE_OPERATION_NEW)) {
+                                // if feature already exist, just change it
+                                FeatureChanges.setOperation(changeTableName, changeRecordId,
+                                        Constants.CHANGE_OPERATION_CHANGED);
+                            }
+                            bDeleteChange = false; // in other cases just apply
+                        }
+
+                        if ((0 != (changeOperation & Constants.CHANGE_OPERATION_NEW) || 0 != (
+                                attachChangeOperation & Constants.CHANGE_OPERATION_NEW))
+                                && bDeleteChange) {
+
+                            bDeleteChange = false;
+                        }
+
+                        if (bDeleteChange) {
+                            if (Constants.DEBUG_MODE) {
+                                Log.d(Constants.TAG,
+                                        "Delete change for feature #" + changeFeatureId +
+                                                ", changeOperation " + changeOperation +
+                                                ", attachChangeOperation " +
+                                                attachChangeOperation);
+                            }
+                            // TODO: analise for operation, remove all equal
+                            FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
+                        }
+
+                    } while (changeCursor.moveToNext());
+                }
+            } catch (Exception e) {
+                //Log.d(TAG, e.getLocalizedMessage());
+            } finally {
+                changeCursor.close();
+            }
+        }
+    }
+
+
+    /**
+     * Remove features not exist on server from local layer if no operation is in changes array
+     * or change operation for local feature present
+     */
+    protected void deleteLocalFeatures(SyncDiff diff) {
+        deleteFeatures(getLocalDeletes(diff));
+    }
 
-        if (Constants.DEBUG_MODE) {
-            Log.d(Constants.TAG, "The network is available. Get changes from server");
-        }
 
-        List<Feature> features, added = null, deleted = null, changed = null;
+    /**
+     * @return the local features not exist on server and without the new or flagged changes
+     */
+    protected List<Long> getLocalDeletes(SyncDiff diff) {
         List<Long> deleteItems = new ArrayList<>();
-        HashMap<Integer, List<Feature>> tracked = getFeatures(syncResult, mTracked);
+        long[] localIds = SyncDiff.toSortedArray(query(null));
+        for (long featureId : SyncDiff.subtract(localIds, diff.getRemoteIds())) {
+            // if local item is in update list and state ADD_NEW skip delete
+            int state = diff.getChangeState(featureId);
+            if (0 == (state & (SyncDiff.STATE_NEW | SyncDiff.STATE_FLAGS))) {
+                deleteItems.add(featureId);
+            }
+        }
 
-        if (tracked == null)
-            return false;
+        return deleteItems;
+    }
 
-        if (mTracked) {
-            added = tracked.get(0);
-            changed = tracked.get(1);
-            deleted = tracked.get(2);
-            features = new ArrayList<>();
-            features.addAll(added);
-            features.addAll(changed);
-            features.addAll(deleted);
+
+    /**
+     * Request the features missed by the sync one by one. The features found on server and the
+     * unchecked ones are kept with their changes, they are added to the server ids of the diff and
+     * removed from the delete list.
+     */
+    protected void checkDeletedOnServer(
+            List<Long> deleteItems,
+            SyncDiff diff,
+            AccountUtil.AccountData accountData)
+    {
+        List<Long> deleted = new ArrayList<>();
+        int checks = 0;
+        for (long featureId : deleteItems) {
+            if (checks++ < SYNC_DELETE_CHECKS && !Thread.currentThread().isInterrupted()) {
+                try {
+                    String data = NetworkUtil.get(
+                            NGWUtil.getFeaturesUrl(accountData.url, mRemoteId) + featureId,
+                            accountData.login, accountData.password, HttpClient.REQUEST_FEATURE);
+                    if (("" + HttpURLConnection.HTTP_NOT_FOUND).equals(data)) {
+                        deleted.add(featureId);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    log(e, "checkDeletedOnServer(): IOException");
+                }
+            }
 
             if (Constants.DEBUG_MODE) {
-                Log.d(TAG, "Layer " + mName + " is tracked for history");
-                Log.d(Constants.TAG, "added: " + added.size() + " | changed: " + changed.size() + " | deleted: " + deleted.size());
+                Log.d(Constants.TAG, "Keep feature #" + featureId + " missed by sync");
             }
-        } else
-            features = tracked.get(0);
+            diff.addRemote(featureId);
+        }
 
-        if (features == null)
-            return false;
+        deleteItems.clear();
+        deleteItems.addAll(deleted);
+    }
 
+
+    protected void createNewFeature(Feature remoteFeature, String authority) {
+        ContentValues values = remoteFeature.getContentValues(true);
+        if (hasHashColumn()) {
+            values.put(FIELD_HASH, getContentHash(values, remoteFeature));
+        }
+        Uri uri = Uri.parse("content://" + authority + "/" + getPath().getName());
+        //prevent add changes and events
+        uri = uri.buildUpon().fragment(NO_SYNC).build();
+        Uri newFeatureUri = insert(uri, values);
         if (Constants.DEBUG_MODE) {
-            Log.d(Constants.TAG, "Got " + features.size() + " feature(s) from server");
+            Log.d(Constants.TAG, "Add new feature from server - " + newFeatureUri.toString());
         }
+    }
 
-        try {
-            if (!mCacheLoaded) {
-                reloadCache();
-            }
-
-            String changeTableName = getChangeTableName();
-            if (mTracked) {
-                if (added != null)
-                    for (Feature remoteFeature : added) {
-                        Cursor cursor = query(null, Constants.FIELD_ID + " = " + remoteFeature.getId(), null, null, null);
-                        boolean hasFeature = false;
-                        if (cursor != null) {
-                            if (cursor.moveToFirst()){
-                                compareFeature(cursor, authority, remoteFeature, changeTableName);
-                                hasFeature = true;
-                            }
 
-                            cursor.close();
-                        }
+    protected void deleteFeatures(List<Long> deleteItems) {
+        for (long itemId : deleteItems) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "Delete feature #" + itemId + " not exist on server");
+            }
+            delete(itemId, Constants.FIELD_ID + " = " + itemId, null);
+        }
+    }
 
-                        if (!hasFeature)
-                            createNewFeature(remoteFeature, authority);
-                    }
+    /**
+     * Merge the sorted server features with the local rows loaded by the sorted id ranges. The
+     * missed local features are created. The existing ones without local changes are skipped if
+     * the stored content hash is the same, the others are read and compared.
+     */
+    protected void applyServerFeatures(Feature[] remoteFeatures, SyncDiff diff, String authority,
+            String changeTableName) {
+        boolean hasHash = hasHashColumn();
+        MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+        SQLiteDatabase db = map.getDatabase(false);
 
-                if (changed != null)
-                    for (Feature remoteFeature : changed) {
-                        Cursor cursor = query(null, Constants.FIELD_ID + " = " + remoteFeature.getId(), null, null, null);
-                        compareFeature(cursor, authority, remoteFeature, changeTableName);
-                        cursor.close();
+        long[] localIds = new long[SYNC_BATCH_SIZE];
+        long[] localHashes = new long[SYNC_BATCH_SIZE];
+        long[] remoteHashes = new long[SYNC_BATCH_SIZE];
+        List<Feature> compareFeatures = new ArrayList<>();
+        List<Feature> localFeatures = new ArrayList<>();
+
+        for (int start = 0; start < remoteFeatures.length; start += SYNC_BATCH_SIZE) {
+            int end = Math.min(remoteFeatures.length, start + SYNC_BATCH_SIZE);
+
+            // the ids and hashes are read before the changes, the cursor should not see the
+            // updated rows
+            int localCount = 0;
+            String[] columns = hasHash ? new String[] {FIELD_ID, FIELD_HASH} : new String[] {FIELD_ID};
+            Cursor cursor = query(columns, FIELD_ID + " >= " + remoteFeatures[start].getId() + " AND " +
+                    FIELD_ID + " <= " + remoteFeatures[end - 1].getId(), null, FIELD_ID + " ASC",
+                    null);
+            if (null != cursor) {
+                try {
+                    if (cursor.moveToFirst()) {
+                        do {
+                            if (localCount == localIds.length) {
+                                localIds = Arrays.copyOf(localIds, localCount * 2);
+                                localHashes = Arrays.copyOf(localHashes, localCount * 2);
+                            }
+                            localIds[localCount] = cursor.getLong(0);
+                            // 0 is the hash of nothing, the null hash is not equal to any feature
+                            localHashes[localCount] = hasHash && !cursor.isNull(1) ? cursor.getLong(1) : 0;
+                            localCount++;
+                        } while (cursor.moveToNext());
                     }
-
-                if (deleted != null) {
-                    for (Feature remoteFeature : deleted)
-                        deleteItems.add(remoteFeature.getId());
-
-                    deleteFeatures(deleteItems);
+                } finally {
+                    cursor.close();
                 }
-            } else {
-                // analyse feature
-                for (Feature remoteFeature : features) {
-                    Cursor cursor = query(null, Constants.FIELD_ID + " = " + remoteFeature.getId(), null, null, null);
+            }
 
-                    try {
-                        //no local feature
-                        if (null == cursor || cursor.getCount() == 0) {
-                            //if we have changes (delete) not create new feature
-                            boolean createNewFeature =
-                                    !FeatureChanges.isChanges(changeTableName, remoteFeature.getId());
-
-                            //create new feature with remoteId
-                            if (createNewFeature)
-                                createNewFeature(remoteFeature, authority);
-                        } else {
-                            compareFeature(cursor, authority, remoteFeature, changeTableName);
-                        }
-                    } catch (Exception e) {
-                        //Log.d(TAG, e.getLocalizedMessage());
-                    } finally {
-                        if (null != cursor) {
-                            cursor.close();
-                        }
-                    }
+            compareFeatures.clear();
+            int localIndex = 0;
+            for (int i = start; i < end; i++) {
+                Feature remoteFeature = remoteFeatures[i];
+                long featureId = remoteFeature.getId();
+                while (localIndex < localCount && localIds[localIndex] < featureId) {
+                    localIndex++;
                 }
 
-                // remove features not exist on server from local layer
-                // if no operation is in changes array or change operation for local feature present
-                for (Long featureId : query(null)) {
-                    boolean bDeleteFeature = true;
-                    for (Feature remoteFeature : features) {
-                        if (remoteFeature.getId() == featureId) {
-                            bDeleteFeature = false;
-                            break;
+                try {
+                    int state = diff.getChangeState(featureId);
+                    if (localIndex < localCount && localIds[localIndex] == featureId) {
+                        remoteHashes[i - start] = 0;
+                        if (hasHash && 0 == state) {
+                            long hash = getContentHash(remoteFeature.getContentValues(false), remoteFeature);
+                            if (hash == localHashes[localIndex]) {
+                                continue;
+                            }
+                            remoteHashes[i - start] = hash;
                         }
+                        compareFeatures.add(remoteFeature);
+                    } else if (0 == (state & SyncDiff.STATE_CHANGED)) {
+                        //no local feature, if we have changes (delete) not create new feature
+                        createNewFeature(remoteFeature, authority);
                     }
-
-                    // if local item is in update list and state ADD_NEW skip delete
-                    bDeleteFeature =
-                            bDeleteFeature && !FeatureChanges.isChanges(changeTableName, featureId,
-                                    Constants.CHANGE_OPERATION_NEW) &&
-                                    !FeatureChanges.hasFeatureFlags(changeTableName, featureId);
-
-                    if (bDeleteFeature) {
-                        deleteItems.add(featureId);
-                    }
+                } catch (Exception e) {
+                    //Log.d(TAG, e.getLocalizedMessage());
                 }
+            }
 
-                deleteFeatures(deleteItems);
+            if (compareFeatures.isEmpty()) {
+                continue;
             }
 
-            if (!mTracked) {
-                Cursor changeCursor = FeatureChanges.getChanges(changeTableName);
-                // remove changes already applied on server (delete already deleted id or add already added)
-                if (null != changeCursor) {
+            // the changed features are read before the changes too
+            readFeatures(compareFeatures, localFeatures);
+            boolean isOwnTransaction = hasHash && !db.inTransaction();
+            if (isOwnTransaction) {
+                db.beginTransaction();
+            }
+            try {
+                int featureIndex = 0;
+                for (int i = start; i < end; i++) {
+                    if (featureIndex == compareFeatures.size()) {
+                        break;
+                    }
+                    Feature remoteFeature = remoteFeatures[i];
+                    if (remoteFeature != compareFeatures.get(featureIndex)) {
+                        continue;
+                    }
+                    Feature localFeature = localFeatures.get(featureIndex++);
+                    if (null == localFeature) {
+                        continue;
+                    }
+
+                    long featureId = remoteFeature.getId();
                     try {
-                        if (changeCursor.moveToFirst()) {
-                            int recordIdColumn = changeCursor.getColumnIndex(Constants.FIELD_ID);
-                            int featureIdColumn =
-                                    changeCursor.getColumnIndex(Constants.FIELD_FEATURE_ID);
-                            int operationColumn =
-                                    changeCursor.getColumnIndex(Constants.FIELD_OPERATION);
-                            int attachOperationColumn =
-                                    changeCursor.getColumnIndex(Constants.FIELD_ATTACH_OPERATION);
-
-                            do {
-                                long changeRecordId = changeCursor.getLong(recordIdColumn);
-                                long changeFeatureId = changeCursor.getLong(featureIdColumn);
-                                int changeOperation = changeCursor.getInt(operationColumn);
-                                int attachChangeOperation = changeCursor.getInt(attachOperationColumn);
-
-                                boolean bDeleteChange = true; // if feature not exist on server
-                                for (Feature remoteFeature : features) {
-                                    if (remoteFeature.getId() == changeFeatureId) {
-                                        if (0 != (changeOperation & Constants.CHANGE_OPERATION_NEW)) {
-                                            // if feature already exist, just change it
-                                            FeatureChanges.setOperation(changeTableName, changeRecordId,
-                                                    Constants.CHANGE_OPERATION_CHANGED);
-                                        }
-                                        bDeleteChange = false; // in other cases just apply
-                                        break;
-                                    }
-                                }
-
-                                if ((0 != (changeOperation & Constants.CHANGE_OPERATION_NEW) || 0 != (
-                                        attachChangeOperation & Constants.CHANGE_OPERATION_NEW))
-                                        && bDeleteChange) {
-
-                                    bDeleteChange = false;
-                                }
-
-                                if (bDeleteChange) {
-                                    if (Constants.DEBUG_MODE) {
-                                        Log.d(Constants.TAG,
-                                                "Delete change for feature #" + changeFeatureId +
-                                                        ", changeOperation " + changeOperation +
-                                                        ", attachChangeOperation " +
-                                                        attachChangeOperation);
-                                    }
-                                    // TODO: analise for operation, remove all equal
-                                    FeatureChanges.removeChangeRecord(changeTableName, changeRecordId);
-                                }
-
-                            } while (changeCursor.moveToNext());
+                        int state = diff.getChangeState(featureId);
+                        compareFeature(localFeature, authority, remoteFeature, changeTableName,
+                                0 != state);
+                        // the row is the server feature now if there are no local changes
+                        if (hasHash && 0 == state) {
+                            ContentValues values = new ContentValues();
+                            values.put(FIELD_HASH, remoteHashes[i - start]);
+                            db.update(mPath.getName(), values, FIELD_ID + " = " + featureId, null);
                         }
                     } catch (Exception e) {
                         //Log.d(TAG, e.getLocalizedMessage());
-                    } finally {
-                        changeCursor.close();
                     }
                 }
+                if (isOwnTransaction) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                if (isOwnTransaction) {
+                    db.endTransaction();
+                }
             }
-        } catch (SQLiteException | ConcurrentModificationException e) {
-            syncResult.stats.numConflictDetectedExceptions++;
-            if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "proceed getChangesFromServer() failed");
-            }
-            e.printStackTrace();
-            return false;
         }
-
-        getPreferences().edit().putLong(SettingsConstants.KEY_PREF_LAST_SYNC_TIMESTAMP, System.currentTimeMillis()).commit();
-        return true;
     }
 
 
-    protected void createNewFeature(Feature remoteFeature, String authority) {
-        ContentValues values = remoteFeature.getContentValues(true);
-        Uri uri = Uri.parse("content://" + authority + "/" + getPath().getName());
-        //prevent add changes and events
-        uri = uri.buildUpon().fragment(NO_SYNC).build();
-        Uri newFeatureUri = insert(uri, values);
-        if (Constants.DEBUG_MODE) {
-            Log.d(Constants.TAG, "Add new feature from server - " + newFeatureUri.toString());
+    /**
+     * Reads the local features with the ids of the sorted features to the same positions, null
+     * if the local feature is not found.
+     */
+    protected void readFeatures(List<Feature> features, List<Feature> localFeatures) {
+        localFeatures.clear();
+        StringBuilder ids = new StringBuilder();
+        for (Feature feature : features) {
+            if (ids.length() > 0) {
+                ids.append(",");
+            }
+            ids.append(feature.getId());
+            localFeatures.add(null);
         }
-    }
 
+        Cursor cursor = query(null, FIELD_ID + " IN (" + ids + ")", null, FIELD_ID + " ASC", null);
+        if (null == cursor) {
+            return;
+        }
 
-    protected void deleteFeatures(List<Long> deleteItems) {
-        for (long itemId : deleteItems) {
-            if (Constants.DEBUG_MODE) {
-                Log.d(Constants.TAG, "Delete feature #" + itemId + " not exist on server");
+        try {
+            int index = 0;
+            if (cursor.moveToFirst()) {
+                do {
+                    Feature localFeature = cursorToFeature(cursor);
+                    while (index < features.size() && features.get(index).getId() < localFeature.getId()) {
+                        index++;
+                    }
+                    if (index < features.size() && features.get(index).getId() == localFeature.getId()) {
+                        localFeatures.set(index, localFeature);
+                    }
+                } while (cursor.moveToNext());
             }
-            delete(itemId, Constants.FIELD_ID + " = " + itemId, null);
+        } finally {
+            cursor.close();
         }
     }
 
     protected void compareFeature(Cursor cursor, String authority, Feature remoteFeature, String changeTableName) {
         cursor.moveToFirst();
         // with the given ID (remoteFeature.getId()) must be only one feature
-        Feature currentFeature = cursorToFeature(cursor);
+        compareFeature(cursorToFeature(cursor), authority, remoteFeature, changeTableName, true);
+    }
 
+    /**
+     * @param hasChanges false if the feature has no change records, the changes are not queried
+     */
+    protected void compareFeature(Feature currentFeature, String authority, Feature remoteFeature,
+            String changeTableName, boolean hasChanges) {
         //compare features
         boolean eqData = remoteFeature.equalsData(currentFeature);
         boolean eqAttach = remoteFeature.equalsAttachments(currentFeature);
@@ -1349,7 +2543,7 @@ public class NGWVectorLayer
         //process data
         if (eqData) {
             //remove from changes
-            if (FeatureChanges.isChanges(changeTableName, remoteFeature.getId())) {
+            if (hasChanges && FeatureChanges.isChanges(changeTableName, remoteFeature.getId())) {
                 if (eqAttach && !FeatureChanges.isAttachesForDelete(
                         changeTableName, remoteFeature.getId())
                         || !FeatureChanges.isAttachChanges(
@@ -1361,7 +2555,7 @@ public class NGWVectorLayer
             }
         } else {
             // we have local changes ready for sent to server
-            boolean isChangedLocal = FeatureChanges.isChanges(changeTableName,
+            boolean isChangedLocal = hasChanges && FeatureChanges.isChanges(changeTableName,
                     remoteFeature.getId());
 
             //no local changes - update local feature
@@ -1385,7 +2579,7 @@ public class NGWVectorLayer
 
         //process attachments
         if (eqAttach) {
-            if (FeatureChanges.isChanges(changeTableName, remoteFeature.getId())
+            if (hasChanges && FeatureChanges.isChanges(changeTableName, remoteFeature.getId())
                     && (eqData || FeatureChanges.isAttachChanges(
                     changeTableName, remoteFeature.getId()))) {
 
@@ -1399,7 +2593,7 @@ public class NGWVectorLayer
             }
 
         } else {
-            boolean isChangedLocal = FeatureChanges.isAttachChanges(changeTableName,
+            boolean isChangedLocal = hasChanges && FeatureChanges.isAttachChanges(changeTableName,
                     remoteFeature.getId());
 
             if (!isChangedLocal) {
@@ -1426,7 +2620,7 @@ public class NGWVectorLayer
                             long attachIdL =
                                     Long.parseLong(remoteItem.getAttachId());
                             boolean changeOnServer =
-                                    !FeatureChanges.isAttachChanges(changeTableName,
+                                    !hasChanges || !FeatureChanges.isAttachChanges(changeTableName,
                                             remoteFeature.getId(), attachIdL);
 
                             if (changeOnServer) {
@@ -1462,7 +2656,7 @@ public class NGWVectorLayer
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
             String data;
             try {
-                data = NetworkUtil.get(getFeaturesUrl(accountData), accountData.login, accountData.password);
+                data = NetworkUtil.get(getFeaturesUrl(accountData), accountData.login, accountData.password, HttpClient.REQUEST_FEATURE);
             } catch (IOException e) {
                 log(e, "getFeatures(): getFeaturesUrl exception (sdk < 11)");
                 syncResult.stats.numIoExceptions++;
@@ -1498,50 +2692,54 @@ public class NGWVectorLayer
             }
         } else {
             try {
-                URL url = new URL(getFeaturesUrl(accountData));
-                Log.d(TAG, "url: " + url.toString());
-                HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                final String basicAuth = NetworkUtil.getHTTPBaseAuth(accountData.login, accountData.password);
-                if (null != basicAuth) {
-                    urlConnection.setRequestProperty("Authorization", basicAuth);
+                String url = getFeaturesUrl(accountData);
+                Log.d(TAG, "url: " + url);
+                HttpClient.Response response = HttpClient.getInstance().execute("GET", url,
+                        accountData.login, accountData.password, HttpClient.REQUEST_FEATURE, null);
+                if (null == response) {
+                    throw new MalformedURLException("Error get connection object: " + url);
                 }
 
-                InputStream in = new ProgressBufferedInputStream(urlConnection.getInputStream(), urlConnection.getContentLength());
-                JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
-
-                if (tracked) {
-                    List<Feature> added = new LinkedList<>(), changed = new LinkedList<>(), deleted = new LinkedList<>();
-                    reader.beginObject();
-                    while (reader.hasNext()) {
-                        String name = reader.nextName();
-                        switch (name) {
-                            case "deleted":
-                                reader.beginArray();
-                                while (reader.hasNext())
-                                    deleted.add(new Feature(reader.nextLong(), getFields()));
-                                reader.endArray();
-                                break;
-                            case "added":
-                                readFeatures(reader, added);
-                                break;
-                            case "changed":
-                                readFeatures(reader, changed);
-                                break;
+                try {
+                    HttpURLConnection urlConnection = response.getConnection();
+                    // the progress is counted by the compressed bytes as the content length
+                    InputStream in = NetworkUtil.getInputStream(urlConnection, new ProgressBufferedInputStream(response.getRawInputStream(), urlConnection.getContentLength()));
+                    JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+
+                    if (tracked) {
+                        List<Feature> added = new LinkedList<>(), changed = new LinkedList<>(), deleted = new LinkedList<>();
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            switch (name) {
+                                case "deleted":
+                                    reader.beginArray();
+                                    while (reader.hasNext())
+                                        deleted.add(new Feature(reader.nextLong(), getFields()));
+                                    reader.endArray();
+                                    break;
+                                case "added":
+                                    readFeatures(reader, added);
+                                    break;
+                                case "changed":
+                                    readFeatures(reader, changed);
+                                    break;
+                            }
                         }
+                        reader.endObject();
+
+                        results.put(0, added);
+                        results.put(1, changed);
+                        results.put(2, deleted);
+                    } else {
+                        List<Feature> features = new LinkedList<>();
+                        readFeatures(reader, features);
+                        results.put(0, features);
                     }
-                    reader.endObject();
-
-                    results.put(0, added);
-                    results.put(1, changed);
-                    results.put(2, deleted);
-                } else {
-                    List<Feature> features = new LinkedList<>();
-                    readFeatures(reader, features);
-                    results.put(0, features);
+                    reader.close();
+                } finally {
+                    response.close();
                 }
-                reader.close();
-
-                urlConnection.disconnect();
             } catch (MalformedURLException e) {
                 log(e, "getFeatures(): MalformedURLException");
                 syncResult.stats.numIoExceptions++;
@@ -1582,14 +2780,18 @@ public class NGWVectorLayer
     }
 
 
-    protected boolean addFeatureOnServer(
+    /**
+     * @return the feature id on the server, the local id if the feature is skipped or {@link
+     * Constants#NOT_FOUND} if the feature is not sent
+     */
+    protected long addFeatureOnServer(
             long featureId,
             SyncResult syncResult)
             throws SQLiteException
     {
         if (!mNet.isNetworkAvailable()) {
             syncResult.stats.numIoExceptions++;
-            return false;
+            return Constants.NOT_FOUND;
         }
         Uri uri = ContentUris.withAppendedId(getContentUri(), featureId);
         uri = uri.buildUpon().fragment(NO_SYNC).build();
@@ -1599,7 +2801,7 @@ public class NGWVectorLayer
             if (Constants.DEBUG_MODE) {
                 Log.d(Constants.TAG, "addFeatureOnServer: Get cursor failed");
             }
-            return true; //just remove buggy data
+            return featureId; //just remove buggy data
         }
 
         try {
@@ -1613,41 +2815,36 @@ public class NGWVectorLayer
                 }
 
                 // post to NGW
-                String data = NetworkUtil.post(NGWUtil.getFeaturesUrl(accountData.url, mRemoteId), payload, accountData.login, accountData.password);
+                String data = NetworkUtil.post(NGWUtil.getFeaturesUrl(accountData.url, mRemoteId), payload, accountData.login, accountData.password, HttpClient.REQUEST_FEATURE);
                 if (MapUtil.isParsable(data)) {
                     log(syncResult, data);
-                    return false;
+                    return Constants.NOT_FOUND;
                 }
 
-                //set new id from server // like: {"id": 24}
+                //new id from server // like: {"id": 24}
                 JSONObject result = new JSONObject(data);
                 if (result.has(Constants.JSON_ID_KEY)) {
-                    long id = result.getLong(Constants.JSON_ID_KEY);
-                    changeFeatureId(featureId, id);
+                    return result.getLong(Constants.JSON_ID_KEY);
                 }
 
-                return true;
+                return featureId;
             } else {
                 Log.d(Constants.TAG, "addFeatureOnServer: Get cursor failed");
-                return true; //just remove buggy data
+                return featureId; //just remove buggy data
             }
 
         } catch (JSONException e) {
             log(e, "addFeatureOnServer JSONException");
             syncResult.stats.numParseExceptions++;
-            return false;
+            return Constants.NOT_FOUND;
         } catch (IOException | ClassNotFoundException e) {
             log(e, "addFeatureOnServer IOException | ClassNotFoundException");
             syncResult.stats.numIoExceptions++;
-            return false;
-        } catch (SQLiteConstraintException e) {
-            log(e, "addFeatureOnServer SQLiteConstraintException");
-            syncResult.stats.numConflictDetectedExceptions++;
-            return false;
+            return Constants.NOT_FOUND;
         } catch (IllegalStateException e) {
             log(e, "addFeatureOnServer IllegalStateException");
             syncResult.stats.numAuthExceptions++;
-            return false;
+            return Constants.NOT_FOUND;
         } finally {
             cursor.close();
         }
@@ -1667,7 +2864,7 @@ public class NGWVectorLayer
             AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
 
             if (!NetworkUtil.delete(NGWUtil.getFeatureUrl(accountData.url, mRemoteId, featureId),
-                    accountData.login, accountData.password)) {
+                    accountData.login, accountData.password, HttpClient.REQUEST_FEATURE)) {
 
                 syncResult.stats.numIoExceptions++;
                 return false;
@@ -1721,7 +2918,7 @@ public class NGWVectorLayer
 
                 // change on server
                 String url = NGWUtil.getFeatureUrl(accountData.url, mRemoteId, featureId);
-                String data = NetworkUtil.put(url, payload, accountData.login, accountData.password);
+                String data = NetworkUtil.put(url, payload, accountData.login, accountData.password, HttpClient.REQUEST_FEATURE);
                 if (MapUtil.isParsable(data)) {
                     log(syncResult, data);
                     return false;
@@ -1750,6 +2947,135 @@ public class NGWVectorLayer
     }
 
 
+    /**
+     * Sends the new and changed features by one request, the new features get the server ids.
+     *
+     * @return PATCH_SENT, PATCH_FAILED if the batch should be sent by the next sync,
+     * PATCH_REJECTED if the features should be sent by the single requests or PATCH_UNSUPPORTED,
+     * then {@link #mBatchUpload} is reset
+     */
+    protected int patchFeaturesOnServer(
+            List<ChangeRecord> records,
+            SyncResult syncResult)
+            throws SQLiteException
+    {
+        if (!mNet.isNetworkAvailable()) {
+            syncResult.stats.numIoExceptions++;
+            return PATCH_FAILED;
+        }
+
+        StringBuilder ids = new StringBuilder();
+        for (ChangeRecord record : records) {
+            if (ids.length() > 0) {
+                ids.append(",");
+            }
+            ids.append(record.mFeatureId);
+        }
+
+        Cursor cursor = query(null, Constants.FIELD_ID + " IN (" + ids + ")", null, null, null);
+        if (null == cursor) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "patchFeaturesOnServer: Get cursor failed");
+            }
+            return PATCH_FAILED;
+        }
+
+        try {
+            // the features deleted locally are skipped as the buggy data
+            List<ChangeRecord> sent = new ArrayList<>(records.size());
+            JSONArray payload = new JSONArray();
+            int idColumn = cursor.getColumnIndex(Constants.FIELD_ID);
+            HashMap<Long, JSONObject> features = new HashMap<>(records.size());
+            if (cursor.moveToFirst()) {
+                do {
+                    features.put(cursor.getLong(idColumn), new JSONObject(cursorToJson(cursor)));
+                } while (cursor.moveToNext());
+            }
+
+            for (ChangeRecord record : records) {
+                JSONObject feature = features.get(record.mFeatureId);
+                if (null == feature) {
+                    continue;
+                }
+                if (0 == (record.mOperation & Constants.CHANGE_OPERATION_NEW)) {
+                    feature.put(Constants.JSON_ID_KEY, record.mFeatureId);
+                }
+                payload.put(feature);
+                sent.add(record);
+            }
+
+            if (sent.isEmpty()) {
+                return PATCH_SENT;
+            }
+
+            AccountUtil.AccountData accountData = AccountUtil.getAccountData(mContext, mAccountName);
+            String data = NetworkUtil.patch(NGWUtil.getFeaturesUrl(accountData.url, mRemoteId),
+                    payload.toString(), accountData.login, accountData.password,
+                    HttpClient.REQUEST_FEATURE);
+            if (MapUtil.isParsable(data)) {
+                int responseCode = Integer.parseInt(data);
+                switch (responseCode) {
+                    case HttpURLConnection.HTTP_NOT_FOUND:
+                    case HttpURLConnection.HTTP_BAD_METHOD:
+                    case HttpURLConnection.HTTP_NOT_IMPLEMENTED:
+                        mBatchUpload = false;
+                        return PATCH_UNSUPPORTED;
+                    case 0: // the network error
+                    case HttpURLConnection.HTTP_UNAUTHORIZED:
+                    case HttpURLConnection.HTTP_FORBIDDEN:
+                        log(syncResult, data);
+                        return PATCH_FAILED;
+                    default:
+                        // the single requests count the error of the feature
+                        return PATCH_REJECTED;
+                }
+            }
+
+            // the server ids in the order of the features, like: [{"id": 24}, {"id": 25}]
+            JSONArray result = new JSONArray(data);
+            if (result.length() != sent.size()) {
+                syncResult.stats.numParseExceptions++;
+                return PATCH_FAILED;
+            }
+
+            for (int i = 0; i < sent.size(); i++) {
+                ChangeRecord record = sent.get(i);
+                JSONObject item = result.getJSONObject(i);
+                if (0 != (record.mOperation & Constants.CHANGE_OPERATION_NEW)
+                        && item.has(Constants.JSON_ID_KEY)) {
+                    changeFeatureId(record.mFeatureId, item.getLong(Constants.JSON_ID_KEY));
+                }
+            }
+
+            return PATCH_SENT;
+
+        } catch (ProtocolException e) {
+            // the PATCH method is not supported by the HTTP client
+            log(e, "patchFeaturesOnServer ProtocolException");
+            mBatchUpload = false;
+            return PATCH_UNSUPPORTED;
+        } catch (JSONException e) {
+            log(e, "patchFeaturesOnServer JSONException");
+            syncResult.stats.numParseExceptions++;
+            return PATCH_FAILED;
+        } catch (IOException | ClassNotFoundException e) {
+            log(e, "patchFeaturesOnServer IOException | ClassNotFoundException");
+            syncResult.stats.numIoExceptions++;
+            return PATCH_FAILED;
+        } catch (SQLiteConstraintException e) {
+            log(e, "patchFeaturesOnServer SQLiteConstraintException");
+            syncResult.stats.numConflictDetectedExceptions++;
+            return PATCH_FAILED;
+        } catch (IllegalStateException e) {
+            log(e, "patchFeaturesOnServer IllegalStateException");
+            syncResult.stats.numAuthExceptions++;
+            return PATCH_FAILED;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
     protected String cursorToJson(Cursor cursor)
             throws JSONException, IOException, ClassNotFoundException
     {
@@ -25,27 +25,22 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.util.Constants;
-import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.NetworkUtil;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.nextgis.maplib.util.Constants.DEFAULT_TILE_MAX_AGE;
 import static com.nextgis.maplib.util.Constants.LAYERTYPE_REMOTE_TMS;
@@ -61,6 +56,9 @@ public class RemoteTMSLayer
     protected static final String JSON_LOGIN_KEY    = "login";
     protected static final String JSON_PASSWORD_KEY = "password";
     protected static final String JSON_TILE_AGE_KEY = "tile_age";
+    protected static final String JSON_CACHE_QUOTA_KEY   = "cache_quota";
+    protected static final String JSON_CACHE_MAX_AGE_KEY = "cache_max_age";
+    protected static final String JSON_SOURCE_MAX_ZOOM_KEY = "source_max_zoom";
 
     protected       String       mURL;
     protected       NetworkUtil  mNet;
@@ -70,8 +68,8 @@ public class RemoteTMSLayer
     protected       String       mLogin;
     protected       String       mPassword;
     protected       String       mStartDate, mEndDate;
-    protected       Semaphore    mAvailable;
     protected long mTileMaxAge;
+    protected int mSourceMaxZoom;
     protected volatile long mLastCheckTime;
 
     public final static long DELAY = NetworkUtil.TIMEOUT_SOCKET + NetworkUtil.TIMEOUT_CONNECTION;
@@ -88,32 +86,49 @@ public class RemoteTMSLayer
         mCurrentSubdomain = 0;
         mLayerType = LAYERTYPE_REMOTE_TMS;
         mTileMaxAge = DEFAULT_TILE_MAX_AGE;
+        mSourceMaxZoom = GeoConstants.DEFAULT_MAX_ZOOM;
         setViewSize(100, 100);
     }
 
 
-    public synchronized void onPrepare()
+    /**
+     * @return the cache which keeps the downloaded tiles within the disk quota
+     */
+    @Override
+    protected TileCache createTileCache(File path)
     {
-        int diff = getMaxThreadCount() - mAvailable.availablePermits();
-        if (diff > 0) {
-            mAvailable.release(diff);
-        }
+        return new TileCache(path.getName(), path);
+    }
 
-        if(Constants.DEBUG_MODE)
-            Log.d(
-                TAG, "Semaphore left: " + mAvailable.availablePermits() + " max thread: " +
-                        getMaxThreadCount());
+
+    public File getTilePath(TileItem tile)
+    {
+        return new File(mPath, tile.toString() + TILE_EXT);
     }
 
     public void downloadTile(TileItem tile){
-        if (null == tile) {
+        downloadTile(tile, TileDownloader.PRIORITY_VISIBLE);
+    }
+
+
+    /**
+     * Download the outdated or missed tile to the disk cache and wait for it
+     *
+     * @param priority
+     *         the download priority, see {@link TileDownloader#PRIORITY_VISIBLE}
+     */
+    public void downloadTile(
+            TileItem tile,
+            int priority)
+    {
+        if (null == tile || tile.getZoomLevel() > mSourceMaxZoom) {
             return;
         }
 
         // try to get tile from local cache
-        File tilePath = new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT));
+        File tilePath = getTilePath(tile);
         boolean exist = tilePath.exists();
-        if (exist && System.currentTimeMillis() - tilePath.lastModified() < mTileMaxAge) {
+        if (exist && TileDownloader.isFresh(tilePath, mTileMaxAge)) {
             return;
         }
 
@@ -123,109 +138,152 @@ public class RemoteTMSLayer
 
         // try to get tile from remote
         String url = tile.toString(getURLSubdomain());
-        Log.d(TAG, "url: " + url);
+        if(Constants.DEBUG_MODE)
+            Log.d(TAG, "url: " + url);
         try {
+            TileDownloader.getInstance().downloadAndWait(
+                    url, getLogin(), getPassword(), tilePath, mTileCache, tile.getKey(), priority,
+                    DELAY);
+        } catch (InterruptedException | TimeoutException e) {
+            Log.d(TAG, "Problem downloading MapTile: " + url + " Error: " + e.getLocalizedMessage());
+        }
+    }
 
-            if (!mAvailable.tryAcquire(DELAY, TimeUnit.MILLISECONDS)) {
-                return;
-            }
+    /**
+     * @deprecated the downloads are limited by {@link TileDownloader}, there is nothing to
+     * prepare before drawing
+     */
+    @Deprecated
+    public void onPrepare()
+    {
+    }
+
+
+    @Override
+    public Bitmap getBitmap(final TileItem tile)
+    {
+        Bitmap ret = getCachedBitmap(tile);
+        if (null != ret || null == tile) {
+            return ret;
+        }
+
+        return getRemoteBitmap(tile);
+    }
 
-            FileUtil.createDir(tilePath.getParentFile());
-            OutputStream output = new FileOutputStream(tilePath.getAbsolutePath());
-            NetworkUtil.getStream(url, getLogin(), getPassword(), output);
 
-            mAvailable.release();
+    /**
+     * Download the tile without looking into the caches, for the callers which already tried
+     * {@link #getCachedBitmap(TileItem)}
+     */
+    public Bitmap getRemoteBitmap(final TileItem tile)
+    {
+        if (null == tile || tile.getZoomLevel() > mSourceMaxZoom) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - mLastCheckTime < DELAY || !mNet.isNetworkAvailable()) { //return tile from cache
+            return null;
+        }
 
-        } catch (InterruptedException | IOException | RuntimeException e) {
-            e.printStackTrace();
+        // try to get tile from remote
+        File tilePath = getTilePath(tile);
+        String url = tile.toString(getURLSubdomain());
+        if(Constants.DEBUG_MODE)
+            Log.d(TAG, "url: " + url);
+        try {
+            if (TileDownloader.getInstance().downloadAndWait(
+                    url, getLogin(), getPassword(), tilePath, mTileCache, tile.getKey(),
+                    DELAY)) {
+                ret = mTileCache.getBitmapFromDisk(tilePath);
+                putBitmapToCache(tile.getKey(), ret);
+                return ret;
+            }
+        } catch (TimeoutException e) {
+            mLastCheckTime = System.currentTimeMillis();
             Log.d(TAG, "Problem downloading MapTile: " + url + " Error: " + e.getLocalizedMessage());
+        } catch (InterruptedException e) {
+            // the drawing is cancelled, the download continues in background
+            return null;
         }
+
+        return null;
     }
 
+
+    /**
+     * Get the tile from the memory, the offline package or the disk cache. The outdated tile is
+     * returned and updated in background.
+     */
     @Override
-    public Bitmap getBitmap(final TileItem tile)
+    public Bitmap getCachedBitmap(final TileItem tile)
     {
         if (null == tile) {
             return null;
         }
 
-        Bitmap ret = getBitmapFromCache(tile.getHash());
+        Bitmap ret = getBitmapFromCache(tile.getKey());
         if (null != ret) {
             return ret;
         }
 
+        // try to get tile from the offline package
+        ret = getBitmapFromStorage(tile);
+        if (null != ret) {
+            putBitmapToCache(tile.getKey(), ret);
+            return ret;
+        }
+
         // try to get tile from local cache
-        File tilePath = new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT));
-        boolean exist = tilePath.exists();
+        File tilePath = getTilePath(tile);
         //Log.d(TAG, "time diff: " + (System.currentTimeMillis() - tilePath.lastModified()) + " age: " + DEFAULT_TILE_MAX_AGE);
-        if (exist) {
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
+        if (tilePath.exists()) {
+            ret = mTileCache.getBitmapFromDisk(tilePath);
             if (ret != null) {
-                putBitmapToCache(tile.getHash(), ret);
-                if(System.currentTimeMillis() - tilePath.lastModified() > mTileMaxAge) {
+                putBitmapToCache(tile.getKey(), ret);
+                if (!TileDownloader.isFresh(tilePath, mTileMaxAge)) {
                     if(Constants.DEBUG_MODE)
                         Log.d(Constants.TAG, "Update old tile " + tile.toString() + " tile date:" + tilePath.lastModified() + " current date:" + System.currentTimeMillis());
-                    // update tile
-                    new Thread(new Runnable() {
-                        public void run() {
-                            downloadTile(tile);
-                        }
-                    }).start();
+                    // update tile in background, the same tile is downloaded once
+                    if (mNet.isNetworkAvailable()) {
+                        TileDownloader.getInstance().download(
+                                tile.toString(getURLSubdomain()), getLogin(), getPassword(),
+                                tilePath, mTileCache, tile.getKey());
+                    }
                 }
                 return ret;
             }
-        }
 
-        if (System.currentTimeMillis() - mLastCheckTime < DELAY || !mNet.isNetworkAvailable()) { //return tile from cache
-            return null;
+            // the broken tile should not be revalidated
+            tilePath.delete();
         }
 
-        // try to get tile from remote
-        String url = tile.toString(getURLSubdomain());
-        if(Constants.DEBUG_MODE)
-            Log.d(TAG, "url: " + url);
-        try {
-
-            if (!mAvailable.tryAcquire(DELAY, TimeUnit.MILLISECONDS)) { //.acquire();
-                if (exist) //if exist but not reload from internet
-                {
-                    ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-                }
-
-                mLastCheckTime = System.currentTimeMillis();
-                putBitmapToCache(tile.getHash(), ret);
-                return ret;
-            }
+        return null;
+    }
 
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Semaphore left: " + mAvailable.availablePermits());
 
-            FileUtil.createDir(tilePath.getParentFile());
-            OutputStream output = new FileOutputStream(tilePath.getAbsolutePath());
-            NetworkUtil.getStream(url, getLogin(), getPassword(), output);
+    @Override
+    public int getSourceMaxZoom()
+    {
+        return mSourceMaxZoom;
+    }
 
-            mAvailable.release();
 
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-            putBitmapToCache(tile.getHash(), ret);
-            return ret;
+    /**
+     * @param sourceMaxZoom
+     *         the max zoom level of the server tiles, the tiles of the greater zoom levels are
+     *         scaled from this level
+     */
+    public void setSourceMaxZoom(int sourceMaxZoom)
+    {
+        mSourceMaxZoom = sourceMaxZoom;
+    }
 
-        } catch (IOException | RuntimeException e) {
-            e.printStackTrace();
-            Log.d(TAG, "Problem downloading MapTile: " + url + " Error: " + e.getLocalizedMessage());
-        } catch (InterruptedException e) {
-            mLastCheckTime = System.currentTimeMillis();
-            e.printStackTrace();
-            Log.d(TAG, "Problem downloading MapTile: " + url + " Error: " + e.getLocalizedMessage());
-        }
 
-        if (exist) //if exist but not reload from internet
-        {
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-            putBitmapToCache(tile.getHash(), ret);
-            return ret;
-        }
-        return null;
+    @Override
+    public boolean delete()
+    {
+        TileDownloader.getInstance().cancelAll(mTileCache);
+        return super.delete();
     }
 
 
@@ -247,6 +305,9 @@ public class RemoteTMSLayer
         }
 
         rootConfig.put(JSON_TILE_AGE_KEY, mTileMaxAge);
+        rootConfig.put(JSON_CACHE_QUOTA_KEY, mTileCache.getDiskQuota());
+        rootConfig.put(JSON_CACHE_MAX_AGE_KEY, mTileCache.getDiskMaxAge());
+        rootConfig.put(JSON_SOURCE_MAX_ZOOM_KEY, mSourceMaxZoom);
 
         return rootConfig;
     }
@@ -273,6 +334,12 @@ public class RemoteTMSLayer
             mTileMaxAge = jsonObject.getLong(JSON_TILE_AGE_KEY);
         }
 
+        mTileCache.setDiskQuota(
+                jsonObject.optLong(JSON_CACHE_QUOTA_KEY, TileCache.DEFAULT_DISK_QUOTA));
+        mTileCache.setDiskMaxAge(
+                jsonObject.optLong(JSON_CACHE_MAX_AGE_KEY, TileCache.DEFAULT_DISK_MAX_AGE));
+        mSourceMaxZoom = jsonObject.optInt(JSON_SOURCE_MAX_ZOOM_KEY, GeoConstants.DEFAULT_MAX_ZOOM);
+
         analizeURL(mURL);
     }
 
@@ -353,8 +420,6 @@ public class RemoteTMSLayer
         if (endSubDomains > beginSubDomains) {
             mSubDomainsMask = url.substring(beginSubDomains, endSubDomains + 1);
         }
-
-        mAvailable = new Semaphore(getMaxThreadCount(), true);
     }
 
 
@@ -0,0 +1,277 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.database.Cursor;
+import com.nextgis.maplib.datasource.Feature;
+import com.nextgis.maplib.util.FeatureChanges;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import static com.nextgis.maplib.util.Constants.CHANGE_OPERATION_ATTACH;
+import static com.nextgis.maplib.util.Constants.CHANGE_OPERATION_NEW;
+import static com.nextgis.maplib.util.Constants.CHANGE_OPERATION_NOT_SYNC;
+import static com.nextgis.maplib.util.Constants.CHANGE_OPERATION_TEMP;
+import static com.nextgis.maplib.util.Constants.FIELD_ATTACH_OPERATION;
+import static com.nextgis.maplib.util.Constants.FIELD_FEATURE_ID;
+import static com.nextgis.maplib.util.Constants.FIELD_OPERATION;
+
+
+/**
+ * The index of the server feature ids and the local change records to compare them with the
+ * local layer by the sorted id arrays instead of the query per feature. The local change state
+ * of the features is read by the single query.
+ */
+public class SyncDiff
+{
+    // the feature has any change record
+    public static final int STATE_RECORDS = 1;
+    // the feature has the change to send to server
+    public static final int STATE_CHANGED = 1 << 1;
+    // the feature is created locally and not sent to server yet
+    public static final int STATE_NEW     = 1 << 2;
+    // the feature has the temporary or not sync flag
+    public static final int STATE_FLAGS   = 1 << 3;
+
+    protected long[] mRemoteIds;
+    protected int    mRemoteCount;
+    protected boolean mRemoteSorted;
+    protected long[] mChangeIds;
+    protected int[]  mChangeStates;
+
+
+    public SyncDiff()
+    {
+        mRemoteIds = new long[1024];
+        mRemoteSorted = true;
+        mChangeIds = new long[0];
+        mChangeStates = new int[0];
+    }
+
+
+    /**
+     * Sort the server features by id
+     *
+     * @param remote
+     *         the server features, the later feature wins if the id is repeated
+     */
+    public static Feature[] sortById(Collection<Feature> remote)
+    {
+        Feature[] features = remote.toArray(new Feature[remote.size()]);
+        Arrays.sort(features, new Comparator<Feature>()
+        {
+            @Override
+            public int compare(
+                    Feature lhs,
+                    Feature rhs)
+            {
+                long lhsId = lhs.getId();
+                long rhsId = rhs.getId();
+                return lhsId < rhsId ? -1 : (lhsId == rhsId ? 0 : 1);
+            }
+        });
+
+        // the sort is stable, so the last duplicate is kept
+        int count = 0;
+        for (int i = 0; i < features.length; i++) {
+            if (count > 0 && features[count - 1].getId() == features[i].getId()) {
+                count--;
+            }
+            features[count++] = features[i];
+        }
+
+        return count == features.length ? features : Arrays.copyOf(features, count);
+    }
+
+
+    /**
+     * Remember the server feature ids, only the ids are kept, so the features may be added by
+     * parts while streaming
+     */
+    public void addRemote(Feature[] features)
+    {
+        if (mRemoteCount + features.length > mRemoteIds.length) {
+            mRemoteIds = Arrays.copyOf(
+                    mRemoteIds, Math.max(mRemoteIds.length * 2, mRemoteCount + features.length));
+        }
+        for (Feature feature : features) {
+            long featureId = feature.getId();
+            if (mRemoteCount > 0 && mRemoteIds[mRemoteCount - 1] >= featureId) {
+                mRemoteSorted = false;
+            }
+            mRemoteIds[mRemoteCount++] = featureId;
+        }
+    }
+
+
+    public void addRemote(long featureId)
+    {
+        if (mRemoteCount == mRemoteIds.length) {
+            mRemoteIds = Arrays.copyOf(mRemoteIds, Math.max(mRemoteIds.length * 2, 16));
+        }
+        mRemoteIds[mRemoteCount++] = featureId;
+        mRemoteSorted = false;
+    }
+
+
+    /**
+     * Read the change state of all features from the layer changes table
+     */
+    public void loadChanges(String changeTableName)
+    {
+        Cursor cursor = FeatureChanges.query(changeTableName,
+                new String[] {FIELD_FEATURE_ID, FIELD_OPERATION, FIELD_ATTACH_OPERATION}, null,
+                null, FIELD_FEATURE_ID + " ASC", null);
+        if (null == cursor) {
+            return;
+        }
+
+        long[] ids = new long[cursor.getCount()];
+        int[] states = new int[ids.length];
+        int count = 0;
+        try {
+            if (cursor.moveToFirst()) {
+                do {
+                    long featureId = cursor.getLong(0);
+                    int state = getState(cursor.getInt(1), cursor.getInt(2));
+                    if (count > 0 && ids[count - 1] == featureId) {
+                        states[count - 1] |= state;
+                    } else {
+                        ids[count] = featureId;
+                        states[count] = state;
+                        count++;
+                    }
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        mChangeIds = Arrays.copyOf(ids, count);
+        mChangeStates = Arrays.copyOf(states, count);
+    }
+
+
+    /**
+     * The same conditions as the {@link FeatureChanges} queries use
+     */
+    protected static int getState(
+            int operation,
+            int attachOperation)
+    {
+        int state = STATE_RECORDS;
+        int flags = CHANGE_OPERATION_TEMP | CHANGE_OPERATION_NOT_SYNC;
+        boolean isAttach = 0 != (operation & CHANGE_OPERATION_ATTACH);
+        if (!isAttach && 0 == (operation & flags) || isAttach && 0 == (attachOperation & flags)) {
+            state |= STATE_CHANGED;
+            if (0 != (operation & CHANGE_OPERATION_NEW)) {
+                state |= STATE_NEW;
+            }
+        }
+        if (0 != (operation & flags)) {
+            state |= STATE_FLAGS;
+        }
+        return state;
+    }
+
+
+    /**
+     * @return the sorted server feature ids
+     */
+    public long[] getRemoteIds()
+    {
+        sortRemote();
+        return Arrays.copyOf(mRemoteIds, mRemoteCount);
+    }
+
+
+    public boolean isRemote(long featureId)
+    {
+        sortRemote();
+        return Arrays.binarySearch(mRemoteIds, 0, mRemoteCount, featureId) >= 0;
+    }
+
+
+    protected void sortRemote()
+    {
+        if (!mRemoteSorted) {
+            Arrays.sort(mRemoteIds, 0, mRemoteCount);
+            int count = 0;
+            for (int i = 0; i < mRemoteCount; i++) {
+                if (count == 0 || mRemoteIds[count - 1] != mRemoteIds[i]) {
+                    mRemoteIds[count++] = mRemoteIds[i];
+                }
+            }
+            mRemoteCount = count;
+            mRemoteSorted = true;
+        }
+    }
+
+
+    /**
+     * @return the STATE_* flags or 0 if the feature has no change records
+     */
+    public int getChangeState(long featureId)
+    {
+        int index = Arrays.binarySearch(mChangeIds, featureId);
+        return index < 0 ? 0 : mChangeStates[index];
+    }
+
+
+    public static long[] toSortedArray(Collection<Long> ids)
+    {
+        long[] result = new long[ids.size()];
+        int index = 0;
+        for (Long id : ids) {
+            result[index++] = id;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+
+    /**
+     * @return the sorted ids of the first array which are not in the second one
+     */
+    public static long[] subtract(
+            long[] ids,
+            long[] other)
+    {
+        long[] result = new long[ids.length];
+        int count = 0;
+        int j = 0;
+        for (long id : ids) {
+            while (j < other.length && other[j] < id) {
+                j++;
+            }
+            if (j < other.length && other[j] == id) {
+                continue;
+            }
+            result[count++] = id;
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -24,7 +24,11 @@
 package com.nextgis.maplib.map;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.util.Log;
 
@@ -35,7 +39,9 @@ import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.display.TMSRenderer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.NGException;
+import com.nextgis.maplib.util.RenderMetrics;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -43,8 +49,6 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -60,8 +64,12 @@ public abstract class TMSLayer
 
     protected int mTMSType;
     protected static final int HTTP_SEPARATE_THREADS = 2;
-    protected Map<String, Bitmap> mBitmapCache;
-    protected int                 mCacheSize, mCacheSizeMult;
+    // the ancestor levels to look for the fallback tile
+    protected static final int MAX_FALLBACK_LEVELS = 4;
+    protected TileCache mTileCache;
+    protected MBTilesStorage mStorage;
+    protected boolean        mStorageChecked;
+    protected int       mCacheSizeMult;
     protected int mViewWidth, mViewHeight;
     protected final Object lock = new Object();
 
@@ -73,10 +81,73 @@ public abstract class TMSLayer
         super(context, path);
 
         mCacheSizeMult = 2;
+        mTileCache = createTileCache(path);
         mRenderer = new TMSRenderer(this);
     }
 
 
+    /**
+     * @return the cache which never deletes the tile files
+     */
+    protected TileCache createTileCache(File path)
+    {
+        return new TileCache(path.getName(), null);
+    }
+
+
+    public TileCache getTileCache()
+    {
+        return mTileCache;
+    }
+
+
+    /**
+     * @return the MBTiles storage in the layer folder or null if the layer has no one
+     */
+    public MBTilesStorage getStorage()
+    {
+        synchronized (lock) {
+            if (null == mStorage && !mStorageChecked) {
+                mStorageChecked = true;
+                File path = new File(mPath, MBTilesStorage.MBTILES_FILE);
+                if (path.exists()) {
+                    try {
+                        mStorage = new MBTilesStorage(path);
+                    } catch (SQLiteException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            return mStorage;
+        }
+    }
+
+
+    /**
+     * Check the MBTiles storage presence again, i.e. after the package import
+     */
+    protected void resetStorage()
+    {
+        synchronized (lock) {
+            mStorageChecked = false;
+        }
+    }
+
+
+    protected Bitmap getBitmapFromStorage(TileItem tile)
+    {
+        MBTilesStorage storage = getStorage();
+        if (null == storage) {
+            return null;
+        }
+
+        Bitmap bitmap = storage.getBitmap(
+                tile.getZoomLevel(), tile.getX(), tile.getY(), mTMSType);
+        mTileCache.onDiskLookup(null != bitmap);
+        return bitmap;
+    }
+
+
     public int getTMSType()
     {
         return mTMSType;
@@ -91,32 +162,157 @@ public abstract class TMSLayer
     public abstract Bitmap getBitmap(TileItem tile);
 
 
+    /**
+     * @return the tile available without the network request or null
+     */
+    public Bitmap getCachedBitmap(TileItem tile)
+    {
+        return getBitmap(tile);
+    }
+
+
+    /**
+     * @return the max zoom level of the source tiles
+     */
+    public int getSourceMaxZoom()
+    {
+        return GeoConstants.DEFAULT_MAX_ZOOM;
+    }
+
+
+    /**
+     * Make the tile replacement from the nearest cached ancestor quadrant or the cached children.
+     * The tiles past the source max zoom are always made from the deepest level.
+     *
+     * @return the bitmap of any size to scale to the tile or null
+     */
+    public Bitmap getFallbackBitmap(TileItem tile)
+    {
+        int zoom = tile.getZoomLevel();
+        int firstLevel = Math.max(1, zoom - getSourceMaxZoom());
+        int lastLevel = Math.min(zoom, firstLevel + MAX_FALLBACK_LEVELS);
+        for (int level = firstLevel; level <= lastLevel; level++) {
+            TileItem parent =
+                    new TileItem(tile.getX() >> level, tile.getY() >> level, zoom - level, null);
+            Bitmap bitmap = getCachedBitmap(parent);
+            if (null != bitmap) {
+                return getQuadrant(bitmap, tile, parent, level);
+            }
+        }
+
+        if (zoom < getSourceMaxZoom()) {
+            return getChildrenBitmap(tile);
+        }
+        return null;
+    }
+
+
+    protected Bitmap getQuadrant(
+            Bitmap bitmap,
+            TileItem tile,
+            TileItem parent,
+            int level)
+    {
+        int count = 1 << level;
+        int size = bitmap.getWidth() / count;
+        if (size < 1) {
+            return null;
+        }
+
+        int column = tile.getX() - (parent.getX() << level);
+        int row = tile.getY() - (parent.getY() << level);
+        // the bitmap rows grow to the south as OSM tile rows
+        if (mTMSType != GeoConstants.TMSTYPE_OSM) {
+            row = count - 1 - row;
+        }
+        return Bitmap.createBitmap(bitmap, column * size, row * size, size, size);
+    }
+
+
+    /**
+     * Compose the tile from the children in the memory cache, the missing children are left
+     * transparent
+     */
+    protected Bitmap getChildrenBitmap(TileItem tile)
+    {
+        int half = Constants.DEFAULT_TILE_SIZE / 2;
+        Bitmap result = null;
+        Canvas canvas = null;
+        Paint paint = null;
+        for (int dx = 0; dx < 2; dx++) {
+            for (int dy = 0; dy < 2; dy++) {
+                TileItem child = new TileItem(
+                        tile.getX() * 2 + dx, tile.getY() * 2 + dy, tile.getZoomLevel() + 1, null);
+                Bitmap bitmap = mTileCache.peek(child.getKey());
+                if (null == bitmap) {
+                    continue;
+                }
+
+                if (null == result) {
+                    result = Bitmap.createBitmap(
+                            Constants.DEFAULT_TILE_SIZE, Constants.DEFAULT_TILE_SIZE,
+                            Bitmap.Config.ARGB_8888);
+                    canvas = new Canvas(result);
+                    paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+                }
+
+                int row = mTMSType == GeoConstants.TMSTYPE_OSM ? dy : 1 - dy;
+                Rect dst = new Rect(dx * half, row * half, (dx + 1) * half, (row + 1) * half);
+                canvas.drawBitmap(bitmap, null, dst, paint);
+            }
+        }
+        return result;
+    }
+
+
     protected void putBitmapToCache(
-            String tileHash,
+            long tileKey,
             Bitmap bitmap)
     {
+        if (null != bitmap)
+            RenderMetrics.add(mId, RenderMetrics.COUNT_BYTES_DECODED,
+                    bitmap.getRowBytes() * bitmap.getHeight());
+
         if (mCacheSizeMult == 0) {
             return;
         }
-        synchronized (lock) {
-            if (mBitmapCache != null) {
-                mBitmapCache.put(tileHash, bitmap);
-            }
-        }
+        mTileCache.putBitmap(tileKey, bitmap);
     }
 
 
-    protected Bitmap getBitmapFromCache(String tileHash)
+    /**
+     * @deprecated use {@link #putBitmapToCache(long, Bitmap)} with {@link TileItem#getKey()}
+     */
+    @Deprecated
+    protected void putBitmapToCache(
+            String tileHash,
+            Bitmap bitmap)
     {
-        if (mCacheSizeMult == 0) {
-            return null;
+        // the hash is "z<zoom>.<x>.<y>", see TileItem.getHash()
+        String[] parts = tileHash.substring(1).split("\\.");
+        if (parts.length != 3) {
+            return;
         }
-        synchronized (lock) {
-            if (mBitmapCache != null) {
-                return mBitmapCache.get(tileHash);
-            }
+        try {
+            putBitmapToCache(TileItem.getKey(Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), Integer.parseInt(parts[0])), bitmap);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
         }
-        return null;
+    }
+
+
+    protected Bitmap getBitmapFromCache(long tileKey)
+    {
+        Bitmap bitmap = null;
+        if (mCacheSizeMult != 0) {
+            bitmap = mTileCache.getBitmap(tileKey);
+        }
+
+        RenderMetrics.add(mId, null != bitmap
+                ? RenderMetrics.COUNT_TILE_HITS
+                : RenderMetrics.COUNT_TILE_MISSES, 1);
+        return bitmap;
     }
 
 
@@ -187,13 +383,16 @@ public abstract class TMSLayer
     }
 
 
+    /**
+     * @param cacheSizeMult
+     *         the count of the screens of tiles the shared memory cache should hold, 0 to disable
+     *         the memory cache for this layer
+     */
     public void setCacheSizeMultiply(int cacheSizeMult)
     {
         mCacheSizeMult = cacheSizeMult;
         if (mCacheSizeMult == 0) {
-            synchronized (lock) {
-                mBitmapCache = null;
-            }
+            mTileCache.clearMemory();
             return;
         }
 
@@ -203,31 +402,27 @@ public abstract class TMSLayer
                          (int) (mViewHeight * Constants.OFFSCREEN_EXTRASIZE_RATIO /
                                 Constants.DEFAULT_TILE_SIZE) * mCacheSizeMult;
 
-        if (null != mBitmapCache && mCacheSize >= nTileCount) {
-            return;
-        }
         if (nTileCount < 30) {
             nTileCount = 30;
         }
 
-        synchronized (lock) {
-            mBitmapCache = lruCache(nTileCount);
-        }
-
-        mCacheSize = nTileCount;
+        // ARGB_8888 tiles
+        TileCache.ensureMemorySize(
+                (long) nTileCount * Constants.DEFAULT_TILE_SIZE * Constants.DEFAULT_TILE_SIZE * 4);
     }
 
 
-    protected static <K, V> Map<K, V> lruCache(final int maxSize)
+    @Override
+    public boolean delete()
     {
-        return new LinkedHashMap<K, V>(maxSize * 4 / 3, 0.75f, true)
-        {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
-            {
-                return size() > maxSize;
+        mTileCache.clearMemory();
+        synchronized (lock) {
+            if (null != mStorage) {
+                mStorage.close();
+                mStorage = null;
             }
-        };
+        }
+        return super.delete();
     }
 
     protected void fillFromZipInt(Uri uri, IProgressor progressor) throws IOException, NGException, RuntimeException {
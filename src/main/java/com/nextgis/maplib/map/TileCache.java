@@ -0,0 +1,651 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Two tier raster tile cache. The memory tier is shared by all layers and bounded by the bitmaps
+ * size in bytes. The disk tier is per layer and bounded by the files size, the least recently
+ * used and outdated tiles are deleted. The pinned tiles, i.e. the seeded for the offline use, are
+ * kept out of the quota and are never deleted by the cache.
+ * <p>
+ * The memory tier is keyed by the packed tile key with the cache id in the higher bits, so the
+ * lookup builds no strings.
+ */
+public class TileCache
+{
+    public static final long DEFAULT_DISK_QUOTA   = 100 * 1024 * 1024; // 100 Mb
+    public static final long DEFAULT_DISK_MAX_AGE = Constants.ONE_WEEK * 8;
+    public static final String PINNED_FILE        = "pinned.txt";
+    // the part of the heap to use for the bitmaps by default and at most
+    protected static final int MEMORY_DEFAULT_DIVIDER = 8;
+    protected static final int MEMORY_MAX_DIVIDER     = 4;
+
+    // the ids are kept per cache key, the layer reloaded from the same folder gets the same id
+    protected static final int MAX_CACHE_ID = (1 << (Long.SIZE - TileItem.KEY_BITS)) - 1;
+    protected static final Map<String, Integer> mCacheIds = new HashMap<>();
+
+    protected static final Map<Long, Bitmap> mMemoryCache = new LinkedHashMap<>(64, 0.75f, true);
+    protected static long mMemorySize;
+    protected static long mMemoryMaxSize = Runtime.getRuntime().maxMemory() / MEMORY_DEFAULT_DIVIDER;
+
+    protected final long   mKeyPrefix;
+    protected final File   mDiskPath;
+    protected final Object mDiskLock = new Object();
+    protected Map<String, Long> mDiskIndex;
+    protected Map<String, Long> mPinnedIndex;
+    protected long mDiskSize;
+    protected long mPinnedSize;
+    protected long mDiskQuota;
+    protected long mDiskMaxAge;
+
+    protected final AtomicLong mMemoryHits   = new AtomicLong();
+    protected final AtomicLong mMemoryMisses = new AtomicLong();
+    protected final AtomicLong mDiskHits     = new AtomicLong();
+    protected final AtomicLong mDiskMisses   = new AtomicLong();
+
+
+    /**
+     * @param key
+     *         the unique cache key, i.e. the layer path name
+     * @param diskPath
+     *         the tiles folder to control the size, null if the tiles should never be deleted
+     */
+    public TileCache(
+            String key,
+            File diskPath)
+    {
+        mKeyPrefix = (long) getCacheId(key) << TileItem.KEY_BITS;
+        mDiskPath = diskPath;
+        mDiskQuota = DEFAULT_DISK_QUOTA;
+        mDiskMaxAge = DEFAULT_DISK_MAX_AGE;
+    }
+
+
+    protected static int getCacheId(String key)
+    {
+        synchronized (mMemoryCache) {
+            Integer id = mCacheIds.get(key);
+            if (null == id) {
+                id = mCacheIds.size() % MAX_CACHE_ID + 1;
+                if (mCacheIds.size() >= MAX_CACHE_ID) {
+                    // the ids are exhausted, the reused id should not get the foreign tiles
+                    removeMemory((long) id << TileItem.KEY_BITS);
+                }
+                mCacheIds.put(key, id);
+            }
+            return id;
+        }
+    }
+
+
+    /**
+     * @return the tile key unique among all caches
+     */
+    public long getKey(long tileKey)
+    {
+        return mKeyPrefix | tileKey;
+    }
+
+
+    public Bitmap getBitmap(long tileKey)
+    {
+        Bitmap bitmap;
+        synchronized (mMemoryCache) {
+            bitmap = mMemoryCache.get(mKeyPrefix | tileKey);
+        }
+
+        if (null != bitmap) {
+            mMemoryHits.incrementAndGet();
+        } else {
+            mMemoryMisses.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * Get the bitmap from the memory tier without the statistics update
+     */
+    public Bitmap peek(long tileKey)
+    {
+        synchronized (mMemoryCache) {
+            return mMemoryCache.get(mKeyPrefix | tileKey);
+        }
+    }
+
+
+    /**
+     * Check the memory tier without the statistics update and the recently used order change
+     */
+    public boolean contains(long tileKey)
+    {
+        synchronized (mMemoryCache) {
+            return mMemoryCache.containsKey(mKeyPrefix | tileKey);
+        }
+    }
+
+
+    public void putBitmap(
+            long tileKey,
+            Bitmap bitmap)
+    {
+        if (null == bitmap) {
+            return;
+        }
+
+        synchronized (mMemoryCache) {
+            Bitmap old = mMemoryCache.put(mKeyPrefix | tileKey, bitmap);
+            if (null != old) {
+                mMemorySize -= getByteCount(old);
+            }
+            mMemorySize += getByteCount(bitmap);
+            trimMemory();
+        }
+    }
+
+
+    /**
+     * Decode the tile file and mark it as recently used
+     *
+     * @return the bitmap or null if the file is not exist or broken
+     */
+    public Bitmap getBitmapFromDisk(File tilePath)
+    {
+        Bitmap bitmap = null;
+        if (tilePath.exists()) {
+            bitmap = TileDecoder.decodeFile(tilePath.getAbsolutePath());
+        }
+
+        onDiskLookup(null != bitmap);
+        if (null == bitmap) {
+            return null;
+        }
+
+        if (null != mDiskPath) {
+            synchronized (mDiskLock) {
+                if (null != mDiskIndex) {
+                    mDiskIndex.get(tilePath.getAbsolutePath()); // move to the end
+                }
+            }
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * Count the tile lookup in the disk tier not managed by this cache, i.e. in MBTiles storage
+     */
+    public void onDiskLookup(boolean hit)
+    {
+        if (hit) {
+            mDiskHits.incrementAndGet();
+        } else {
+            mDiskMisses.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Account the new or updated tile file and delete the old tiles if the quota is exceeded
+     */
+    public void onTileStored(File tilePath)
+    {
+        if (null == mDiskPath) {
+            return;
+        }
+
+        synchronized (mDiskLock) {
+            loadDiskIndex();
+            String path = tilePath.getAbsolutePath();
+            long size = getFileSize(tilePath);
+            Long old = mPinnedIndex.get(path);
+            if (null != old) {
+                mPinnedIndex.put(path, size);
+                mPinnedSize += size - old;
+                return;
+            }
+
+            old = mDiskIndex.remove(path);
+            if (null != old) {
+                mDiskSize -= old;
+            }
+            mDiskIndex.put(path, size);
+            mDiskSize += size;
+            trimDisk();
+        }
+    }
+
+
+    /**
+     * Keep the tiles out of the quota and the outdated tiles deletion. The tiles may be not
+     * downloaded yet. The pinned tiles list is saved to the tiles folder.
+     */
+    public void pin(Collection<File> tilePaths)
+    {
+        if (null == mDiskPath || tilePaths.isEmpty()) {
+            return;
+        }
+
+        synchronized (mDiskLock) {
+            loadDiskIndex();
+            String root = mDiskPath.getAbsolutePath() + File.separator;
+            StringBuilder lines = new StringBuilder();
+            for (File tilePath : tilePaths) {
+                String path = tilePath.getAbsolutePath();
+                if (!path.startsWith(root) || mPinnedIndex.containsKey(path)) {
+                    continue;
+                }
+
+                Long size = mDiskIndex.remove(path);
+                if (null != size) {
+                    mDiskSize -= size;
+                } else {
+                    size = getFileSize(tilePath);
+                }
+                mPinnedIndex.put(path, size);
+                mPinnedSize += size;
+                lines.append(path.substring(root.length())).append('\n');
+            }
+
+            if (lines.length() == 0) {
+                return;
+            }
+            try {
+                FileUtil.createDir(mDiskPath);
+                BufferedWriter writer = new BufferedWriter(
+                        new FileWriter(new File(mDiskPath, PINNED_FILE), true));
+                try {
+                    writer.write(lines.toString());
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Return the pinned tiles to the cache, they are deleted then as the other tiles
+     */
+    public void unpinAll()
+    {
+        if (null == mDiskPath) {
+            return;
+        }
+
+        synchronized (mDiskLock) {
+            loadDiskIndex();
+            for (Map.Entry<String, Long> entry : mPinnedIndex.entrySet()) {
+                if (new File(entry.getKey()).exists()) {
+                    mDiskIndex.put(entry.getKey(), entry.getValue());
+                    mDiskSize += entry.getValue();
+                }
+            }
+            mPinnedIndex.clear();
+            mPinnedSize = 0;
+
+            File pinnedFile = new File(mDiskPath, PINNED_FILE);
+            if (pinnedFile.exists()) {
+                pinnedFile.delete();
+            }
+            trimDisk();
+        }
+    }
+
+
+    /**
+     * Delete the tiles exceeding the disk quota
+     */
+    public void trimDisk()
+    {
+        if (null == mDiskPath) {
+            return;
+        }
+
+        synchronized (mDiskLock) {
+            loadDiskIndex();
+            Iterator<Map.Entry<String, Long>> iterator = mDiskIndex.entrySet().iterator();
+            while (mDiskSize > mDiskQuota && iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                File file = new File(entry.getKey());
+                if (!file.exists() || file.delete()) {
+                    deleteValidators(file);
+                    mDiskSize -= entry.getValue();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Scan the tiles folder once, the outdated tiles are deleted and the rest are ordered from
+     * the oldest to the newest. The pinned tiles are indexed separately.
+     */
+    protected void loadDiskIndex()
+    {
+        if (null != mDiskIndex) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        loadPinnedIndex();
+        List<File> files = new ArrayList<>();
+        collectTiles(mDiskPath, files);
+        Collections.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(
+                    File lhs,
+                    File rhs)
+            {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+
+        mDiskIndex = new LinkedHashMap<>(files.size() * 4 / 3 + 16, 0.75f, true);
+        mDiskSize = 0;
+        for (File file : files) {
+            if (mPinnedIndex.containsKey(file.getAbsolutePath())) {
+                continue;
+            }
+            if (mDiskMaxAge > 0 && startTime - file.lastModified() > mDiskMaxAge
+                    && !TileDownloader.isFresh(file, mDiskMaxAge)) {
+                if (file.delete()) {
+                    deleteValidators(file);
+                    continue;
+                }
+            }
+            long size = getFileSize(file);
+            mDiskIndex.put(file.getAbsolutePath(), size);
+            mDiskSize += size;
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "Tile cache " + mDiskPath.getName() + " files: " +
+                    mDiskIndex.size() + " size: " + mDiskSize + " scan time: " +
+                    (System.currentTimeMillis() - startTime));
+        }
+    }
+
+
+    protected void loadPinnedIndex()
+    {
+        mPinnedIndex = new HashMap<>();
+        mPinnedSize = 0;
+        File pinnedFile = new File(mDiskPath, PINNED_FILE);
+        if (!pinnedFile.exists()) {
+            return;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(pinnedFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    File tilePath = new File(mDiskPath, line);
+                    String path = tilePath.getAbsolutePath();
+                    if (!mPinnedIndex.containsKey(path)) {
+                        long size = getFileSize(tilePath);
+                        mPinnedIndex.put(path, size);
+                        mPinnedSize += size;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * @return the tile file size with its validators
+     */
+    protected static long getFileSize(File tilePath)
+    {
+        File validatorsPath = new File(tilePath.getAbsolutePath() + TileDownloader.VALIDATORS_EXT);
+        return tilePath.length() + validatorsPath.length();
+    }
+
+
+    protected static void deleteValidators(File tilePath)
+    {
+        File validatorsPath = new File(tilePath.getAbsolutePath() + TileDownloader.VALIDATORS_EXT);
+        if (validatorsPath.exists()) {
+            validatorsPath.delete();
+        }
+    }
+
+
+    protected static void collectTiles(
+            File dir,
+            List<File> files)
+    {
+        File[] children = dir.listFiles();
+        if (null == children) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectTiles(child, files);
+            } else if (child.getName().endsWith(TMSLayer.TILE_EXT)) {
+                files.add(child);
+            }
+        }
+    }
+
+
+    /**
+     * Remove this cache bitmaps from the memory tier
+     */
+    public void clearMemory()
+    {
+        synchronized (mMemoryCache) {
+            removeMemory(mKeyPrefix);
+        }
+    }
+
+
+    protected static void removeMemory(long keyPrefix)
+    {
+        Iterator<Map.Entry<Long, Bitmap>> iterator = mMemoryCache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Bitmap> entry = iterator.next();
+            if ((entry.getKey() >>> TileItem.KEY_BITS) == (keyPrefix >>> TileItem.KEY_BITS)) {
+                mMemorySize -= getByteCount(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+
+    protected static void trimMemory()
+    {
+        Iterator<Map.Entry<Long, Bitmap>> iterator = mMemoryCache.entrySet().iterator();
+        while (mMemorySize > mMemoryMaxSize && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next().getValue();
+            mMemorySize -= getByteCount(bitmap);
+            iterator.remove();
+        }
+    }
+
+
+    protected static long getByteCount(Bitmap bitmap)
+    {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    /**
+     * Grow the shared memory tier to hold at least the specified size, but not more than a
+     * quarter of the heap
+     */
+    public static void ensureMemorySize(long size)
+    {
+        long maxSize = Runtime.getRuntime().maxMemory() / MEMORY_MAX_DIVIDER;
+        synchronized (mMemoryCache) {
+            mMemoryMaxSize = Math.max(mMemoryMaxSize, Math.min(size, maxSize));
+        }
+    }
+
+
+    public static void setMemoryMaxSize(long size)
+    {
+        synchronized (mMemoryCache) {
+            mMemoryMaxSize = size;
+            trimMemory();
+        }
+    }
+
+
+    public static long getMemoryMaxSize()
+    {
+        return mMemoryMaxSize;
+    }
+
+
+    public static long getMemorySize()
+    {
+        synchronized (mMemoryCache) {
+            return mMemorySize;
+        }
+    }
+
+
+    public long getDiskQuota()
+    {
+        return mDiskQuota;
+    }
+
+
+    public void setDiskQuota(long diskQuota)
+    {
+        mDiskQuota = diskQuota;
+    }
+
+
+    public long getDiskMaxAge()
+    {
+        return mDiskMaxAge;
+    }
+
+
+    /**
+     * @param diskMaxAge
+     *         the time in ms to keep the unused tiles, 0 to keep while the quota is not exceeded
+     */
+    public void setDiskMaxAge(long diskMaxAge)
+    {
+        mDiskMaxAge = diskMaxAge;
+    }
+
+
+    /**
+     * @return the not pinned tiles size on disk or -1 if the folder is not scanned yet
+     */
+    public long getDiskSize()
+    {
+        synchronized (mDiskLock) {
+            return null == mDiskIndex ? -1 : mDiskSize;
+        }
+    }
+
+
+    /**
+     * @return the pinned tiles size on disk or -1 if the folder is not scanned yet
+     */
+    public long getPinnedSize()
+    {
+        synchronized (mDiskLock) {
+            return null == mDiskIndex ? -1 : mPinnedSize;
+        }
+    }
+
+
+    public long getMemoryHits()
+    {
+        return mMemoryHits.get();
+    }
+
+
+    public long getMemoryMisses()
+    {
+        return mMemoryMisses.get();
+    }
+
+
+    public long getDiskHits()
+    {
+        return mDiskHits.get();
+    }
+
+
+    public long getDiskMisses()
+    {
+        return mDiskMisses.get();
+    }
+
+
+    public void resetStatistics()
+    {
+        mMemoryHits.set(0);
+        mMemoryMisses.set(0);
+        mDiskHits.set(0);
+        mDiskMisses.set(0);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+
+/**
+ * The tile decoding with the scratch buffer reused per thread. The bitmaps are not pooled: the
+ * evicted tile may be still drawn by the map or used as the parent or child tile fallback, so
+ * its bitmap can not be decoded into.
+ */
+public final class TileDecoder
+{
+    protected static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+    protected static final ThreadLocal<byte[]> mTempStorage = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[TEMP_STORAGE_SIZE];
+        }
+    };
+
+
+    private TileDecoder()
+    {
+    }
+
+
+    public static Bitmap decodeFile(String path)
+    {
+        return BitmapFactory.decodeFile(path, getOptions());
+    }
+
+
+    public static Bitmap decodeByteArray(
+            byte[] data,
+            int offset,
+            int length)
+    {
+        return BitmapFactory.decodeByteArray(data, offset, length, getOptions());
+    }
+
+
+    protected static BitmapFactory.Options getOptions()
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = mTempStorage.get();
+        return options;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.util.Log;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.HttpClient;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The tile downloads shared by all remote layers. The requests of the same tile file are
+ * coalesced to the single download, the concurrent connections to the each host are limited by
+ * the shared {@link HttpClient}. The tile is written to the temporary file and renamed then
+ * completed, so the partially downloaded tile is never decoded. The existing tile is revalidated
+ * with the ETag and Last-Modified values saved near it. The queued downloads start by priority:
+ * the visible tiles first, then the prefetched and the seeded ones.
+ */
+public class TileDownloader
+{
+    public static final int MAX_THREADS          = 8;
+    public static final int MAX_HOST_CONNECTIONS = TMSLayer.HTTP_SEPARATE_THREADS;
+
+    public static final int PRIORITY_VISIBLE  = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_SEED     = 2;
+
+    protected static final String PART_EXT = ".part";
+    public static final String VALIDATORS_EXT = ".etag";
+
+    protected static final String JSON_ETAG_KEY          = "etag";
+    protected static final String JSON_LAST_MODIFIED_KEY = "last_modified";
+    protected static final String JSON_CHECKED_KEY       = "checked";
+
+    protected static TileDownloader mInstance;
+
+    protected final ThreadPoolExecutor        mExecutor;
+    protected final Map<Long, DownloadTask>   mInFlight;
+    protected final AtomicLong                mSequence;
+
+
+    protected TileDownloader()
+    {
+        mInFlight = new HashMap<>();
+        mSequence = new AtomicLong();
+        HttpClient.getInstance().setHostLimit(HttpClient.REQUEST_TILE, MAX_HOST_CONNECTIONS);
+        mExecutor = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS, Constants.KEEP_ALIVE_TIME * 100,
+                Constants.KEEP_ALIVE_TIME_UNIT, new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+
+    public static synchronized TileDownloader getInstance()
+    {
+        if (null == mInstance) {
+            mInstance = new TileDownloader();
+        }
+        return mInstance;
+    }
+
+
+    /**
+     * Queue the download of the visible tile, see {@link #download(String, String, String, File,
+     * TileCache, long, int)}
+     */
+    public Future<Boolean> download(
+            String url,
+            String login,
+            String password,
+            File tilePath,
+            TileCache cache,
+            long tileKey)
+    {
+        return download(url, login, password, tilePath, cache, tileKey, PRIORITY_VISIBLE);
+    }
+
+
+    /**
+     * Queue the tile download or join the download of the same tile in progress. The queued
+     * download of the same tile is moved up if the new request has the higher priority.
+     *
+     * @param url
+     *         the tile url
+     * @param tilePath
+     *         the file to save the tile to
+     * @param cache
+     *         the cache to account the downloaded tile in
+     * @param tileKey
+     *         the packed tile key to find the download of the same tile
+     * @param priority
+     *         one of PRIORITY_VISIBLE, PRIORITY_PREFETCH or PRIORITY_SEED
+     *
+     * @return the future result, true if the tile is downloaded
+     */
+    public Future<Boolean> download(
+            final String url,
+            final String login,
+            final String password,
+            final File tilePath,
+            final TileCache cache,
+            long tileKey,
+            int priority)
+    {
+        final long key = cache.getKey(tileKey);
+        synchronized (mInFlight) {
+            DownloadTask task = mInFlight.get(key);
+            if (null != task) {
+                // the queue order is fixed on insert, so the task is queued again
+                if (priority < task.mPriority && mExecutor.remove(task)) {
+                    task.mPriority = priority;
+                    mExecutor.execute(task);
+                }
+                return task;
+            }
+
+            task = new DownloadTask(key, priority, new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                        throws Exception
+                {
+                    android.os.Process.setThreadPriority(
+                            Constants.DEFAULT_DOWNLOAD_THREAD_PRIORITY);
+                    boolean result = fetch(url, login, password, tilePath);
+                    if (result) {
+                        cache.onTileStored(tilePath);
+                    }
+                    return result;
+                }
+            });
+            mInFlight.put(key, task);
+            mExecutor.execute(task);
+            return task;
+        }
+    }
+
+
+    /**
+     * Download the tile and wait for the result
+     *
+     * @param timeout
+     *         the time to wait in ms, the download continues in background after the timeout
+     *
+     * @return true if the tile is downloaded
+     *
+     * @throws InterruptedException
+     *         if the waiting thread is interrupted
+     * @throws TimeoutException
+     *         if the tile is not downloaded in time
+     */
+    public boolean downloadAndWait(
+            String url,
+            String login,
+            String password,
+            File tilePath,
+            TileCache cache,
+            long tileKey,
+            long timeout)
+            throws InterruptedException, TimeoutException
+    {
+        return downloadAndWait(
+                url, login, password, tilePath, cache, tileKey, PRIORITY_VISIBLE, timeout);
+    }
+
+
+    /**
+     * Download the tile with the priority and wait for the result, see {@link
+     * #downloadAndWait(String, String, String, File, TileCache, long, long)}
+     */
+    public boolean downloadAndWait(
+            String url,
+            String login,
+            String password,
+            File tilePath,
+            TileCache cache,
+            long tileKey,
+            int priority,
+            long timeout)
+            throws InterruptedException, TimeoutException
+    {
+        Future<Boolean> future =
+                download(url, login, password, tilePath, cache, tileKey, priority);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | CancellationException e) {
+            return false;
+        }
+    }
+
+
+    protected boolean fetch(
+            String url,
+            String login,
+            String password,
+            final File tilePath)
+            throws IOException, InterruptedException
+    {
+        final File validatorsPath = new File(tilePath.getAbsolutePath() + VALIDATORS_EXT);
+        HttpClient.RequestWriter writer = null;
+        if (tilePath.exists()) {
+            writer = new HttpClient.RequestWriter()
+            {
+                @Override
+                public void write(HttpURLConnection conn)
+                        throws IOException
+                {
+                    setValidators(conn, tilePath, validatorsPath);
+                }
+            };
+        }
+
+        HttpClient.Response response = HttpClient.getInstance().execute("GET", url, login,
+                password, HttpClient.REQUEST_TILE, writer);
+        if (null == response) {
+            return false;
+        }
+
+        try {
+            int responseCode = response.getCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // the tile is not changed, only mark it as fresh. The file date can not be
+                // changed on some storages, so the check time is kept with the validators
+                if (!tilePath.exists()) {
+                    return false;
+                }
+                long now = System.currentTimeMillis();
+                tilePath.setLastModified(now);
+                saveCheckedTime(validatorsPath, now);
+                return true;
+            }
+
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(TAG, "Problem downloading tile: " + url + " HTTP response: " +
+                            responseCode);
+                }
+                return false;
+            }
+
+            FileUtil.createDir(tilePath.getParentFile());
+            File partPath = new File(tilePath.getAbsolutePath() + PART_EXT);
+            InputStream is = response.getInputStream();
+            OutputStream os = new FileOutputStream(partPath);
+            byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+            try {
+                FileUtil.copyStream(is, os, buffer, Constants.IO_BUFFER_SIZE);
+            } finally {
+                os.close();
+                // the fully read and closed stream returns the connection to the keep-alive pool
+                is.close();
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                partPath.delete();
+                return false;
+            }
+            if (!partPath.renameTo(tilePath) && !(tilePath.delete() && partPath.renameTo(tilePath))) {
+                return false;
+            }
+
+            saveValidators(response.getConnection(), validatorsPath);
+            return true;
+        } finally {
+            response.close();
+        }
+    }
+
+
+    /**
+     * Make the request conditional. The tile file date is used as If-Modified-Since if the server
+     * sent no validators.
+     */
+    protected void setValidators(
+            HttpURLConnection conn,
+            File tilePath,
+            File validatorsPath)
+    {
+        if (validatorsPath.exists()) {
+            try {
+                JSONObject validators = new JSONObject(FileUtil.readFromFile(validatorsPath));
+                String etag = validators.optString(JSON_ETAG_KEY, null);
+                if (null != etag) {
+                    conn.setRequestProperty("If-None-Match", etag);
+                }
+                String lastModified = validators.optString(JSON_LAST_MODIFIED_KEY, null);
+                if (null != lastModified) {
+                    conn.setRequestProperty("If-Modified-Since", lastModified);
+                }
+                if (null != etag || null != lastModified) {
+                    return;
+                }
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        conn.setIfModifiedSince(tilePath.lastModified());
+    }
+
+
+    protected void saveValidators(
+            HttpURLConnection conn,
+            File validatorsPath)
+    {
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        if (null == etag && null == lastModified) {
+            if (validatorsPath.exists()) {
+                validatorsPath.delete();
+            }
+            return;
+        }
+
+        try {
+            JSONObject validators = new JSONObject();
+            validators.put(JSON_ETAG_KEY, etag);
+            validators.put(JSON_LAST_MODIFIED_KEY, lastModified);
+            FileUtil.writeToFile(validatorsPath, validators.toString());
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    protected void saveCheckedTime(
+            File validatorsPath,
+            long checkedTime)
+    {
+        try {
+            JSONObject validators = validatorsPath.exists() ? new JSONObject(
+                    FileUtil.readFromFile(validatorsPath)) : new JSONObject();
+            validators.put(JSON_CHECKED_KEY, checkedTime);
+            FileUtil.writeToFile(validatorsPath, validators.toString());
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * @return true if the tile is downloaded or revalidated not earlier than the max age ago
+     */
+    public static boolean isFresh(
+            File tilePath,
+            long maxAge)
+    {
+        long now = System.currentTimeMillis();
+        if (now - tilePath.lastModified() < maxAge) {
+            return true;
+        }
+
+        File validatorsPath = new File(tilePath.getAbsolutePath() + VALIDATORS_EXT);
+        if (!validatorsPath.exists()) {
+            return false;
+        }
+
+        try {
+            JSONObject validators = new JSONObject(FileUtil.readFromFile(validatorsPath));
+            return now - validators.optLong(JSON_CHECKED_KEY, 0) < maxAge;
+        } catch (IOException | JSONException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Cancel the tile download
+     */
+    public void cancel(
+            TileCache cache,
+            long tileKey)
+    {
+        DownloadTask task;
+        synchronized (mInFlight) {
+            task = mInFlight.remove(cache.getKey(tileKey));
+        }
+        if (null != task) {
+            task.cancel(true);
+            mExecutor.remove(task);
+        }
+    }
+
+
+    /**
+     * Cancel the tile download if it is not started yet and no request of the higher priority
+     * waits for it, i.e. the prefetched tile which is out of the view now
+     */
+    public void cancelQueued(
+            TileCache cache,
+            long tileKey,
+            int priority)
+    {
+        long key = cache.getKey(tileKey);
+        DownloadTask task;
+        synchronized (mInFlight) {
+            task = mInFlight.get(key);
+            if (null == task || task.mPriority < priority || !mExecutor.remove(task)) {
+                return;
+            }
+            mInFlight.remove(key);
+        }
+        task.cancel(false);
+    }
+
+
+    /**
+     * Cancel all downloads of the cache, i.e. of the deleted layer
+     */
+    public void cancelAll(TileCache cache)
+    {
+        long prefix = cache.getKey(0) >>> TileItem.KEY_BITS;
+        List<DownloadTask> tasks = new ArrayList<>();
+        synchronized (mInFlight) {
+            for (Map.Entry<Long, DownloadTask> entry : mInFlight.entrySet()) {
+                if (entry.getKey() >>> TileItem.KEY_BITS == prefix) {
+                    tasks.add(entry.getValue());
+                }
+            }
+            mInFlight.values().removeAll(tasks);
+        }
+
+        for (DownloadTask task : tasks) {
+            task.cancel(true);
+            mExecutor.remove(task);
+        }
+    }
+
+
+    protected class DownloadTask
+            extends FutureTask<Boolean>
+            implements Comparable<DownloadTask>
+    {
+        protected final long mKey;
+        protected final long mSequence;
+        // changed under the mInFlight lock while the task is out of the queue
+        protected       int  mPriority;
+
+
+        public DownloadTask(
+                long key,
+                int priority,
+                Callable<Boolean> callable)
+        {
+            super(callable);
+            mKey = key;
+            mPriority = priority;
+            mSequence = TileDownloader.this.mSequence.getAndIncrement();
+        }
+
+
+        @Override
+        public int compareTo(DownloadTask another)
+        {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+
+        @Override
+        protected void done()
+        {
+            synchronized (mInFlight) {
+                if (mInFlight.get(mKey) == this) {
+                    mInFlight.remove(mKey);
+                }
+            }
+        }
+    }
+
+
+    public int getInFlightCount()
+    {
+        synchronized (mInFlight) {
+            return mInFlight.size();
+        }
+    }
+}
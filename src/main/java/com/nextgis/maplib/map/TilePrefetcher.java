@@ -0,0 +1,261 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
+
+
+/**
+ * Load the tiles around the visible area and of the next and previous zoom levels in background.
+ * The tiles ring of the current zoom is decoded to the memory cache, the tiles of the other zoom
+ * levels are only downloaded to the disk cache. All queued tiles and their not started downloads
+ * are dropped on view change.
+ */
+public class TilePrefetcher
+{
+    public static final int PRIORITY_RING     = 0;
+    public static final int PRIORITY_ZOOM_OUT = 1;
+    public static final int PRIORITY_ZOOM_IN  = 2;
+
+    protected static final int MAX_PREFETCH_TILES = 128;
+
+    protected final TMSLayer           mLayer;
+    protected final ThreadPoolExecutor mExecutor;
+    protected final AtomicInteger      mGeneration;
+    protected final AtomicLong         mSequence;
+    protected final Set<Long>          mDownloads;
+
+
+    public TilePrefetcher(TMSLayer layer)
+    {
+        mLayer = layer;
+        mGeneration = new AtomicInteger();
+        mSequence = new AtomicLong();
+        mDownloads = new HashSet<>();
+        mExecutor = new ThreadPoolExecutor(
+                1, 1, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Drop the queued tiles, i.e. then the view is changed and the visible tiles should be loaded
+     * first
+     */
+    public void cancel()
+    {
+        mGeneration.incrementAndGet();
+        mExecutor.getQueue().clear();
+
+        List<Long> downloads;
+        synchronized (mDownloads) {
+            if (mDownloads.isEmpty()) {
+                return;
+            }
+            downloads = new ArrayList<>(mDownloads);
+        }
+        for (Long tileKey : downloads) {
+            TileDownloader.getInstance().cancelQueued(
+                    mLayer.getTileCache(), tileKey, TileDownloader.PRIORITY_PREFETCH);
+        }
+    }
+
+
+    /**
+     * Queue the tiles around the visible ones
+     *
+     * @param bounds
+     *         the drawn area
+     * @param zoom
+     *         the drawn zoom level
+     * @param visibleTiles
+     *         the already drawn tiles
+     */
+    public void prefetch(
+            GeoEnvelope bounds,
+            double zoom,
+            Collection<TileItem> visibleTiles)
+    {
+        cancel();
+        int generation = mGeneration.get();
+        int decimalZoom = (int) zoom;
+        int tmsType = mLayer.getTMSType();
+
+        long[] skip = new long[visibleTiles.size()];
+        int index = 0;
+        for (TileItem tile : visibleTiles) {
+            skip[index++] = tile.getKey();
+        }
+        Arrays.sort(skip);
+
+        // one tile ring at the current zoom
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / (1 << decimalZoom);
+        GeoEnvelope ring = new GeoEnvelope(
+                bounds.getMinX() - tileSize, bounds.getMaxX() + tileSize,
+                bounds.getMinY() - tileSize, bounds.getMaxY() + tileSize);
+
+        int count = 0;
+        count += queue(MapUtil.getTileKeys(ring, decimalZoom, tmsType), skip, PRIORITY_RING,
+                true, generation, count);
+
+        // the tiles of the other zoom levels are downloaded only
+        if (!(mLayer instanceof RemoteTMSLayer)) {
+            return;
+        }
+        if (decimalZoom > mLayer.getMinZoom() && decimalZoom > 0) {
+            count += queue(MapUtil.getTileKeys(bounds, decimalZoom - 1, tmsType), skip,
+                    PRIORITY_ZOOM_OUT, false, generation, count);
+        }
+        if (decimalZoom < mLayer.getMaxZoom() && decimalZoom < GeoConstants.DEFAULT_MAX_ZOOM) {
+            queue(MapUtil.getTileKeys(bounds, decimalZoom + 1, tmsType), skip,
+                    PRIORITY_ZOOM_IN, false, generation, count);
+        }
+    }
+
+
+    protected int queue(
+            long[] tiles,
+            long[] skip,
+            int priority,
+            boolean decode,
+            int generation,
+            int queued)
+    {
+        int count = 0;
+        for (long tile : tiles) {
+            if (queued + count >= MAX_PREFETCH_TILES) {
+                break;
+            }
+            if (Arrays.binarySearch(skip, tile) >= 0) {
+                continue;
+            }
+            // the tile is only looked up or downloaded, so it needs no envelope
+            mExecutor.execute(
+                    new PrefetchTask(new TileItem(tile, null), priority, decode, generation));
+            count++;
+        }
+        return count;
+    }
+
+
+    public void shutdown()
+    {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+
+    protected class PrefetchTask
+            implements Runnable, Comparable<PrefetchTask>
+    {
+        protected final TileItem mTile;
+        protected final int      mPriority;
+        protected final boolean  mDecode;
+        protected final int      mGeneration;
+        protected final long     mSequence;
+
+
+        public PrefetchTask(
+                TileItem tile,
+                int priority,
+                boolean decode,
+                int generation)
+        {
+            mTile = tile;
+            mPriority = priority;
+            mDecode = decode;
+            mGeneration = generation;
+            mSequence = TilePrefetcher.this.mSequence.getAndIncrement();
+        }
+
+
+        @Override
+        public void run()
+        {
+            if (mGeneration != TilePrefetcher.this.mGeneration.get()) {
+                return;
+            }
+
+            android.os.Process.setThreadPriority(Constants.DEFAULT_DOWNLOAD_THREAD_PRIORITY);
+
+            if (mDecode && mLayer.getTileCache().contains(mTile.getKey())) {
+                return;
+            }
+            if (!(mLayer instanceof RemoteTMSLayer)) {
+                mLayer.getBitmap(mTile);
+                return;
+            }
+
+            RemoteTMSLayer layer = (RemoteTMSLayer) mLayer;
+            if (mDecode && null != layer.getCachedBitmap(mTile)) {
+                return;
+            }
+
+            // the download is cancelled by cancel() until it is started
+            synchronized (mDownloads) {
+                mDownloads.add(mTile.getKey());
+            }
+            try {
+                layer.downloadTile(mTile, TileDownloader.PRIORITY_PREFETCH);
+            } finally {
+                synchronized (mDownloads) {
+                    mDownloads.remove(mTile.getKey());
+                }
+            }
+
+            if (mDecode) {
+                layer.getCachedBitmap(mTile);
+            }
+        }
+
+
+        @Override
+        public int compareTo(PrefetchTask another)
+        {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.util.Log;
+import com.nextgis.maplib.R;
+import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+
+/**
+ * Download the tiles of the area and zoom range for the offline use. The tiles are enumerated
+ * column by column without the list creation and downloaded through {@link TileDownloader} with
+ * the few requests in flight, so the map tiles are not blocked. The fresh tiles are skipped. The
+ * progress is saved to the layer folder after each column and the job can be resumed after
+ * restart. The seeded tiles are pinned in the layer cache, so they are not deleted by the disk
+ * quota or max age.
+ */
+public class TileSeeder
+{
+    public static final String SEED_FILE = "seed.json";
+
+    protected static final String JSON_ENVELOPE_KEY = "envelope";
+    protected static final String JSON_AREA_KEY     = "area";
+    protected static final String JSON_MIN_ZOOM_KEY = "min_zoom";
+    protected static final String JSON_MAX_ZOOM_KEY = "max_zoom";
+    protected static final String JSON_ZOOM_KEY     = "zoom";
+    protected static final String JSON_COLUMN_KEY   = "column";
+    protected static final String JSON_DONE_KEY     = "done";
+    protected static final String JSON_SKIPPED_KEY  = "skipped";
+    protected static final String JSON_FAILED_KEY   = "failed";
+
+    protected static final int  MAX_REQUESTS      = TileDownloader.MAX_THREADS / 2;
+    protected static final long SAVE_INTERVAL     = 1000; // ms
+
+    protected final RemoteTMSLayer mLayer;
+    protected final GeoEnvelope    mEnvelope;
+    protected final GeoGeometry    mArea;
+    protected final int            mMinZoom, mMaxZoom;
+    protected       int            mZoom, mColumn;
+    protected       int            mDone, mSkipped, mFailed;
+    // the counters at the last completed column
+    protected       int            mColumnDone, mColumnSkipped, mColumnFailed;
+    protected       int            mTotal;
+    protected       long           mLastSaveTime;
+    protected       float          mThroughput;
+    protected volatile boolean     mCanceled;
+
+
+    /**
+     * @param area
+     *         the area in web mercator, the tiles of the area envelope not intersecting the area
+     *         are skipped
+     */
+    public TileSeeder(
+            RemoteTMSLayer layer,
+            GeoGeometry area,
+            int minZoom,
+            int maxZoom)
+    {
+        this(layer, area.getEnvelope(), area, minZoom, maxZoom);
+    }
+
+
+    public TileSeeder(
+            RemoteTMSLayer layer,
+            GeoEnvelope envelope,
+            int minZoom,
+            int maxZoom)
+    {
+        this(layer, envelope, null, minZoom, maxZoom);
+    }
+
+
+    protected TileSeeder(
+            RemoteTMSLayer layer,
+            GeoEnvelope envelope,
+            GeoGeometry area,
+            int minZoom,
+            int maxZoom)
+    {
+        mLayer = layer;
+        mEnvelope = envelope;
+        mArea = area;
+        mMinZoom = minZoom;
+        mMaxZoom = maxZoom;
+        mZoom = minZoom;
+        mColumn = Integer.MIN_VALUE;
+        mTotal = (int) Math.min(Integer.MAX_VALUE, getTileCount());
+    }
+
+
+    /**
+     * @return the unfinished job of the layer or null
+     */
+    public static TileSeeder load(RemoteTMSLayer layer)
+    {
+        File seedFile = new File(layer.getPath(), SEED_FILE);
+        if (!seedFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(FileUtil.readFromFile(seedFile));
+            GeoEnvelope envelope = new GeoEnvelope();
+            envelope.fromJSON(jsonObject.getJSONObject(JSON_ENVELOPE_KEY));
+            GeoGeometry area = null;
+            if (jsonObject.has(JSON_AREA_KEY)) {
+                area = GeoGeometryFactory.fromWKT(
+                        jsonObject.getString(JSON_AREA_KEY), GeoConstants.CRS_WEB_MERCATOR);
+            }
+
+            TileSeeder seeder = new TileSeeder(layer, envelope, area,
+                    jsonObject.getInt(JSON_MIN_ZOOM_KEY), jsonObject.getInt(JSON_MAX_ZOOM_KEY));
+            seeder.mZoom = jsonObject.getInt(JSON_ZOOM_KEY);
+            seeder.mColumn = jsonObject.getInt(JSON_COLUMN_KEY);
+            seeder.mDone = jsonObject.getInt(JSON_DONE_KEY);
+            seeder.mSkipped = jsonObject.getInt(JSON_SKIPPED_KEY);
+            seeder.mFailed = jsonObject.getInt(JSON_FAILED_KEY);
+            return seeder;
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    protected void save()
+    {
+        try {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(JSON_ENVELOPE_KEY, mEnvelope.toJSON());
+            if (null != mArea) {
+                jsonObject.put(JSON_AREA_KEY, mArea.toWKT(true));
+            }
+            jsonObject.put(JSON_MIN_ZOOM_KEY, mMinZoom);
+            jsonObject.put(JSON_MAX_ZOOM_KEY, mMaxZoom);
+            jsonObject.put(JSON_ZOOM_KEY, mZoom);
+            jsonObject.put(JSON_COLUMN_KEY, mColumn);
+            jsonObject.put(JSON_DONE_KEY, mDone);
+            jsonObject.put(JSON_SKIPPED_KEY, mSkipped);
+            jsonObject.put(JSON_FAILED_KEY, mFailed);
+            FileUtil.writeToFile(new File(mLayer.getPath(), SEED_FILE), jsonObject.toString());
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+        mLastSaveTime = System.currentTimeMillis();
+    }
+
+
+    public long getTileCount()
+    {
+        long count = 0;
+        for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+            count += MapUtil.getTileCount(null, mEnvelope, zoom, mLayer.getTMSType());
+        }
+        return count;
+    }
+
+
+    /**
+     * Download the tiles. The method blocks until the job is finished, cancelled or the network
+     * is lost.
+     *
+     * @return true if all tiles are processed
+     */
+    public boolean run(IProgressor progressor)
+    {
+        mCanceled = false;
+
+        if (null != progressor) {
+            progressor.setMax(mTotal);
+            progressor.setValue(getProcessed());
+        }
+
+        long startTime = System.currentTimeMillis();
+        int startDone = mDone;
+        checkpoint();
+        int tmsType = mLayer.getTMSType();
+        LinkedList<Future<Boolean>> futures = new LinkedList<>();
+        List<TileItem> column = new ArrayList<>();
+        List<File> columnPaths = new ArrayList<>();
+
+        for (; mZoom <= mMaxZoom; mZoom++, mColumn = Integer.MIN_VALUE) {
+            int tilesInMapOneDimension = 1 << mZoom;
+            double halfTilesInMapOneDimension = tilesInMapOneDimension * 0.5;
+            double tilesSizeOneDimension = GeoConstants.MERCATOR_MAX / halfTilesInMapOneDimension;
+
+            int begX = (int) Math.floor(mEnvelope.getMinX() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+            int begY = (int) Math.floor(mEnvelope.getMinY() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+            int endX = (int) Math.ceil(mEnvelope.getMaxX() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+            int endY = (int) Math.ceil(mEnvelope.getMaxY() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+            if (begY == endY)
+                endY++;
+            if (begX == endX)
+                endX++;
+            begY = Math.max(begY, 0);
+            endY = Math.min(endY, tilesInMapOneDimension);
+
+            for (int x = Math.max(begX, mColumn); x < endX; x++) {
+                column.clear();
+                columnPaths.clear();
+                for (int y = begY; y < endY; y++) {
+                    int realX = x;
+                    if (realX < 0) {
+                        realX += tilesInMapOneDimension;
+                    } else if (realX >= tilesInMapOneDimension) {
+                        realX -= tilesInMapOneDimension;
+                    }
+
+                    int realY = y;
+                    if (tmsType == GeoConstants.TMSTYPE_OSM) {
+                        realY = tilesInMapOneDimension - y - 1;
+                    }
+
+                    double minX = x * tilesSizeOneDimension - GeoConstants.MERCATOR_MAX;
+                    double minY = y * tilesSizeOneDimension - GeoConstants.MERCATOR_MAX;
+                    GeoEnvelope env = new GeoEnvelope(
+                            minX, minX + tilesSizeOneDimension, minY, minY + tilesSizeOneDimension);
+                    if (null != mArea && !mArea.intersects(env)) {
+                        mSkipped++;
+                        continue;
+                    }
+
+                    TileItem tile = new TileItem(realX, realY, mZoom, env);
+                    column.add(tile);
+                    columnPaths.add(mLayer.getTilePath(tile));
+                }
+
+                // the existing tiles of the column should not be deleted while it is downloaded
+                mLayer.getTileCache().pin(columnPaths);
+
+                for (TileItem tile : column) {
+                    Future<Boolean> future = submit(tile);
+                    if (null == future) {
+                        mSkipped++;
+                        continue;
+                    }
+
+                    futures.add(future);
+                    if (futures.size() >= MAX_REQUESTS && !waitFor(futures.removeFirst())) {
+                        return stop();
+                    }
+                }
+
+                // the column is complete then all its tiles are complete
+                while (!futures.isEmpty()) {
+                    if (!waitFor(futures.removeFirst())) {
+                        return stop();
+                    }
+                }
+                mColumn = x + 1;
+                checkpoint();
+
+                long elapsed = System.currentTimeMillis() - startTime;
+                if (elapsed > 0) {
+                    mThroughput = (mDone - startDone) * 1000f / elapsed;
+                }
+
+                if (System.currentTimeMillis() - mLastSaveTime > SAVE_INTERVAL) {
+                    save();
+                    if (null != progressor) {
+                        progressor.setValue(getProcessed());
+                        progressor.setMessage(getProgressMessage());
+                    }
+                }
+
+                if (isCanceled(progressor)) {
+                    return stop();
+                }
+            }
+        }
+
+        // the job is finished
+        File seedFile = new File(mLayer.getPath(), SEED_FILE);
+        if (seedFile.exists() && !seedFile.delete()) {
+            Log.d(Constants.TAG, "Failed to delete " + seedFile.getAbsolutePath());
+        }
+
+        if (null != progressor) {
+            progressor.setValue(mTotal);
+            progressor.setMessage(getProgressMessage());
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the tile download future or null if the tile is fresh
+     */
+    protected Future<Boolean> submit(TileItem tile)
+    {
+        File tilePath = mLayer.getTilePath(tile);
+        if (tilePath.exists() && TileDownloader.isFresh(tilePath, mLayer.getTileMaxAge())) {
+            return null;
+        }
+
+        return TileDownloader.getInstance().download(
+                tile.toString(mLayer.getURLSubdomain()), mLayer.getLogin(),
+                mLayer.getPassword(), tilePath, mLayer.getTileCache(), tile.getKey(),
+                TileDownloader.PRIORITY_SEED);
+    }
+
+
+    /**
+     * @return false if the job should be stopped
+     */
+    protected boolean waitFor(Future<Boolean> future)
+    {
+        try {
+            if (future.get()) {
+                mDone++;
+            } else {
+                mFailed++;
+                // the network is lost, stop and resume later
+                if (!mLayer.mNet.isNetworkAvailable()) {
+                    return false;
+                }
+            }
+            return !mCanceled;
+        } catch (CancellationException | ExecutionException e) {
+            mFailed++;
+            return !mCanceled;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+
+    protected void checkpoint()
+    {
+        mColumnDone = mDone;
+        mColumnSkipped = mSkipped;
+        mColumnFailed = mFailed;
+    }
+
+
+    protected boolean stop()
+    {
+        // the current column will be processed again, so the counters are restored, the
+        // downloads in flight are shared with the map drawing and complete in background
+        mDone = mColumnDone;
+        mSkipped = mColumnSkipped;
+        mFailed = mColumnFailed;
+        save();
+        return false;
+    }
+
+
+    protected boolean isCanceled(IProgressor progressor)
+    {
+        return mCanceled || null != progressor && progressor.isCanceled();
+    }
+
+
+    protected String getProgressMessage()
+    {
+        return mLayer.getContext().getString(R.string.processed) + " " + getProcessed() + " " +
+                mLayer.getContext().getString(R.string.of) + " " + mTotal +
+                String.format(Locale.US, " (%.1f/s)", mThroughput);
+    }
+
+
+    public void cancel()
+    {
+        mCanceled = true;
+    }
+
+
+    /**
+     * @return the downloaded, skipped and failed tiles count
+     */
+    public int getProcessed()
+    {
+        return mDone + mSkipped + mFailed;
+    }
+
+
+    public int getTotal()
+    {
+        return mTotal;
+    }
+
+
+    public int getDone()
+    {
+        return mDone;
+    }
+
+
+    public int getSkipped()
+    {
+        return mSkipped;
+    }
+
+
+    public int getFailed()
+    {
+        return mFailed;
+    }
+
+
+    /**
+     * @return the downloaded tiles per second
+     */
+    public float getThroughput()
+    {
+        return mThroughput;
+    }
+}
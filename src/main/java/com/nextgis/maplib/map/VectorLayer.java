@@ -51,6 +51,7 @@ import com.nextgis.maplib.api.IGeometryCache;
 import com.nextgis.maplib.api.IGeometryCacheItem;
 import com.nextgis.maplib.api.IJSONStore;
 import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.api.IRenderer;
 import com.nextgis.maplib.api.IStyleRule;
 import com.nextgis.maplib.datasource.Feature;
 import com.nextgis.maplib.datasource.Field;
@@ -80,6 +81,7 @@ import com.nextgis.maplib.util.LayerUtil;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplib.util.NGException;
 import com.nextgis.maplib.util.NGWUtil;
+import com.nextgis.maplib.util.RenderMetrics;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -175,6 +177,7 @@ public class VectorLayer
 {
     protected static final String JSON_GEOMETRY_TYPE_KEY = "geometry_type";
     protected static final String JSON_FIELDS_KEY        = "fields";
+    protected static final String JSON_TILE_CACHE_KEY    = "tile_cache";
 
     protected static final String CONTENT_ATTACH_TYPE = "vnd.android.cursor.dir/*";
     protected static final String NO_SYNC             = "no_sync";
@@ -186,6 +189,7 @@ public class VectorLayer
 
     protected static final String META  = "meta.json";
     protected static final String RTREE = "rtree";
+    protected static final String TILE_CACHE = "tile_cache";
 
     public static final String ATTACH_DISPLAY_NAME = MediaStore.MediaColumns.DISPLAY_NAME;
     public static final String ATTACH_SIZE         = MediaStore.MediaColumns.SIZE;
@@ -217,6 +221,10 @@ public class VectorLayer
      */
     protected IGeometryCache mCache;
     protected List<Long>     mIgnoreFeatures;
+    /**
+     * The optional cache of rendered tiles, null if disabled
+     */
+    protected VectorTileCache mTileCache;
 
 
     public VectorLayer(
@@ -741,6 +749,15 @@ public class VectorLayer
             Log.d(TAG, e.getLocalizedMessage());
             mRenderer = null;
         }
+        updateTileCacheStyle();
+    }
+
+
+    @Override
+    public void setRenderer(IRenderer renderer)
+    {
+        super.setRenderer(renderer);
+        updateTileCacheStyle();
     }
 
 
@@ -771,6 +788,8 @@ public class VectorLayer
                 renderer.setStyleRule(rule);
             }
         }
+
+        updateTileCacheStyle();
     }
 
 
@@ -815,9 +834,14 @@ public class VectorLayer
 
         if (null != mRenderer && mRenderer instanceof IJSONStore) {
             IJSONStore jsonStore = (IJSONStore) mRenderer;
-            rootConfig.put(Constants.JSON_RENDERERPROPS_KEY, jsonStore.toJSON());
+            JSONObject rendererConfig = jsonStore.toJSON();
+            rootConfig.put(Constants.JSON_RENDERERPROPS_KEY, rendererConfig);
+            // the style changed directly on the renderer is applied to the tiles on save
+            setTileCacheStyle(rendererConfig);
         }
 
+        rootConfig.put(JSON_TILE_CACHE_KEY, isTileCacheEnabled());
+
         if (mExtents.isInit()) {
             rootConfig.put(Constants.JSON_BBOX_MAXX_KEY, mExtents.getMaxX());
             rootConfig.put(Constants.JSON_BBOX_MINX_KEY, mExtents.getMinX());
@@ -864,6 +888,7 @@ public class VectorLayer
         }
 
         reloadCache();
+        setTileCacheEnabled(jsonObject.optBoolean(JSON_TILE_CACHE_KEY, false));
 
         if (jsonObject.has(Constants.JSON_RENDERERPROPS_KEY)) {
             setRenderer(jsonObject.getJSONObject(Constants.JSON_RENDERERPROPS_KEY));
@@ -2248,7 +2273,9 @@ public class VectorLayer
     public void notifyDelete(long rowId)
     {
         //remove cached item
-        if (mCache.removeItem(rowId) != null) {
+        IGeometryCacheItem item = mCache.removeItem(rowId);
+        if (item != null) {
+            invalidateTiles(item.getEnvelope());
             save();
             notifyLayerChanged();
         }
@@ -2324,6 +2351,7 @@ public class VectorLayer
     {
         //clear cache
         mCache.clear();
+        clearTileCache();
         save();
         notifyLayerChanged();
     }
@@ -2340,6 +2368,7 @@ public class VectorLayer
         GeoGeometry geom = getGeometryForId(rowId);
         if (null != geom) {
             cacheGeometryEnvelope(rowId, geom);
+            invalidateTiles(geom.getEnvelope());
             save();
             notifyLayerChanged();
         }
@@ -2364,11 +2393,19 @@ public class VectorLayer
 
         GeoGeometry geom = getGeometryForId(rowId);
         if (null != geom && !attributesOnly) {
-            mCache.removeItem(rowId);
+            IGeometryCacheItem item = mCache.removeItem(rowId);
+            if (null != item) {
+                invalidateTiles(item.getEnvelope());
+            }
             cacheGeometryEnvelope(rowId, geom);
             needSave = true;
         }
 
+        // the attributes may change the labels and the style rule result
+        if (null != geom) {
+            invalidateTiles(geom.getEnvelope());
+        }
+
         if (needSave) {
             save();
         }
@@ -2381,6 +2418,7 @@ public class VectorLayer
     public void notifyUpdateAll()
     {
         reloadCache();
+        clearTileCache();
         notifyLayerChanged();
     }
 
@@ -2415,10 +2453,14 @@ public class VectorLayer
             SQLiteDatabase db)
     {
         Cursor cursor = db.query(mPath.getName(), columns, selection, null, null, null, null);
+        RenderMetrics.add(mId, RenderMetrics.COUNT_SQL_QUERIES, 1);
         if (null != cursor) {
             if (cursor.moveToFirst()) {
                 try {
-                    GeoGeometry result = GeoGeometryFactory.fromBlob(cursor.getBlob(0));
+                    byte[] blob = cursor.getBlob(0);
+                    if (null != blob)
+                        RenderMetrics.add(mId, RenderMetrics.COUNT_BYTES_DECODED, blob.length);
+                    GeoGeometry result = GeoGeometryFactory.fromBlob(blob);
                     cursor.close();
                     return result;
                 } catch (IOException | ClassNotFoundException e) {
@@ -2506,6 +2548,57 @@ public class VectorLayer
     }
 
 
+    /**
+     * Query the feature ids intersecting the envelope using only the geometry cache. The features
+     * which envelope is smaller than minSize (in map units) are not returned.
+     *
+     * @param env
+     *         the envelope to search
+     * @param minSize
+     *         the minimum feature envelope width or height
+     * @param smallFeatures
+     *         if not null, the centers of skipped features are added to the list, the hidden
+     *         features are not added
+     *
+     * @return the feature ids
+     */
+    public List<Long> query(
+            GeoEnvelope env,
+            double minSize,
+            List<GeoPoint> smallFeatures)
+    {
+        if (!mExtents.isInit())
+            return query(env);
+
+        if (null == env || !env.isInit() || env.contains(mExtents))
+            env = mExtents;
+
+        // the cache merges the small items to one center, so the hidden ones are checked by item
+        if (null != smallFeatures && hasHiddenFeatures()) {
+            List<IGeometryCacheItem> items = mCache.search(env);
+            List<Long> result = new ArrayList<>(items.size());
+            for (IGeometryCacheItem item : items) {
+                GeoEnvelope envelope = item.getEnvelope();
+                if (envelope.width() < minSize && envelope.height() < minSize) {
+                    if (!isFeatureHidden(item.getFeatureId()))
+                        smallFeatures.add(envelope.getCenter());
+                } else {
+                    result.add(item.getFeatureId());
+                }
+            }
+            return result;
+        }
+
+        List<IGeometryCacheItem> items = mCache.search(env, minSize, smallFeatures);
+
+        List<Long> result = new ArrayList<>(items.size());
+        for (IGeometryCacheItem item : items)
+            result.add(item.getFeatureId());
+
+        return result;
+    }
+
+
     public void hideFeature(long featureId)
     {
         if (featureId != NOT_FOUND) {
@@ -2542,6 +2635,86 @@ public class VectorLayer
     }
 
 
+    public boolean hasHiddenFeatures()
+    {
+        return !mIgnoreFeatures.isEmpty();
+    }
+
+
+    public boolean isTileCacheEnabled()
+    {
+        return null != mTileCache;
+    }
+
+
+    /**
+     * Enable the cache of rendered tiles. It speeds up panning of the rarely changed layers.
+     * The tiles are invalidated on feature changes, the disk tiles are kept between the launches
+     * while the renderer style is the same. The style changes made directly on the renderer style
+     * are applied on the layer save or need the clearTileCache() call.
+     */
+    public void setTileCacheEnabled(boolean enabled)
+    {
+        if (enabled == isTileCacheEnabled()) {
+            return;
+        }
+
+        if (enabled) {
+            mTileCache = new VectorTileCache(
+                    VectorTileCache.DEFAULT_MEMORY_SIZE, new File(mPath, TILE_CACHE));
+            updateTileCacheStyle();
+        } else {
+            mTileCache.clear();
+            mTileCache = null;
+        }
+    }
+
+
+    public VectorTileCache getTileCache()
+    {
+        return mTileCache;
+    }
+
+
+    public void clearTileCache()
+    {
+        if (null != mTileCache) {
+            mTileCache.clear();
+        }
+    }
+
+
+    protected void updateTileCacheStyle()
+    {
+        if (null == mTileCache || !(mRenderer instanceof IJSONStore)) {
+            return;
+        }
+
+        try {
+            setTileCacheStyle(((IJSONStore) mRenderer).toJSON());
+        } catch (JSONException e) {
+            e.printStackTrace();
+            clearTileCache();
+        }
+    }
+
+
+    protected void setTileCacheStyle(JSONObject rendererConfig)
+    {
+        if (null != mTileCache) {
+            mTileCache.setStyleHash(Integer.toHexString(rendererConfig.toString().hashCode()));
+        }
+    }
+
+
+    protected void invalidateTiles(GeoEnvelope envelope)
+    {
+        if (null != mTileCache) {
+            mTileCache.invalidate(envelope);
+        }
+    }
+
+
     public void swapFeaturesVisibility(
             long previousFeatureId,
             long featureId)
@@ -2599,6 +2772,7 @@ public class VectorLayer
                 mIsCacheRebuilding = false;
             }
             cursor.close();
+            clearTileCache();
             save();
         }
     }
@@ -0,0 +1,417 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The cache of the rendered vector layer tiles. The memory tier is LRU bounded by the bitmaps
+ * size, the optional disk tier keeps the tiles of the integer zoom levels only.
+ * The tiles are keyed by the grid of the integer zoom level and the exact display zoom, so the
+ * cached bitmap is drawn without scaling. The disk tier is kept between the launches for the same
+ * renderer style, it is not used until the style hash is set.
+ */
+public class VectorTileCache
+{
+    public static final    int    DEFAULT_MEMORY_SIZE = 16 * 1024 * 1024; // 16Mb
+    // extra pixels around the tile to query the features which strokes or labels come to the tile
+    public static final    int    TILE_MARGIN         = 64;
+    protected static final String TILE_EXT            = ".tile";
+    protected static final String STYLE_FILE          = "style";
+
+    protected final Map<String, CacheEntry> mMemoryCache;
+    protected final File                    mDiskCachePath;
+    protected final long                    mMaxMemorySize;
+    protected       long                    mMemorySize;
+    protected       long                    mGeneration;
+    protected volatile String               mStyleHash;
+
+
+    /**
+     * @param maxMemorySize
+     *         the memory tier size in bytes
+     * @param diskCachePath
+     *         the directory of the disk tier or null to keep tiles in memory only
+     */
+    public VectorTileCache(
+            long maxMemorySize,
+            File diskCachePath)
+    {
+        mMaxMemorySize = maxMemorySize;
+        mDiskCachePath = diskCachePath;
+        mMemoryCache = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+
+    /**
+     * Enumerate the tiles of the integer zoom grid covering the bounds. Unlike MapUtil.getTileItems
+     * the x index is not wrapped, so the tile envelope always matches the tile key.
+     */
+    public static List<TileItem> getTileItems(
+            GeoEnvelope bounds,
+            float zoom)
+    {
+        int decimalZoom = (int) zoom;
+        int tilesInMapOneDimension = 1 << decimalZoom;
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+
+        int begX = (int) Math.floor((bounds.getMinX() + GeoConstants.MERCATOR_MAX) / tileSize);
+        int begY = (int) Math.floor((bounds.getMinY() + GeoConstants.MERCATOR_MAX) / tileSize);
+        int endX = (int) Math.ceil((bounds.getMaxX() + GeoConstants.MERCATOR_MAX) / tileSize);
+        int endY = (int) Math.ceil((bounds.getMaxY() + GeoConstants.MERCATOR_MAX) / tileSize);
+
+        if (begY < 0) {
+            begY = 0;
+        }
+        if (endY > tilesInMapOneDimension) {
+            endY = tilesInMapOneDimension;
+        }
+
+        List<TileItem> result = new ArrayList<>();
+        for (int x = begX; x < endX; x++) {
+            for (int y = begY; y < endY; y++) {
+                double minX = -GeoConstants.MERCATOR_MAX + x * tileSize;
+                double minY = -GeoConstants.MERCATOR_MAX + y * tileSize;
+                GeoEnvelope env = new GeoEnvelope(minX, minX + tileSize, minY, minY + tileSize);
+                result.add(new TileItem(x, y, decimalZoom, env));
+
+                if (result.size() > Constants.MAX_TILES_COUNT) {
+                    return result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * @return the counter changed on each invalidation. The tile rendered from the data read
+     * before the invalidation should not be put to the cache.
+     */
+    public synchronized long getGeneration()
+    {
+        return mGeneration;
+    }
+
+
+    /**
+     * Set the hash of the renderer style the tiles are drawn with. The tiles drawn with another
+     * style are removed, the disk tier of the same style is kept.
+     */
+    public void setStyleHash(String styleHash)
+    {
+        synchronized (this) {
+            if (styleHash.equals(mStyleHash)) {
+                return;
+            }
+            mStyleHash = styleHash;
+            mGeneration++;
+            mMemoryCache.clear();
+            mMemorySize = 0;
+        }
+
+        if (null == mDiskCachePath) {
+            return;
+        }
+
+        File styleFile = new File(mDiskCachePath, STYLE_FILE);
+        try {
+            if (styleFile.exists() && styleHash.equals(FileUtil.readFromFile(styleFile))) {
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        FileUtil.deleteRecursive(mDiskCachePath);
+        writeStyleHash(styleHash);
+    }
+
+
+    protected void writeStyleHash(String styleHash)
+    {
+        try {
+            FileUtil.createDir(mDiskCachePath);
+            FileUtil.writeToFile(new File(mDiskCachePath, STYLE_FILE), styleHash);
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "Failed to store vector tiles style: " + e.getMessage());
+        }
+    }
+
+
+    public synchronized Bitmap getBitmap(
+            TileItem tile,
+            float zoom)
+    {
+        CacheEntry entry = mMemoryCache.get(getKey(tile, zoom));
+        if (null == entry) {
+            return null;
+        }
+        return entry.mBitmap;
+    }
+
+
+    /**
+     * Read the tile from the disk tier and put it to the memory tier
+     */
+    public Bitmap getBitmapFromDisk(
+            TileItem tile,
+            float zoom)
+    {
+        if (!isDiskCacheable(zoom)) {
+            return null;
+        }
+
+        File tileFile = getTileFile(tile);
+        if (!tileFile.exists()) {
+            return null;
+        }
+
+        long generation = getGeneration();
+        Bitmap bitmap = BitmapFactory.decodeFile(tileFile.getAbsolutePath());
+        if (null != bitmap) {
+            putToMemory(tile, zoom, bitmap, generation);
+        }
+        return bitmap;
+    }
+
+
+    public void putBitmap(
+            TileItem tile,
+            float zoom,
+            Bitmap bitmap,
+            long generation)
+    {
+        if (!putToMemory(tile, zoom, bitmap, generation) || !isDiskCacheable(zoom)) {
+            return;
+        }
+
+        File tileFile = getTileFile(tile);
+        FileOutputStream out = null;
+        try {
+            FileUtil.createDir(tileFile.getParentFile());
+            out = new FileOutputStream(tileFile);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "Failed to store vector tile " + tile.toString() + ": " + e.getMessage());
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // the tile may be invalidated while written
+        if (generation != getGeneration()) {
+            tileFile.delete();
+        }
+    }
+
+
+    protected synchronized boolean putToMemory(
+            TileItem tile,
+            float zoom,
+            Bitmap bitmap,
+            long generation)
+    {
+        if (generation != mGeneration) {
+            return false;
+        }
+
+        CacheEntry entry = new CacheEntry(tile, bitmap);
+        CacheEntry old = mMemoryCache.put(getKey(tile, zoom), entry);
+        if (null != old) {
+            mMemorySize -= old.mSize;
+        }
+        mMemorySize += entry.mSize;
+
+        Iterator<CacheEntry> iterator = mMemoryCache.values().iterator();
+        while (mMemorySize > mMaxMemorySize && iterator.hasNext()) {
+            CacheEntry eldest = iterator.next();
+            iterator.remove();
+            mMemorySize -= eldest.mSize;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Remove the tiles which may contain the features from the envelope
+     *
+     * @param envelope
+     *         the envelope of the inserted, changed or deleted feature
+     */
+    public void invalidate(GeoEnvelope envelope)
+    {
+        if (null == envelope || !envelope.isInit()) {
+            return;
+        }
+
+        synchronized (this) {
+            mGeneration++;
+
+            Iterator<CacheEntry> iterator = mMemoryCache.values().iterator();
+            while (iterator.hasNext()) {
+                CacheEntry entry = iterator.next();
+                if (getMarginEnvelope(entry.mTile).intersects(envelope)) {
+                    iterator.remove();
+                    mMemorySize -= entry.mSize;
+                }
+            }
+        }
+
+        if (null == mDiskCachePath) {
+            return;
+        }
+
+        File[] zoomDirs = mDiskCachePath.listFiles();
+        if (null == zoomDirs) {
+            return;
+        }
+
+        for (File zoomDir : zoomDirs) {
+            if (!FileUtil.isIntegerParseInt(zoomDir.getName())) {
+                continue;
+            }
+
+            int zoom = Integer.parseInt(zoomDir.getName());
+            double margin = TILE_MARGIN * MapUtil.getPixelSize(zoom);
+            GeoEnvelope env = new GeoEnvelope(
+                    envelope.getMinX() - margin, envelope.getMaxX() + margin,
+                    envelope.getMinY() - margin, envelope.getMaxY() + margin);
+
+            List<TileItem> tiles = getTileItems(env, zoom);
+            if (tiles.size() > Constants.MAX_TILES_COUNT) {
+                FileUtil.deleteRecursive(zoomDir);
+                continue;
+            }
+
+            for (TileItem tile : tiles) {
+                File tileFile = getTileFile(tile);
+                if (tileFile.exists()) {
+                    tileFile.delete();
+                }
+            }
+        }
+    }
+
+
+    public void clear()
+    {
+        synchronized (this) {
+            mGeneration++;
+            mMemoryCache.clear();
+            mMemorySize = 0;
+        }
+
+        if (null != mDiskCachePath) {
+            FileUtil.deleteRecursive(mDiskCachePath);
+
+            String styleHash = mStyleHash;
+            if (null != styleHash) {
+                writeStyleHash(styleHash);
+            }
+        }
+    }
+
+
+    public synchronized long getMemorySize()
+    {
+        return mMemorySize;
+    }
+
+
+    protected boolean isDiskCacheable(float zoom)
+    {
+        return null != mDiskCachePath && null != mStyleHash && zoom == (int) zoom;
+    }
+
+
+    protected File getTileFile(TileItem tile)
+    {
+        return new File(mDiskCachePath, tile.toString() + TILE_EXT);
+    }
+
+
+    protected static String getKey(
+            TileItem tile,
+            float zoom)
+    {
+        return tile.getHash() + "." + Float.floatToIntBits(zoom);
+    }
+
+
+    protected static GeoEnvelope getMarginEnvelope(TileItem tile)
+    {
+        GeoEnvelope env = tile.getEnvelope();
+        double margin = TILE_MARGIN * MapUtil.getPixelSize(tile.getZoomLevel());
+        return new GeoEnvelope(
+                env.getMinX() - margin, env.getMaxX() + margin, env.getMinY() - margin,
+                env.getMaxY() + margin);
+    }
+
+
+    protected static class CacheEntry
+    {
+        protected final TileItem mTile;
+        protected final Bitmap   mBitmap;
+        protected final long     mSize;
+
+
+        public CacheEntry(
+                TileItem tile,
+                Bitmap bitmap)
+        {
+            mTile = tile;
+            mBitmap = bitmap;
+            mSize = bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+}
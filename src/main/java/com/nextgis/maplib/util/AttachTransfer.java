@@ -0,0 +1,440 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The resumable attachment transfers. The files are uploaded by the chunks with the tus protocol
+ * (https://tus.io/protocols/resumable-upload.html), the upload url is kept in the preferences, so
+ * the interrupted upload is continued from the offset confirmed by the server. The files are
+ * downloaded to the part file by the HTTP ranges, the part is continued if the server file is
+ * not changed.
+ */
+public class AttachTransfer
+{
+    public static final String TUS_VERSION       = "1.0.0";
+    public static final int    UPLOAD_CHUNK_SIZE = 512 * 1024;
+    // the failed chunk is resent from the server offset, the upload fails on the consecutive errors
+    public static final int    MAX_CHUNK_ERRORS  = 3;
+
+    protected static final String PART_EXT      = ".part";
+    protected static final String VALIDATOR_EXT = ".etag";
+
+    protected static final String JSON_URL_KEY      = "url";
+    protected static final String JSON_SIZE_KEY     = "size";
+    protected static final String JSON_MODIFIED_KEY = "modified";
+
+
+    /**
+     * Uploads the file by the chunks, continues the previous upload of the same file if the
+     * server keeps it
+     *
+     * @param tusUrl
+     *         the url to create the upload
+     * @param preferences
+     *         the preferences to keep the upload url
+     * @param key
+     *         the preferences key of the upload, unique for the file
+     *
+     * @return the upload meta or null if the server does not support the resumable upload
+     */
+    public static JSONObject upload(
+            String tusUrl,
+            File file,
+            String fileName,
+            String fileMime,
+            String username,
+            String password,
+            SharedPreferences preferences,
+            String key)
+            throws IOException, JSONException
+    {
+        long size = file.length();
+        long modified = file.lastModified();
+        String location = null;
+        long offset = Constants.NOT_FOUND;
+
+        String state = preferences.getString(key, null);
+        if (null != state) {
+            JSONObject json = new JSONObject(state);
+            // the file is changed after the upload start
+            if (json.optLong(JSON_SIZE_KEY) == size
+                    && json.optLong(JSON_MODIFIED_KEY) == modified) {
+                location = json.optString(JSON_URL_KEY, null);
+            }
+        }
+
+        if (null != location) {
+            offset = getUploadOffset(location, username, password);
+            if (Constants.DEBUG_MODE && offset >= 0) {
+                Log.d(TAG, "Resume upload " + fileName + " from " + offset + " of " + size);
+            }
+        }
+
+        try {
+            if (offset < 0) {
+                location = createUpload(tusUrl, size, fileName, fileMime, username, password);
+                if (null == location) {
+                    return null;
+                }
+
+                JSONObject json = new JSONObject();
+                json.put(JSON_URL_KEY, location);
+                json.put(JSON_SIZE_KEY, size);
+                json.put(JSON_MODIFIED_KEY, modified);
+                preferences.edit().putString(key, json.toString()).commit();
+                offset = 0;
+            }
+
+            sendChunks(location, file, offset, username, password);
+        } catch (ProtocolException e) {
+            // the PATCH method is not supported by the platform
+            preferences.edit().remove(key).commit();
+            return null;
+        }
+
+        HttpClient.Response response = HttpClient.getInstance()
+                .execute("GET", location, username, password, HttpClient.REQUEST_ATTACH, null);
+        if (null == response) {
+            throw new IOException("Upload info is not available: " + location);
+        }
+
+        try {
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Upload info response: " + response.getCode());
+            }
+            JSONObject meta = new JSONObject(response.getString());
+            preferences.edit().remove(key).commit();
+            return meta;
+        } finally {
+            response.close();
+        }
+    }
+
+
+    /**
+     * @return the upload url or null if the server does not support the resumable upload
+     */
+    protected static String createUpload(
+            String tusUrl,
+            final long size,
+            String fileName,
+            String fileMime,
+            String username,
+            String password)
+            throws IOException
+    {
+        final String metadata = "name " + encode(fileName) + ",mime_type " + encode(fileMime);
+        HttpClient.Response response = HttpClient.getInstance()
+                .execute("POST", tusUrl, username, password, HttpClient.REQUEST_ATTACH,
+                        new HttpClient.RequestWriter()
+                        {
+                            @Override
+                            public void write(HttpURLConnection conn)
+                                    throws IOException
+                            {
+                                conn.setRequestProperty("Tus-Resumable", TUS_VERSION);
+                                conn.setRequestProperty("Upload-Length", "" + size);
+                                conn.setRequestProperty("Upload-Metadata", metadata);
+                                conn.setInstanceFollowRedirects(false);
+                            }
+                        });
+        if (null == response) {
+            return null;
+        }
+
+        try {
+            String location = response.getConnection().getHeaderField("Location");
+            if (response.getCode() != HttpURLConnection.HTTP_CREATED || null == location) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(TAG, "Resumable upload is not supported, response: "
+                            + response.getCode());
+                }
+                return null;
+            }
+
+            // the relative location is resolved by the creation url
+            return new URL(new URL(tusUrl), location).toString();
+        } finally {
+            response.close();
+        }
+    }
+
+
+    /**
+     * @return the offset of the upload or -1 if the upload is not found on the server
+     */
+    protected static long getUploadOffset(
+            String location,
+            String username,
+            String password)
+            throws IOException
+    {
+        HttpClient.Response response = HttpClient.getInstance()
+                .execute("HEAD", location, username, password, HttpClient.REQUEST_ATTACH,
+                        new HttpClient.RequestWriter()
+                        {
+                            @Override
+                            public void write(HttpURLConnection conn)
+                                    throws IOException
+                            {
+                                conn.setRequestProperty("Tus-Resumable", TUS_VERSION);
+                            }
+                        });
+        if (null == response) {
+            return Constants.NOT_FOUND;
+        }
+
+        try {
+            String offset = response.getConnection().getHeaderField("Upload-Offset");
+            if (response.getCode() / 100 != 2 || null == offset) {
+                return Constants.NOT_FOUND;
+            }
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            return Constants.NOT_FOUND;
+        } finally {
+            response.close();
+        }
+    }
+
+
+    protected static void sendChunks(
+            String location,
+            File file,
+            long offset,
+            String username,
+            String password)
+            throws IOException
+    {
+        long size = file.length();
+        byte[] buffer = new byte[(int) Math.min(UPLOAD_CHUNK_SIZE, Math.max(size, 1))];
+        int errors = 0;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            while (offset < size) {
+                raf.seek(offset);
+                int count = (int) Math.min(buffer.length, size - offset);
+                raf.readFully(buffer, 0, count);
+
+                try {
+                    offset = sendChunk(location, buffer, count, offset, username, password);
+                    errors = 0;
+                } catch (ProtocolException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (++errors >= MAX_CHUNK_ERRORS || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    if (Constants.DEBUG_MODE) {
+                        Log.d(TAG, "Resend chunk at " + offset + ": " + e.getLocalizedMessage());
+                    }
+                    // the chunk may be received partially
+                    offset = getUploadOffset(location, username, password);
+                    if (offset < 0) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * @return the new offset confirmed by the server
+     */
+    protected static long sendChunk(
+            String location,
+            final byte[] buffer,
+            final int count,
+            final long offset,
+            String username,
+            String password)
+            throws IOException
+    {
+        HttpClient.Response response = HttpClient.getInstance()
+                .execute("PATCH", location, username, password, HttpClient.REQUEST_ATTACH,
+                        new HttpClient.RequestWriter()
+                        {
+                            @Override
+                            public void write(HttpURLConnection conn)
+                                    throws IOException
+                            {
+                                conn.setRequestProperty("Tus-Resumable", TUS_VERSION);
+                                conn.setRequestProperty("Upload-Offset", "" + offset);
+                                conn.setRequestProperty(
+                                        "Content-Type", "application/offset+octet-stream");
+                                conn.setDoOutput(true);
+                                conn.setFixedLengthStreamingMode(count);
+                                OutputStream os = conn.getOutputStream();
+                                os.write(buffer, 0, count);
+                                os.flush();
+                                os.close();
+                            }
+                        });
+        if (null == response) {
+            throw new IOException("Connection is not available: " + location);
+        }
+
+        try {
+            String newOffset = response.getConnection().getHeaderField("Upload-Offset");
+            if (response.getCode() / 100 != 2 || null == newOffset) {
+                throw new IOException("Chunk at " + offset + " response: " + response.getCode());
+            }
+            return Long.parseLong(newOffset.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Chunk at " + offset + " has wrong offset");
+        } finally {
+            response.close();
+        }
+    }
+
+
+    protected static String encode(String value)
+    {
+        if (null == value) {
+            value = "";
+        }
+        return Base64.encodeToString(value.getBytes(), Base64.NO_WRAP);
+    }
+
+
+    /**
+     * Downloads the file by the HTTP ranges. The downloaded part and its validator are kept near
+     * the file until the download is completed, so the next call continues the part if the server
+     * file is not changed.
+     *
+     * @return true if the file is downloaded, false if the server response is not success
+     */
+    public static boolean download(
+            String url,
+            File file,
+            String username,
+            String password)
+            throws IOException
+    {
+        final File part = new File(file.getPath() + PART_EXT);
+        File validatorFile = new File(file.getPath() + VALIDATOR_EXT);
+        final String validator = part.exists() && validatorFile.exists() ? FileUtil.readFromFile(
+                validatorFile) : null;
+        // the part without the validator can not be continued
+        final long offset = null != validator && validator.length() > 0 ? part.length() : 0;
+
+        HttpClient.Response response = HttpClient.getInstance()
+                .execute("GET", url, username, password, HttpClient.REQUEST_ATTACH,
+                        new HttpClient.RequestWriter()
+                        {
+                            @Override
+                            public void write(HttpURLConnection conn)
+                                    throws IOException
+                            {
+                                if (offset > 0) {
+                                    conn.setRequestProperty("Range", "bytes=" + offset + "-");
+                                    conn.setRequestProperty("If-Range", validator);
+                                    // the range is counted by the stored bytes
+                                    conn.setRequestProperty("Accept-Encoding", "identity");
+                                }
+                            }
+                        });
+        if (null == response) {
+            return false;
+        }
+
+        try {
+            int code = response.getCode();
+            if (code == 416 && offset > 0) {
+                // the part is completed already
+                return completeDownload(part, validatorFile, file);
+            }
+
+            boolean isAppend = code == HttpURLConnection.HTTP_PARTIAL && offset > 0;
+            if (code != HttpURLConnection.HTTP_OK && !isAppend) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(TAG, "Download " + url + " response: " + code);
+                }
+                return false;
+            }
+
+            FileUtil.createDir(file.getParentFile());
+            HttpURLConnection conn = response.getConnection();
+            String newValidator = conn.getHeaderField("ETag");
+            if (null == newValidator) {
+                newValidator = conn.getHeaderField("Last-Modified");
+            }
+            if (null != newValidator) {
+                FileUtil.writeToFile(validatorFile, newValidator);
+            } else {
+                validatorFile.delete();
+            }
+
+            InputStream is = isAppend ? response.getRawInputStream() : response.getInputStream();
+            OutputStream os = new FileOutputStream(part, isAppend);
+            try {
+                byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+                FileUtil.copyStream(is, os, buffer, Constants.IO_BUFFER_SIZE);
+            } finally {
+                os.close();
+            }
+
+            return completeDownload(part, validatorFile, file);
+        } finally {
+            response.close();
+        }
+    }
+
+
+    protected static boolean completeDownload(
+            File part,
+            File validatorFile,
+            File file)
+    {
+        validatorFile.delete();
+        if (file.exists() && !file.delete()) {
+            return false;
+        }
+        return part.renameTo(file);
+    }
+}
@@ -31,14 +31,24 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Pair;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapContentProviderHelper;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import static com.nextgis.maplib.util.Constants.*;
 
 
 public class FeatureChanges
 {
+    // the count of the records removed by one statement while compacting
+    protected static final int COMPACT_BATCH_SIZE = 500;
+
+
     public static void initialize(String tableName)
     {
         Log.d(TAG, "init the change log for the layer " + tableName);
@@ -720,6 +730,140 @@ public class FeatureChanges
     }
 
 
+    /**
+     * Folds the sync records of every feature and attachment into their net effect: the later
+     * changes are sent with the first new or change record, the changes before the deletion are
+     * not sent and the created and then deleted features and attachments are not sent at all.
+     *
+     * @return the count of the removed records
+     */
+    public static int compact(String tableName)
+    {
+        Cursor cursor = getChanges(tableName);
+        if (null == cursor) {
+            return 0;
+        }
+
+        List<Long> removed = new ArrayList<>();
+        Map<Long, ChangeState> features = new HashMap<>();
+        Map<Pair<Long, Long>, ChangeState> attaches = new HashMap<>();
+
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+
+            int recordIdColumn = cursor.getColumnIndex(FIELD_ID);
+            int featureIdColumn = cursor.getColumnIndex(FIELD_FEATURE_ID);
+            int operationColumn = cursor.getColumnIndex(FIELD_OPERATION);
+            int attachIdColumn = cursor.getColumnIndex(FIELD_ATTACH_ID);
+            int attachOperationColumn = cursor.getColumnIndex(FIELD_ATTACH_OPERATION);
+
+            do {
+                long recordId = cursor.getLong(recordIdColumn);
+                long featureId = cursor.getLong(featureIdColumn);
+                int operation = cursor.getInt(operationColumn);
+
+                ChangeState feature = features.get(featureId);
+                if (null == feature) {
+                    feature = new ChangeState();
+                    features.put(featureId, feature);
+                }
+
+                if (0 == (operation & CHANGE_OPERATION_ATTACH)) {
+                    feature.fold(recordId, operation, removed);
+                    continue;
+                }
+
+                Pair<Long, Long> key = new Pair<>(featureId, cursor.getLong(attachIdColumn));
+                ChangeState attach = attaches.get(key);
+                if (null == attach) {
+                    attach = new ChangeState();
+                    attaches.put(key, attach);
+                }
+
+                // the attachments of the deleted feature are deleted with it
+                feature.mRecords.add(recordId);
+                attach.fold(recordId, cursor.getInt(attachOperationColumn), removed);
+            } while (cursor.moveToNext());
+
+        } finally {
+            cursor.close();
+        }
+
+        if (removed.isEmpty()) {
+            return 0;
+        }
+
+        MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
+        SQLiteDatabase db = map.getDatabase(false);
+        int count = 0;
+
+        db.beginTransaction();
+        try {
+            StringBuilder ids = new StringBuilder();
+            for (int i = 0; i < removed.size(); i++) {
+                if (ids.length() > 0) {
+                    ids.append(",");
+                }
+                ids.append(removed.get(i));
+
+                // keep the statement below the SQLite limits
+                if ((i + 1) % COMPACT_BATCH_SIZE == 0 || i == removed.size() - 1) {
+                    count += db.delete(tableName, FIELD_ID + " IN (" + ids + ")", null);
+                    ids.setLength(0);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            Log.d(TAG, e.getLocalizedMessage());
+            count = 0;
+        } finally {
+            db.endTransaction();
+        }
+
+        return count;
+    }
+
+
+    protected static class ChangeState
+    {
+        // the records which are removed by the deletion
+        protected List<Long> mRecords = new ArrayList<>();
+        protected boolean    mIsNew;
+        protected boolean    mHasChange;
+
+
+        protected void fold(
+                long recordId,
+                int operation,
+                List<Long> removed)
+        {
+            if (0 != (operation & CHANGE_OPERATION_DELETE)) {
+                removed.addAll(mRecords);
+                if (mIsNew) {
+                    // the server has never seen it
+                    removed.add(recordId);
+                }
+                mRecords.clear();
+                mIsNew = false;
+                mHasChange = false;
+                return;
+            }
+
+            if (mHasChange) {
+                removed.add(recordId);
+                return;
+            }
+
+            mHasChange = true;
+            mIsNew = 0 != (operation & CHANGE_OPERATION_NEW);
+            mRecords.add(recordId);
+        }
+    }
+
+
     public static boolean hasFeatureFlags(
             String tableName,
             long featureId)
@@ -0,0 +1,598 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The HTTP connections shared by the tiles, the sync and the attachments. The connections to the
+ * each host are limited by the request class, the idempotent requests are retried with the
+ * growing delay on the network errors and the temporary server errors. The unread rest of the
+ * small response is drained on close, so the platform keeps the connection alive and reuses it,
+ * the connection with the larger rest is dropped. The latency, bytes, status and retry counts are
+ * collected by the request class once per request with all its retries.
+ */
+public class HttpClient
+{
+    public static final int REQUEST_DEFAULT = 0;
+    public static final int REQUEST_TILE    = 1;
+    public static final int REQUEST_FEATURE = 2;
+    public static final int REQUEST_ATTACH  = 3;
+    protected static final int REQUEST_CLASSES = 4;
+
+    public static final int  MAX_RETRIES = 2;
+    public static final long RETRY_DELAY = 500; // ms, doubled by every retry
+
+    // the platform pool keeps this count of the idle connections to the each host
+    protected static final int MAX_IDLE_CONNECTIONS = 8;
+    // the unread response rest to drain on close to reuse the connection
+    protected static final int MAX_DRAIN_SIZE = 8 * 1024;
+
+    protected static HttpClient mInstance;
+
+    protected final int[]                  mConnectTimeouts;
+    protected final int[]                  mReadTimeouts;
+    protected final int[]                  mHostLimits;
+    protected final Map<String, Semaphore> mHosts;
+    protected final Metrics[]              mMetrics;
+
+
+    /**
+     * Sets the request headers and writes the request body, called for every attempt
+     */
+    public interface RequestWriter
+    {
+        void write(HttpURLConnection conn)
+                throws IOException;
+    }
+
+
+    protected HttpClient()
+    {
+        mConnectTimeouts = new int[] {
+                NetworkUtil.TIMEOUT_CONNECTION, NetworkUtil.TIMEOUT_CONNECTION,
+                NetworkUtil.TIMEOUT_CONNECTION, NetworkUtil.TIMEOUT_CONNECTION};
+        mReadTimeouts = new int[] {
+                NetworkUtil.TIMEOUT_SOCKET, 30000, NetworkUtil.TIMEOUT_SOCKET, 600000};
+        mHostLimits = new int[] {4, 2, 4, 2};
+        mHosts = new HashMap<>();
+        mMetrics = new Metrics[REQUEST_CLASSES];
+        for (int i = 0; i < REQUEST_CLASSES; i++) {
+            mMetrics[i] = new Metrics();
+        }
+
+        System.setProperty("http.keepAlive", "true");
+        if (null == System.getProperty("http.maxConnections")) {
+            System.setProperty("http.maxConnections", "" + MAX_IDLE_CONNECTIONS);
+        }
+    }
+
+
+    public static synchronized HttpClient getInstance()
+    {
+        if (null == mInstance) {
+            mInstance = new HttpClient();
+        }
+        return mInstance;
+    }
+
+
+    /**
+     * @param requestClass
+     *         one of the REQUEST_ constants
+     * @param connectTimeout
+     *         the connect timeout in ms
+     * @param readTimeout
+     *         the read timeout in ms
+     */
+    public synchronized void setTimeouts(
+            int requestClass,
+            int connectTimeout,
+            int readTimeout)
+    {
+        mConnectTimeouts[requestClass] = connectTimeout;
+        mReadTimeouts[requestClass] = readTimeout;
+    }
+
+
+    /**
+     * Sets the count of the concurrent requests of the class to one host, the requests started
+     * before keep the previous limit
+     */
+    public void setHostLimit(
+            int requestClass,
+            int limit)
+    {
+        synchronized (mHosts) {
+            mHostLimits[requestClass] = Math.max(1, limit);
+            String suffix = "#" + requestClass;
+            mHosts.keySet().removeAll(getHostKeys(suffix));
+        }
+    }
+
+
+    protected List<String> getHostKeys(String suffix)
+    {
+        List<String> keys = new ArrayList<>();
+        for (String key : mHosts.keySet()) {
+            if (key.endsWith(suffix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+
+    public Metrics getMetrics(int requestClass)
+    {
+        return mMetrics[requestClass];
+    }
+
+
+    /**
+     * Executes the request and reads the response code. The response should be closed to release
+     * the host connection, the body is read by {@link Response#getInputStream()} or {@link
+     * Response#getString()} before.
+     *
+     * @param writer
+     *         the headers and body writer, may be null
+     *
+     * @return the response or null if the connection object is not created for the url
+     */
+    public Response execute(
+            String method,
+            String url,
+            String username,
+            String password,
+            int requestClass,
+            RequestWriter writer)
+            throws IOException
+    {
+        boolean isIdempotent = method.equals("GET") || method.equals("HEAD")
+                || method.equals("PUT") || method.equals("DELETE");
+        int maxRetries = isIdempotent ? MAX_RETRIES : 0;
+        Semaphore hostLimit = getHostLimit(url, requestClass);
+        long start = System.currentTimeMillis();
+
+        for (int retry = 0; ; retry++) {
+            HttpURLConnection conn = NetworkUtil.getHttpConnection(method, url, username, password);
+            if (null == conn) {
+                mMetrics[requestClass].record(System.currentTimeMillis() - start, 0, 0, 0, retry);
+                return null;
+            }
+            synchronized (this) {
+                conn.setConnectTimeout(mConnectTimeouts[requestClass]);
+                conn.setReadTimeout(mReadTimeouts[requestClass]);
+            }
+            // the response is decoded by Response.getInputStream(), the platform does not decode
+            // it then. The writer may ask for the identity encoding, i.e. to resume a download.
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+            try {
+                hostLimit.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the connection: " + url);
+            }
+
+            int code;
+            try {
+                if (null != writer) {
+                    writer.write(conn);
+                }
+                code = conn.getResponseCode();
+            } catch (IOException e) {
+                hostLimit.release();
+                if (retry >= maxRetries || Thread.currentThread().isInterrupted()) {
+                    mMetrics[requestClass].record(System.currentTimeMillis() - start, 0, 0, 0, retry);
+                    throw e;
+                }
+                if (Constants.DEBUG_MODE) {
+                    Log.d(TAG, "Retry " + method + " " + url + ": " + e.getLocalizedMessage());
+                }
+                sleep(retry);
+                continue;
+            }
+
+            Response response = new Response(conn, code, hostLimit, requestClass, start, retry);
+            if (retry >= maxRetries || !isRetryCode(code)) {
+                return response;
+            }
+
+            if (Constants.DEBUG_MODE) {
+                Log.d(TAG, "Retry " + method + " " + url + " HTTP response: " + code);
+            }
+            // the metrics are recorded by the last attempt
+            response.release();
+            sleep(retry);
+        }
+    }
+
+
+    protected static boolean isRetryCode(int code)
+    {
+        return code == 429 || code == HttpURLConnection.HTTP_BAD_GATEWAY
+                || code == HttpURLConnection.HTTP_UNAVAILABLE
+                || code == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+
+    protected static void sleep(int retry)
+            throws InterruptedIOException
+    {
+        try {
+            Thread.sleep(RETRY_DELAY << retry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the retry");
+        }
+    }
+
+
+    protected Semaphore getHostLimit(
+            String url,
+            int requestClass)
+    {
+        String host;
+        try {
+            host = new URL(url).getHost();
+        } catch (IOException e) {
+            host = "";
+        }
+
+        String key = host + "#" + requestClass;
+        synchronized (mHosts) {
+            Semaphore semaphore = mHosts.get(key);
+            if (null == semaphore) {
+                semaphore = new Semaphore(mHostLimits[requestClass], true);
+                mHosts.put(key, semaphore);
+            }
+            return semaphore;
+        }
+    }
+
+
+    public class Response
+    {
+        protected final HttpURLConnection mConnection;
+        protected final int               mCode;
+        protected final Semaphore         mHostLimit;
+        protected final int               mRequestClass;
+        protected final long              mStart;
+        protected final int               mRetries;
+        protected CountingInputStream mStream;
+        protected boolean             mClosed;
+
+
+        protected Response(
+                HttpURLConnection connection,
+                int code,
+                Semaphore hostLimit,
+                int requestClass,
+                long start,
+                int retries)
+        {
+            mConnection = connection;
+            mCode = code;
+            mHostLimit = hostLimit;
+            mRequestClass = requestClass;
+            mStart = start;
+            mRetries = retries;
+        }
+
+
+        public int getCode()
+        {
+            return mCode;
+        }
+
+
+        public HttpURLConnection getConnection()
+        {
+            return mConnection;
+        }
+
+
+        /**
+         * @return the decoded response body
+         */
+        public InputStream getInputStream()
+                throws IOException
+        {
+            return NetworkUtil.getInputStream(mConnection, getRawInputStream());
+        }
+
+
+        /**
+         * @return the response body as it is received, i.e. to count the progress by the content
+         * length
+         */
+        public InputStream getRawInputStream()
+                throws IOException
+        {
+            if (null == mStream) {
+                mStream = new CountingInputStream(mConnection.getInputStream());
+            }
+            return mStream;
+        }
+
+
+        public String getString()
+                throws IOException
+        {
+            return NetworkUtil.responseToString(getInputStream());
+        }
+
+
+        /**
+         * Releases the host connection and records the metrics of the request
+         */
+        public void close()
+        {
+            if (mClosed) {
+                return;
+            }
+            release();
+            mMetrics[mRequestClass].record(System.currentTimeMillis() - mStart,
+                    null == mStream ? 0 : mStream.getCount(), mCode, 1, mRetries);
+        }
+
+
+        /**
+         * Releases the host connection without the metrics, i.e. of the attempt to retry. The
+         * unread body up to {@link #MAX_DRAIN_SIZE} is discarded to keep the connection alive.
+         */
+        protected void release()
+        {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+
+            try {
+                InputStream is = mStream;
+                if (null == is) {
+                    is = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                            ? mConnection.getErrorStream()
+                            : mConnection.getInputStream();
+                }
+                if (null != is) {
+                    boolean drained = drain(is);
+                    is.close();
+                    if (!drained) {
+                        mConnection.disconnect();
+                    }
+                }
+            } catch (IOException e) {
+                // the connection is not reused then
+                mConnection.disconnect();
+            }
+
+            mHostLimit.release();
+        }
+
+
+        /**
+         * @return true if the stream end is reached
+         */
+        protected boolean drain(InputStream is)
+                throws IOException
+        {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+
+            // the body is usually read already
+            if (is.read() < 0) {
+                return true;
+            }
+
+            byte[] buffer = new byte[MAX_DRAIN_SIZE];
+            int left = MAX_DRAIN_SIZE - 1;
+            while (left > 0) {
+                int read = is.read(buffer, 0, Math.min(buffer.length, left));
+                if (read < 0) {
+                    return true;
+                }
+                left -= read;
+            }
+            return is.read() < 0;
+        }
+    }
+
+
+    protected static class CountingInputStream
+            extends FilterInputStream
+    {
+        protected long mCount;
+
+
+        protected CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(
+                byte[] buffer,
+                int offset,
+                int count)
+                throws IOException
+        {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+
+        @Override
+        public long skip(long count)
+                throws IOException
+        {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+
+        public long getCount()
+        {
+            return mCount;
+        }
+    }
+
+
+    /**
+     * The counters of the requests of one class
+     */
+    public static class Metrics
+    {
+        protected long mRequests;
+        protected long mFailures;
+        protected long mRetries;
+        protected long mBytes;
+        protected long mLatency;
+        protected long mMaxLatency;
+        // the responses by the status class: 1xx - 5xx
+        protected final long[] mStatuses = new long[6];
+
+
+        /**
+         * @param responses
+         *         0 if the request failed without the response
+         */
+        protected synchronized void record(
+                long latency,
+                long bytes,
+                int code,
+                int responses,
+                int retries)
+        {
+            mRequests++;
+            if (0 == responses) {
+                mFailures++;
+            } else if (code >= 100 && code < 600) {
+                mStatuses[code / 100]++;
+            }
+            mRetries += retries;
+            mBytes += bytes;
+            mLatency += latency;
+            mMaxLatency = Math.max(mMaxLatency, latency);
+        }
+
+
+        public synchronized long getRequests()
+        {
+            return mRequests;
+        }
+
+
+        public synchronized long getFailures()
+        {
+            return mFailures;
+        }
+
+
+        public synchronized long getRetries()
+        {
+            return mRetries;
+        }
+
+
+        public synchronized long getBytes()
+        {
+            return mBytes;
+        }
+
+
+        public synchronized long getAverageLatency()
+        {
+            return mRequests == 0 ? 0 : mLatency / mRequests;
+        }
+
+
+        public synchronized long getMaxLatency()
+        {
+            return mMaxLatency;
+        }
+
+
+        /**
+         * @param statusClass
+         *         the first digit of the status code
+         */
+        public synchronized long getResponses(int statusClass)
+        {
+            return mStatuses[statusClass];
+        }
+
+
+        public synchronized void reset()
+        {
+            mRequests = mFailures = mRetries = mBytes = mLatency = mMaxLatency = 0;
+            Arrays.fill(mStatuses, 0);
+        }
+
+
+        @Override
+        public synchronized String toString()
+        {
+            return "requests: " + mRequests + ", failures: " + mFailures + ", retries: " + mRetries
+                    + ", bytes: " + mBytes + ", latency avg/max: " + getAverageLatency() + "/"
+                    + mMaxLatency + " ms, 2xx: " + mStatuses[2] + ", 3xx: " + mStatuses[3]
+                    + ", 4xx: " + mStatuses[4] + ", 5xx: " + mStatuses[5];
+        }
+    }
+}
@@ -34,7 +34,8 @@ import com.nextgis.maplib.datasource.TileItem;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
@@ -138,13 +139,14 @@ public class MapUtil {
         return total;
     }
 
-    public static List<TileItem> getTileItems(GeoEnvelope bounds, double zoom, int tmsType) {
-        int decimalZoom = (int) zoom;
+    /**
+     * @return the tiles range as begin x, begin y, end x and end y, the x range is not limited to
+     * the map to scroll it unlimited
+     */
+    protected static int[] getTileRange(GeoEnvelope bounds, int decimalZoom) {
         int tilesInMapOneDimension = 1 << decimalZoom;
         double halfTilesInMapOneDimension = tilesInMapOneDimension * 0.5;
-
         double tilesSizeOneDimension = GeoConstants.MERCATOR_MAX / halfTilesInMapOneDimension;
-        final List<TileItem> result = new LinkedList<>();
 
         int begX = (int) Math.floor(bounds.getMinX() / tilesSizeOneDimension + halfTilesInMapOneDimension);
         int begY = (int) Math.floor(bounds.getMinY() / tilesSizeOneDimension + halfTilesInMapOneDimension);
@@ -162,21 +164,31 @@ public class MapUtil {
         if (endY > tilesInMapOneDimension) {
             endY = tilesInMapOneDimension;
         }
-        /* this block unlimited X scroll of the map
-        if (begX < 0) {
-            begX = 0;
-        }
-        if (endX > tilesInMapOneDimension) {
-            endX = tilesInMapOneDimension;
-        }
-        */
+
+        return new int[] {begX, begY, endX, endY};
+    }
+
+    protected static int getTilesCount(int[] range) {
+        long count = (long) Math.max(0, range[2] - range[0]) * Math.max(0, range[3] - range[1]);
+        // some limits for tiles array size
+        return (int) Math.min(count, Constants.MAX_TILES_COUNT + 1);
+    }
+
+    public static List<TileItem> getTileItems(GeoEnvelope bounds, double zoom, int tmsType) {
+        int decimalZoom = (int) zoom;
+        int tilesInMapOneDimension = 1 << decimalZoom;
+        double tilesSizeOneDimension = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+
+        int[] range = getTileRange(bounds, decimalZoom);
+        int count = getTilesCount(range);
+        final List<TileItem> result = new ArrayList<>(count);
 
         // normal fill from left bottom corner
         int realX, realY;
         double fullBoundsMinX = -GeoConstants.MERCATOR_MAX;
         double fullBoundsMinY = -GeoConstants.MERCATOR_MAX;
-        for (int x = begX; x < endX; x++) {
-            for (int y = begY; y < endY; y++) {
+        for (int x = range[0]; x < range[2]; x++) {
+            for (int y = range[1]; y < range[3]; y++) {
                 realX = x;
                 if (realX < 0) {
                     realX += tilesInMapOneDimension;
@@ -203,7 +215,7 @@ public class MapUtil {
                 TileItem item = new TileItem(realX, realY, decimalZoom, env);
                 result.add(item);
 
-                if(result.size() > Constants.MAX_TILES_COUNT) // some limits for tiles array size
+                if(result.size() >= count)
                     return result;
             }
         }
@@ -211,6 +223,43 @@ public class MapUtil {
         return result;
     }
 
+    /**
+     * Enumerate the tiles as the packed keys in the same order as {@link #getTileItems}, no
+     * object is allocated per tile
+     *
+     * @return the keys array, the tile coordinates are got with the {@link TileItem} static
+     * methods
+     */
+    public static long[] getTileKeys(GeoEnvelope bounds, double zoom, int tmsType) {
+        int decimalZoom = (int) zoom;
+        int tilesInMapOneDimension = 1 << decimalZoom;
+
+        int[] range = getTileRange(bounds, decimalZoom);
+        long[] keys = new long[getTilesCount(range)];
+        int count = 0;
+
+        int realX, realY;
+        for (int x = range[0]; x < range[2] && count < keys.length; x++) {
+            realX = x;
+            if (realX < 0) {
+                realX += tilesInMapOneDimension;
+            } else if (realX >= tilesInMapOneDimension) {
+                realX -= tilesInMapOneDimension;
+            }
+
+            for (int y = range[1]; y < range[3] && count < keys.length; y++) {
+                realY = y;
+                if (tmsType == GeoConstants.TMSTYPE_OSM) {
+                    realY = tilesInMapOneDimension - y - 1;
+                }
+
+                keys[count++] = TileItem.getKey(realX, realY, decimalZoom);
+            }
+        }
+
+        return count == keys.length ? keys : Arrays.copyOf(keys, count);
+    }
+
     public static boolean isZippedGeoJSON(Context context, AtomicReference<Uri> uri) {
         try {
             InputStream inputStream = context.getContentResolver().openInputStream(uri.get());
@@ -152,6 +152,15 @@ public class NGWUtil
     }
 
 
+    public static String getFileUploadTusUrl(String server)
+    {
+        if (!server.startsWith("http")) {
+            server = "http://" + server;
+        }
+        return server + "/api/component/file_upload/";
+    }
+
+
     public static String getNgwVersionUrl(String server)
     {
         if (!server.startsWith("http")) {
@@ -351,6 +360,22 @@ public class NGWUtil
     }
 
 
+    /**
+     * Limit the features url to the page
+     *
+     * @param featuresUrl
+     *         the features collection url with or without the query
+     */
+    public static String getFeaturesPageUrl(
+            String featuresUrl,
+            int limit,
+            long offset)
+    {
+        String separator = featuresUrl.contains("?") ? "&" : "?";
+        return featuresUrl + separator + "limit=" + limit + "&offset=" + offset;
+    }
+
+
     public static String getExtent(String server, long remoteId) {
         return getResourceMetaUrl(server, remoteId) + "/extent";
     }
@@ -380,6 +405,16 @@ public class NGWUtil
     }
 
 
+    public static String getFeatureAttachmentDownloadUrl(
+            String server,
+            long remoteId,
+            long featureId,
+            long attachId)
+    {
+        return getFeatureAttachmentUrl(server, remoteId, featureId) + attachId + "/download";
+    }
+
+
     public static List<Field> getFieldsFromJson(JSONArray fieldsJSONArray)
             throws JSONException
     {
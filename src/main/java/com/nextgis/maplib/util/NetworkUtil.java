@@ -34,7 +34,7 @@ import android.util.Log;
 
 import com.nextgis.maplib.R;
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -42,9 +42,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import static com.nextgis.maplib.util.Constants.TAG;
 
@@ -59,6 +63,10 @@ public class NetworkUtil
 
     public final static int TIMEOUT_CONNECTION = 10000;
     public final static int TIMEOUT_SOCKET = 240000; // 180 sec
+    // the request bodies from this size are compressed if the gzip requests are enabled
+    public final static int GZIP_REQUEST_MIN_SIZE = 8192;
+
+    protected static volatile boolean mGzipRequests;
 
 
     public NetworkUtil(Context context)
@@ -158,6 +166,102 @@ public class NetworkUtil
         return new String(bytesReceived);
     }
 
+    /**
+     * The server should decode the gzip request bodies, so the compression of the requests is
+     * off by default.
+     */
+    public static void setGzipRequests(boolean gzipRequests)
+    {
+        mGzipRequests = gzipRequests;
+    }
+
+
+    public static boolean isGzipRequests()
+    {
+        return mGzipRequests;
+    }
+
+
+    public static InputStream getInputStream(HttpURLConnection conn)
+            throws IOException
+    {
+        return getInputStream(conn, conn.getInputStream());
+    }
+
+
+    /**
+     * Wraps the response stream of the connection by the decoder of its Content-Encoding. The
+     * stream is decoded while it is read, so it can be passed to JsonReader directly.
+     *
+     * @param is
+     *         the response stream or its wrapper, i.e. to count the read bytes
+     */
+    public static InputStream getInputStream(
+            HttpURLConnection conn,
+            InputStream is)
+            throws IOException
+    {
+        String encoding = conn.getContentEncoding();
+        if (null == encoding) {
+            return is;
+        }
+
+        encoding = encoding.trim().toLowerCase(Locale.US);
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(is, Constants.IO_BUFFER_SIZE);
+        }
+
+        if (encoding.equals("deflate")) {
+            // the zlib stream is expected, but some servers send the raw deflate one
+            BufferedInputStream bis = new BufferedInputStream(is, Constants.IO_BUFFER_SIZE);
+            bis.mark(2);
+            int cmf = bis.read();
+            int flg = bis.read();
+            bis.reset();
+            boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+
+            final Inflater inflater = new Inflater(!zlib);
+            return new InflaterInputStream(bis, inflater, Constants.IO_BUFFER_SIZE)
+            {
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        }
+
+        return is;
+    }
+
+
+    protected static void writePayload(
+            HttpURLConnection conn,
+            String payload)
+            throws IOException
+    {
+        byte[] data = payload.getBytes("UTF-8");
+        boolean gzip = mGzipRequests && data.length >= GZIP_REQUEST_MIN_SIZE;
+
+        conn.setRequestProperty("Content-type", "application/json");
+        if (gzip) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
+        // Allow Outputs
+        conn.setDoOutput(true);
+
+        OutputStream os = conn.getOutputStream();
+        if (gzip) {
+            os = new GZIPOutputStream(os, Constants.IO_BUFFER_SIZE);
+        }
+        os.write(data);
+        os.flush();
+        os.close();
+    }
+
+
     public static void getStream(
             String targetURL,
             String username,
@@ -165,24 +269,30 @@ public class NetworkUtil
             OutputStream outputStream)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
-        if (null == conn) {
+        HttpClient.Response response = HttpClient.getInstance().execute("GET", targetURL,
+                username, password, HttpClient.REQUEST_ATTACH, null);
+        if (null == response) {
             if (Constants.DEBUG_MODE)
                 Log.d(TAG, "Error get stream: " + targetURL);
             return;
         }
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute getStream: " + targetURL + " HTTP response: " +
-                    responseCode + " username: " + username);
-            return;
-        }
 
-        byte data[] = new byte[Constants.IO_BUFFER_SIZE];
-        InputStream is = conn.getInputStream();
-        FileUtil.copyStream(is, outputStream, data, Constants.IO_BUFFER_SIZE);
-        outputStream.close();
+        try {
+            int responseCode = response.getCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute getStream: " + targetURL + " HTTP response: " +
+                        responseCode + " username: " + username);
+                return;
+            }
+
+            byte data[] = new byte[Constants.IO_BUFFER_SIZE];
+            InputStream is = response.getInputStream();
+            FileUtil.copyStream(is, outputStream, data, Constants.IO_BUFFER_SIZE);
+            outputStream.close();
+        } finally {
+            response.close();
+        }
     }
 
 
@@ -191,21 +301,21 @@ public class NetworkUtil
             String username,
             String password)
             throws IOException {
-        final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
-        if (null == conn) {
-            if (Constants.DEBUG_MODE)
-                Log.d(TAG, "Error get connection object: " + targetURL);
-            return "0";
-        }
+        return get(targetURL, username, password, HttpClient.REQUEST_DEFAULT);
+    }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute get: " + targetURL + " HTTP response: " + responseCode);
-            return responseCode + "";
-        }
 
-        return responseToString(conn.getInputStream());
+    /**
+     * @param requestClass
+     *         one of the HttpClient.REQUEST_ constants
+     */
+    public static String get(
+            String targetURL,
+            String username,
+            String password,
+            int requestClass)
+            throws IOException {
+        return execute("GET", targetURL, null, username, password, requestClass);
     }
 
 
@@ -216,100 +326,167 @@ public class NetworkUtil
             String password)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("POST", targetURL, username, password);
-        if (null == conn) {
-            if (Constants.DEBUG_MODE)
-                Log.d(TAG, "Error get connection object: " + targetURL);
-            return "0";
-        }
-        conn.setRequestProperty("Content-type", "application/json");
-        // Allow Outputs
-        conn.setDoOutput(true);
+        return post(targetURL, payload, username, password, HttpClient.REQUEST_DEFAULT);
+    }
 
-        OutputStream os = conn.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-        writer.write(payload);
 
-        writer.flush();
-        writer.close();
-        os.close();
+    public static String post(
+            String targetURL,
+            String payload,
+            String username,
+            String password,
+            int requestClass)
+            throws IOException
+    {
+        return execute("POST", targetURL, payload, username, password, requestClass);
+    }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute post: " + targetURL + " HTTP response: " + responseCode);
-            return responseCode + "";
-        }
 
-        return responseToString(conn.getInputStream());
+    public static boolean delete(
+            String targetURL,
+            String username,
+            String password)
+            throws IOException
+    {
+        return delete(targetURL, username, password, HttpClient.REQUEST_DEFAULT);
     }
 
 
     public static boolean delete(
             String targetURL,
             String username,
-            String password)
+            String password,
+            int requestClass)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("DELETE", targetURL, username, password);
-        if (null == conn) {
+        HttpClient.Response response = HttpClient.getInstance().execute("DELETE", targetURL,
+                username, password, requestClass, null);
+        if (null == response) {
             if (Constants.DEBUG_MODE)
                 Log.d(TAG, "Error get connection object: " + targetURL);
             return false;
         }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute delete: " + targetURL + " HTTP response: " + responseCode);
-            return false;
+        try {
+            int responseCode = response.getCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute delete: " + targetURL + " HTTP response: " + responseCode);
+                return false;
+            }
+
+            // read the body to reuse the connection
+            response.getString();
+            return true;
+        } finally {
+            response.close();
         }
+    }
 
-        return true;
+
+    public static String put(
+            String targetURL,
+            String payload,
+            String username,
+            String password)
+            throws IOException
+    {
+        return put(targetURL, payload, username, password, HttpClient.REQUEST_DEFAULT);
     }
 
 
     public static String put(
+            String targetURL,
+            String payload,
+            String username,
+            String password,
+            int requestClass)
+            throws IOException
+    {
+        return execute("PUT", targetURL, payload, username, password, requestClass);
+    }
+
+
+    public static String patch(
             String targetURL,
             String payload,
             String username,
             String password)
             throws IOException
     {
-        final HttpURLConnection conn = getHttpConnection("PUT", targetURL, username, password);
-        if (null == conn) {
+        return patch(targetURL, payload, username, password, HttpClient.REQUEST_DEFAULT);
+    }
+
+
+    public static String patch(
+            String targetURL,
+            String payload,
+            String username,
+            String password,
+            int requestClass)
+            throws IOException
+    {
+        return execute("PATCH", targetURL, payload, username, password, requestClass);
+    }
+
+
+    /**
+     * Executes the request with the JSON payload by the shared HttpClient
+     *
+     * @return the response body or the HTTP response code if it is not success, "0" if the
+     * connection object is not created
+     */
+    protected static String execute(
+            final String method,
+            String targetURL,
+            final String payload,
+            String username,
+            String password,
+            int requestClass)
+            throws IOException
+    {
+        HttpClient.RequestWriter writer = null;
+        if (null != payload) {
+            writer = new HttpClient.RequestWriter()
+            {
+                @Override
+                public void write(HttpURLConnection conn)
+                        throws IOException
+                {
+                    writePayload(conn, payload);
+                }
+            };
+        }
+
+        HttpClient.Response response = HttpClient.getInstance().execute(method, targetURL,
+                username, password, requestClass, writer);
+        if (null == response) {
             if (Constants.DEBUG_MODE)
                 Log.d(TAG, "Error get connection object: " + targetURL);
             return "0";
         }
-        conn.setRequestProperty("Content-type", "application/json");
-        // Allow Outputs
-        conn.setDoOutput(true);
 
-        OutputStream os = conn.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-        writer.write(payload);
-
-        writer.flush();
-        writer.close();
-        os.close();
+        try {
+            int responseCode = response.getCode();
+            boolean isCreated = method.equals("POST") && responseCode == HttpURLConnection.HTTP_CREATED;
+            if (responseCode != HttpURLConnection.HTTP_OK && !isCreated) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem execute " + method.toLowerCase(Locale.US) + ": " + targetURL + " HTTP response: " + responseCode);
+                return responseCode + "";
+            }
 
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem execute put: " + targetURL + " HTTP response: " + responseCode);
-            return responseCode + "";
+            return response.getString();
+        } finally {
+            response.close();
         }
-
-        return responseToString(conn.getInputStream());
     }
 
 
     public static String postFile(
             String targetURL,
-            String fileName,
-            File file,
-            String fileMime,
+            final String fileName,
+            final File file,
+            final String fileMime,
             String username,
             String password)
             throws IOException
@@ -319,49 +496,63 @@ public class NetworkUtil
         final String boundary = "**nextgis**";
 
         //------------------ CLIENT REQUEST
-        FileInputStream fileInputStream = new FileInputStream(file);
-        // open a URL connection to the Servlet
+        HttpClient.RequestWriter writer = new HttpClient.RequestWriter()
+        {
+            @Override
+            public void write(HttpURLConnection conn)
+                    throws IOException
+            {
+                conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
+                // Allow Outputs
+                conn.setDoOutput(true);
+
+                FileInputStream fileInputStream = new FileInputStream(file);
+                DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
+                try {
+                    dos.writeBytes(twoHyphens + boundary + lineEnd);
+                    dos.writeBytes(
+                            "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"" +
+                            lineEnd);
+
+                    if (!TextUtils.isEmpty(fileMime)) {
+                        dos.writeBytes("Content-Type: " + fileMime + lineEnd);
+                    }
+
+                    dos.writeBytes(lineEnd);
+
+                    byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+                    FileUtil.copyStream(fileInputStream, dos, buffer, Constants.IO_BUFFER_SIZE);
+
+                    dos.writeBytes(lineEnd);
+                    dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
+                    dos.flush();
+                } finally {
+                    fileInputStream.close();
+                    dos.close();
+                }
+            }
+        };
 
-        HttpURLConnection conn = getHttpConnection("POST", targetURL, username, password);
-        if (null == conn) {
+        HttpClient.Response response = HttpClient.getInstance().execute("POST", targetURL,
+                username, password, HttpClient.REQUEST_ATTACH, writer);
+        if (null == response) {
             if (Constants.DEBUG_MODE)
                 Log.d(TAG, "Error get connection object: " + targetURL);
             return "0";
         }
-        conn.setRequestProperty("Connection", "Keep-Alive");
-        conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
-        // Allow Outputs
-        conn.setDoOutput(true);
-
-        DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
-        dos.writeBytes(twoHyphens + boundary + lineEnd);
-        dos.writeBytes(
-                "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"" +
-                lineEnd);
-
-        if (!TextUtils.isEmpty(fileMime)) {
-            dos.writeBytes("Content-Type: " + fileMime + lineEnd);
-        }
 
-        dos.writeBytes(lineEnd);
+        try {
+            int responseCode = response.getCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if(Constants.DEBUG_MODE)
+                    Log.d(TAG, "Problem postFile(), targetURL: " + targetURL + " HTTP response: " + responseCode);
+                return responseCode + "";
+            }
 
-        byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
-        FileUtil.copyStream(fileInputStream, dos, buffer, Constants.IO_BUFFER_SIZE);
-
-        dos.writeBytes(lineEnd);
-        dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
-        fileInputStream.close();
-        dos.flush();
-        dos.close();
-
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Problem postFile(), targetURL: " + targetURL + " HTTP response: " + responseCode);
-            return responseCode + "";
+            return response.getString();
+        } finally {
+            response.close();
         }
-
-        return responseToString(conn.getInputStream());
     }
 
     public static String getError(Context context, String responseCode) {
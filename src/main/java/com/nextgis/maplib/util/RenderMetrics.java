@@ -0,0 +1,390 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import com.nextgis.maplib.api.RenderMetricsListener;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Rendering metrics collected per layer. The timings are accumulated in the histograms with
+ * power of two millisecond buckets, the counters are accumulated since the last reset. The
+ * metrics are collected only if enabled.
+ */
+public final class RenderMetrics
+{
+    public static final int TIME_PREPARE = 0;
+    public static final int TIME_QUERY   = 1;
+    public static final int TIME_DECODE  = 2;
+    public static final int TIME_DRAW    = 3;
+    public static final int TIME_TOTAL   = 4;
+    protected static final String[] TIME_NAMES = {"prepare", "query", "decode", "draw", "total"};
+
+    public static final int COUNT_FEATURES_DRAWN = 0;
+    public static final int COUNT_FEATURES_CULLED = 1;
+    public static final int COUNT_SQL_QUERIES = 2;
+    public static final int COUNT_TILE_HITS = 3;
+    public static final int COUNT_TILE_MISSES = 4;
+    public static final int COUNT_BYTES_DECODED = 5;
+    protected static final String[] COUNT_NAMES = {
+            "features_drawn",
+            "features_culled",
+            "sql_queries",
+            "tile_hits",
+            "tile_misses",
+            "bytes_decoded"};
+
+    // the upper bounds of the histogram buckets in ms, the last bucket is unbounded
+    protected static final long[] BUCKET_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096};
+
+    public static final String JSON_LAYER_ID_KEY = "layer_id";
+    public static final String JSON_TIMINGS_KEY  = "timings";
+    public static final String JSON_COUNTS_KEY   = "counts";
+    public static final String JSON_TOTAL_KEY    = "count";
+    public static final String JSON_SUM_KEY      = "sum";
+    public static final String JSON_MAX_KEY      = "max";
+    public static final String JSON_BUCKETS_KEY  = "buckets";
+    public static final String JSON_BOUNDS_KEY   = "bounds";
+    public static final String JSON_LAYERS_KEY   = "layers";
+
+    protected static volatile boolean mEnabled = false;
+    protected static final Map<Integer, LayerMetrics> mLayers = new HashMap<>();
+    protected static final List<RenderMetricsListener> mListeners = new ArrayList<>();
+
+
+    private RenderMetrics()
+    {
+    }
+
+
+    public static boolean isEnabled()
+    {
+        return mEnabled;
+    }
+
+
+    public static void setEnabled(boolean enabled)
+    {
+        mEnabled = enabled;
+    }
+
+
+    /**
+     * @return the current time to pass to {@link #record(int, int, long)} or 0 if the metrics are
+     * disabled
+     */
+    public static long start()
+    {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+
+    /**
+     * Record the time elapsed since the start
+     *
+     * @param layerId
+     *         the layer identificator
+     * @param timing
+     *         one of TIME_ constants
+     * @param startTime
+     *         the value returned by {@link #start()}
+     */
+    public static void record(
+            int layerId,
+            int timing,
+            long startTime)
+    {
+        if (!mEnabled || startTime == 0) {
+            return;
+        }
+        recordElapsed(layerId, timing, System.nanoTime() - startTime);
+    }
+
+
+    /**
+     * Record the time accumulated by the caller, i.e. the sum of the several short operations
+     *
+     * @param layerId
+     *         the layer identificator
+     * @param timing
+     *         one of TIME_ constants
+     * @param elapsedTime
+     *         the elapsed time in ns
+     */
+    public static void recordElapsed(
+            int layerId,
+            int timing,
+            long elapsedTime)
+    {
+        if (!mEnabled) {
+            return;
+        }
+        getLayerMetrics(layerId).mTimings[timing].add(elapsedTime / 1000000);
+    }
+
+
+    /**
+     * @param layerId
+     *         the layer identificator
+     * @param counter
+     *         one of COUNT_ constants
+     * @param value
+     *         the value to add
+     */
+    public static void add(
+            int layerId,
+            int counter,
+            long value)
+    {
+        if (!mEnabled || value == 0) {
+            return;
+        }
+        getLayerMetrics(layerId).mCounts[counter].addAndGet(value);
+    }
+
+
+    /**
+     * Notify the listeners then layer drawing finished
+     */
+    public static void onLayerDrawn(int layerId)
+    {
+        if (!mEnabled) {
+            return;
+        }
+
+        LayerMetrics metrics = getLayerMetrics(layerId);
+        List<RenderMetricsListener> listeners;
+        synchronized (mListeners) {
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            listeners = new ArrayList<>(mListeners);
+        }
+
+        for (RenderMetricsListener listener : listeners) {
+            listener.onLayerMetrics(layerId, metrics);
+        }
+    }
+
+
+    public static LayerMetrics getLayerMetrics(int layerId)
+    {
+        synchronized (mLayers) {
+            LayerMetrics metrics = mLayers.get(layerId);
+            if (null == metrics) {
+                metrics = new LayerMetrics(layerId);
+                mLayers.put(layerId, metrics);
+            }
+            return metrics;
+        }
+    }
+
+
+    /**
+     * @return the snapshot of all layers metrics
+     */
+    public static JSONObject toJSON()
+            throws JSONException
+    {
+        JSONArray layers = new JSONArray();
+        synchronized (mLayers) {
+            for (LayerMetrics metrics : mLayers.values()) {
+                layers.put(metrics.toJSON());
+            }
+        }
+
+        JSONObject rootObject = new JSONObject();
+        JSONArray bounds = new JSONArray();
+        for (long bound : BUCKET_BOUNDS) {
+            bounds.put(bound);
+        }
+        rootObject.put(JSON_BOUNDS_KEY, bounds);
+        rootObject.put(JSON_LAYERS_KEY, layers);
+        return rootObject;
+    }
+
+
+    public static void reset()
+    {
+        synchronized (mLayers) {
+            mLayers.clear();
+        }
+    }
+
+
+    public static void addListener(RenderMetricsListener listener)
+    {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+
+    public static void removeListener(RenderMetricsListener listener)
+    {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+
+    public static class LayerMetrics
+    {
+        protected final int          mLayerId;
+        protected final Histogram[]  mTimings;
+        protected final AtomicLong[] mCounts;
+
+
+        protected LayerMetrics(int layerId)
+        {
+            mLayerId = layerId;
+            mTimings = new Histogram[TIME_NAMES.length];
+            for (int i = 0; i < mTimings.length; i++) {
+                mTimings[i] = new Histogram();
+            }
+            mCounts = new AtomicLong[COUNT_NAMES.length];
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = new AtomicLong();
+            }
+        }
+
+
+        public int getLayerId()
+        {
+            return mLayerId;
+        }
+
+
+        public Histogram getTiming(int timing)
+        {
+            return mTimings[timing];
+        }
+
+
+        public long getCount(int counter)
+        {
+            return mCounts[counter].get();
+        }
+
+
+        public JSONObject toJSON()
+                throws JSONException
+        {
+            JSONObject timings = new JSONObject();
+            for (int i = 0; i < mTimings.length; i++) {
+                timings.put(TIME_NAMES[i], mTimings[i].toJSON());
+            }
+
+            JSONObject counts = new JSONObject();
+            for (int i = 0; i < mCounts.length; i++) {
+                counts.put(COUNT_NAMES[i], mCounts[i].get());
+            }
+
+            JSONObject rootObject = new JSONObject();
+            rootObject.put(JSON_LAYER_ID_KEY, mLayerId);
+            rootObject.put(JSON_TIMINGS_KEY, timings);
+            rootObject.put(JSON_COUNTS_KEY, counts);
+            return rootObject;
+        }
+    }
+
+
+    public static class Histogram
+    {
+        protected final long[] mBuckets = new long[BUCKET_BOUNDS.length + 1];
+        protected long mCount;
+        protected long mSum;
+        protected long mMax;
+
+
+        public synchronized void add(long value)
+        {
+            int i = 0;
+            while (i < BUCKET_BOUNDS.length && value > BUCKET_BOUNDS[i]) {
+                i++;
+            }
+            mBuckets[i]++;
+            mCount++;
+            mSum += value;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+
+        public synchronized long getCount()
+        {
+            return mCount;
+        }
+
+
+        public synchronized long getSum()
+        {
+            return mSum;
+        }
+
+
+        public synchronized long getMax()
+        {
+            return mMax;
+        }
+
+
+        /**
+         * @return the copy of the bucket counters, the bucket upper bounds are 1, 2, 4 ... 4096 ms
+         * and the last one is unbounded
+         */
+        public synchronized long[] getBuckets()
+        {
+            return mBuckets.clone();
+        }
+
+
+        public synchronized JSONObject toJSON()
+                throws JSONException
+        {
+            JSONArray buckets = new JSONArray();
+            for (long bucket : mBuckets) {
+                buckets.put(bucket);
+            }
+
+            JSONObject rootObject = new JSONObject();
+            rootObject.put(JSON_TOTAL_KEY, mCount);
+            rootObject.put(JSON_SUM_KEY, mSum);
+            rootObject.put(JSON_MAX_KEY, mMax);
+            rootObject.put(JSON_BUCKETS_KEY, buckets);
+            return rootObject;
+        }
+    }
+}
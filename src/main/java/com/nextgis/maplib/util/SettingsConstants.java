@@ -43,4 +43,6 @@ public interface SettingsConstants
     String KEY_PREF_TRACKS_MIN_DISTANCE     = "tracks_min_distance";
     String KEY_PREF_TRACKS_SOURCE           = "tracks_location_source";
     String KEY_PREF_TRACK_RESTORE           = "track_restore";
+    String KEY_PREF_SYNC_LAYERS_MAX         = "sync_layers_max";
+    String KEY_PREF_SYNC_ACCOUNT_LAYERS_MAX = "sync_account_layers_max";
 }